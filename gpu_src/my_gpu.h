@@ -83,6 +83,23 @@ inline void gpu_##name(device_ptr<T> begin, int size, T p, T a = 1, T b = 0, T m
 	gpu_##name<T>(begin, size, begin, p, a, b, m); \
 }
 
+// Macro defines a fused activation backward: the derivative times the upstream gradient, in one pass
+// out = m * name(a*x + b) .* grad, where 'name' is the derivative, 
+// computed from either the input or the output of the activation
+#define GEN_deriv_mult(name) \
+template <typename T> \
+struct functor_##name##_mult{ \
+	const T a, b, m; \
+	functor_##name##_mult(T _a = 1, T _b = 0, T _m = 1) : a(_a), b(_b), m(_m) {} \
+	__host__ __device__ T operator()(const T& x, const T& g) const { return m * name(a * x + b) * g; } \
+}; \
+template <typename T> \
+inline void gpu_##name##_mult(device_ptr<T> begin, int size, device_ptr<T> grad, \
+								device_ptr<T> out, T a = 1, T b = 0, T m = 1) \
+{ \
+	transform(begin, begin + size, grad, out, functor_##name##_mult<T>(a, b, m)); \
+}
+
 namespace MyGpu
 {
 	// Generate unary transform functions
@@ -205,6 +222,25 @@ namespace MyGpu
 	}
 	GEN_transf(rectified_linear_deriv);
 
+	// Derivatives of the triangular waves w.r.t. their argument
+	_HD_ T triangular_wave_deriv(T x)
+	{
+		return 2 * signum(fmod(fabs(x), float(2)) - 1) * signum(x);
+	}
+
+	_HD_ T triangular_wave_positive_deriv(T x)
+	{
+		return signum(fmod(fabs(x), float(2)) - 1) * signum(x);
+	}
+
+	// Fused activation backward: m * deriv(a*x + b) .* grad
+	GEN_deriv_mult(sigmoid_deriv);
+	GEN_deriv_mult(sin); // cos' = -sin
+	GEN_deriv_mult(cos); // sin' = cos
+	GEN_deriv_mult(rectified_linear_deriv);
+	GEN_deriv_mult(triangular_wave_deriv);
+	GEN_deriv_mult(triangular_wave_positive_deriv);
+
 	// Thrust normal distribution. cuRAND one breaks under certain conditions, like misaligned address
 	template<typename T>
 	struct rand_normal_struct 
@@ -229,6 +265,48 @@ namespace MyGpu
 				  rand_normal_struct<T>(mean, stddev));
 	}
 
+	// Counter-based generator: element (r, c) of a column-major 'row' x 'col' block is a pure function 
+	// of the seed and its counter, offset + r * stride + c. 
+	// A tile of a bigger matrix (with 'stride' columns) can thus be regenerated anywhere, any time
+	__host__ __device__ inline unsigned long long counter_hash(unsigned long long seed, unsigned long long counter)
+	{
+		// splitmix64 finalizer
+		unsigned long long z = seed + (counter + 1) * 0x9E3779B97F4A7C15ULL;
+		z = (z ^ (z >> 30)) * 0xBF58476D1CE4E5B9ULL;
+		z = (z ^ (z >> 27)) * 0x94D049BB133111EBULL;
+		return z ^ (z >> 31);
+	}
+	template<typename T>
+	struct counter_rand_struct 
+	{
+		const unsigned long long seed, offset;
+		const int row, stride;
+		const bool normal;
+		counter_rand_struct(long long _seed, long long _offset, int _row, int _stride, bool _normal) : 
+			seed(_seed), offset(_offset), row(_row), stride(_stride), normal(_normal) { }
+		__device__ __host__
+		T operator()(int index) const
+		{
+			unsigned long long z = counter_hash(seed, 
+					offset + (unsigned long long) (index % row) * stride + index / row);
+			// uniform (0, 1] like cuRAND, from the top 24 bits
+			T u = ((z >> 40) + 1) * T(1.0 / 16777216);
+			if (!normal) return u;
+			// Box-Muller with a second uniform from the low bits
+			T v = (z & 0xFFFFFF) * T(1.0 / 16777216);
+			return sqrt(-2 * log(u)) * cos(T(2 * PI) * v);
+		}
+	};
+	template <typename T>
+	inline void gpu_counter_rand(device_ptr<T> begin, int row, int col, 
+							long long seed, long long offset, int stride, bool normal)
+	{
+		transform(thrust::make_counting_iterator<int>(0), 
+				  thrust::make_counting_iterator<int>(row * col), 
+				  begin, 
+				  counter_rand_struct<T>(seed, offset, row, stride, normal));
+	}
+
 	// Correct all infinity to 0
 	template <typename T>
 	struct correct_inf_struct
@@ -354,6 +432,12 @@ namespace MyGpu
 		cudaMemcpy(host, device, size, cudaMemcpyDeviceToHost); 
 		return host; 
 	} 
+	/* Copy into memory already allocated on device, e.g. by malloc_device() */ 
+	template <typename T>
+	inline void copy_host_to_device(T host[], T *device, int size) 
+	{ 
+		cudaMemcpy(device, host, size * sizeof(T), cudaMemcpyHostToDevice); 
+	} 
 	/* Can be used to copy directly to a primitive array (JavaCpp @Ptr) */ 
 	template <typename T>
 	inline void copy_device_to_host(T *device, T host[], int offset, int size) 
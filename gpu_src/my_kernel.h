@@ -294,6 +294,69 @@ namespace MyGpu
 		gpu_batch_softmax_minus_id<T>(begin, row, col, begin, labels, hasBias);
 	}
 
+	///// softmax at label that also keeps the log-sum-exp of every column for the backward pass
+	template <typename T>
+	__global__
+	void kernel_batch_softmax_at_label_lse(
+		T *begin, int row, int col, T *outLogProb, T *outLse, int *labels, bool hasBias)
+	{
+		ThreadIndex1D(idx, col);
+
+		begin += idx * row; // beginning of a column
+
+		if (hasBias) -- row; // if hasBias, don't calc the last row
+		T mx = device_max<T>(begin, row);
+		T sum = 0;
+		for (int i = 0; i < row; i++)
+			sum += exp(begin[i] - mx);
+		T lse = mx + log(sum);
+		outLse[idx] = lse;
+		outLogProb[idx] = begin[labels[idx]] - lse;
+	}
+
+	// return sum(outLogProb)
+	template <typename T>
+	inline float gpu_batch_softmax_at_label(
+		device_ptr<T> begin, int row, int col, device_ptr<T> outLogProb, device_ptr<T> outLse, int *labels, bool hasBias)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(col, gridDim, blockDim);
+
+		kernel_batch_softmax_at_label_lse<T> << <gridDim, blockDim >> >(
+			thrust::raw_pointer_cast(begin), row, col, thrust::raw_pointer_cast(outLogProb), 
+			thrust::raw_pointer_cast(outLse), labels, hasBias);
+
+		return gpu_sum<T>(outLogProb, col);
+	}
+
+	///// scale * (softmax - I[y == j]) from the log-sum-exp, one thread per entry. 
+	// The bias row gets 0
+	template <typename T>
+	__global__
+	void kernel_batch_softmax_minus_id_lse(
+		T *begin, int row, int size, T *lse, int *labels, bool hasBias, T scale, T *out)
+	{
+		ThreadIndex1D(idx, size);
+
+		int r = idx % row, c = idx / row;
+		if (hasBias && r == row - 1)
+			out[idx] = 0;
+		else
+			out[idx] = scale * (exp(begin[idx] - lse[c]) - (r == labels[c] ? 1 : 0));
+	}
+
+	template <typename T>
+	inline void gpu_batch_softmax_minus_id(
+		device_ptr<T> begin, int row, int col, device_ptr<T> lse, int *labels, bool hasBias, T scale, device_ptr<T> out)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(row * col, gridDim, blockDim);
+
+		kernel_batch_softmax_minus_id_lse<T> << <gridDim, blockDim >> >(
+			thrust::raw_pointer_cast(begin), row, row * col, thrust::raw_pointer_cast(lse), 
+			labels, hasBias, scale, thrust::raw_pointer_cast(out));
+	}
+
 	///// Fill 'outLabels' with the label corresponding to the maximum probability of a column
 	template <typename T>
 	__global__
@@ -329,6 +392,645 @@ namespace MyGpu
 		kernel_best_label<T> << <gridDim, blockDim >> >(
                 thrust::raw_pointer_cast(begin), row, col, outLabels, hasBias);
     }
+
+    /**********************************************
+    * Fastfood structured projection kernels  *
+	V = S H G Perm H B, with H the Walsh-Hadamard transform.
+	The projection is done in 'blocks' of size d (a power of 2), 
+	stacked along each column of a work buffer of d * blocks rows
+    **********************************************/
+	template <typename T>
+	__global__
+	void kernel_fastfood_expand(
+			T *in, int inRow, int inDim, T *diag, int d, int segment, int size, T *out)
+	{
+		ThreadIndex1D(idx, size);
+
+		int s = idx % segment; // row in the work buffer
+		int j = s % d; // input row
+		out[idx] = j < inDim ? diag[s] * in[(idx / segment) * inRow + j] : 0;
+	}
+
+	// Replicate the first 'inDim' rows of each input column into every block, times diag. 
+	// Rows past inDim are zero padding
+	template <typename T>
+	inline void gpu_fastfood_expand(
+			device_ptr<T> in, int inRow, int inDim, device_ptr<T> diag, int d, int segment, int col, device_ptr<T> out)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(segment * col, gridDim, blockDim);
+
+		kernel_fastfood_expand<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(in), inRow, inDim, thrust::raw_pointer_cast(diag), 
+				d, segment, segment * col, thrust::raw_pointer_cast(out));
+	}
+
+	// Transpose of expand: sum the blocks back into the input rows. The bias row gets 0
+	template <typename T>
+	__global__
+	void kernel_fastfood_reduce(
+			T *work, int inRow, int inDim, T *diag, int d, int segment, int size, T *out)
+	{
+		ThreadIndex1D(idx, size);
+
+		int j = idx % inRow;
+		T sum = 0;
+		if (j < inDim)
+		{
+			work += (idx / inRow) * segment + j;
+			for (int s = j; s < segment; s += d, work += d)
+				sum += diag[s] * *work;
+		}
+		out[idx] = sum;
+	}
+
+	template <typename T>
+	inline void gpu_fastfood_reduce(
+			device_ptr<T> work, int inRow, int inDim, device_ptr<T> diag, int d, int segment, int col, device_ptr<T> out)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(inRow * col, gridDim, blockDim);
+
+		kernel_fastfood_reduce<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(work), inRow, inDim, thrust::raw_pointer_cast(diag), 
+				d, segment, inRow * col, thrust::raw_pointer_cast(out));
+	}
+
+	// One butterfly stage of the unnormalized Walsh-Hadamard transform
+	template <typename T>
+	__global__
+	void kernel_fwht_stage(T *begin, int half, int h)
+	{
+		ThreadIndex1D(idx, half);
+
+		int i = (idx / h) * 2 * h + idx % h;
+		T a = begin[i], b = begin[i + h];
+		begin[i] = a + b;
+		begin[i + h] = a - b;
+	}
+
+	// In place Walsh-Hadamard transform of every consecutive length-d segment. 
+	// 'size' must be a multiple of d, d a power of 2
+	template <typename T>
+	inline void gpu_fwht(device_ptr<T> begin, int size, int d)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(size / 2, gridDim, blockDim);
+
+		for (int h = 1; h < d; h *= 2)
+			kernel_fwht_stage<T> << <gridDim, blockDim >> >(
+					thrust::raw_pointer_cast(begin), size / 2, h);
+	}
+
+	// out = scale .* in[perm] within each segment (a column of the work buffer), 
+	// or its transpose, out[perm] = scale .* in
+	template <typename T>
+	__global__
+	void kernel_fastfood_permute(
+			T *in, int *perm, T *scale, int segment, int size, T *out, bool transpose)
+	{
+		ThreadIndex1D(idx, size);
+
+		int s = idx % segment;
+		int p = idx - s + perm[s];
+		if (transpose)
+			out[p] = scale[s] * in[idx];
+		else
+			out[idx] = scale[s] * in[p];
+	}
+
+	template <typename T>
+	inline void gpu_fastfood_permute(
+			device_ptr<T> in, int *perm, device_ptr<T> scale, int segment, int size, device_ptr<T> out, bool transpose)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(size, gridDim, blockDim);
+
+		kernel_fastfood_permute<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(in), perm, thrust::raw_pointer_cast(scale), 
+				segment, size, thrust::raw_pointer_cast(out), transpose);
+	}
+
+	// out = scale .* work + bias for the first 'features' rows of each segment. 
+	// The remaining output rows (bias row) are set to 0
+	template <typename T>
+	__global__
+	void kernel_fastfood_contract(
+			T *work, int segment, T *scale, T *bias, int features, int outRow, int size, T *out)
+	{
+		ThreadIndex1D(idx, size);
+
+		int f = idx % outRow;
+		out[idx] = f < features ? scale[f] * work[(idx / outRow) * segment + f] + bias[f] : 0;
+	}
+
+	template <typename T>
+	inline void gpu_fastfood_contract(
+			device_ptr<T> work, int segment, device_ptr<T> scale, device_ptr<T> bias, 
+			int features, int outRow, int col, device_ptr<T> out)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(outRow * col, gridDim, blockDim);
+
+		kernel_fastfood_contract<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(work), segment, thrust::raw_pointer_cast(scale), 
+				thrust::raw_pointer_cast(bias), features, outRow, outRow * col, thrust::raw_pointer_cast(out));
+	}
+
+    /**********************************************
+    * Sampled softmax kernels  *
+	Candidate i of a batch is the gold label of column i for i < batch, 
+	and the shared sampled label samples[i - batch] after that
+    **********************************************/
+	__inline__ __device__
+	int device_candidate(int i, int *labels, int batch, int *samples)
+	{
+		return i < batch ? labels[i] : samples[i - batch];
+	}
+
+	template <typename T>
+	__global__
+	void kernel_gather_rows(
+			T *w, int wRow, int *labels, int batch, int *samples, int cand, int size, T *out)
+	{
+		ThreadIndex1D(idx, size);
+
+		int i = idx % cand;
+		out[idx] = w[(idx / cand) * wRow + device_candidate(i, labels, batch, samples)];
+	}
+
+	// out (cand * wCol) = the candidate rows of w
+	template <typename T>
+	inline void gpu_gather_rows(
+			device_ptr<T> w, int wRow, int wCol, int *labels, int batch, int *samples, int cand, device_ptr<T> out)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(cand * wCol, gridDim, blockDim);
+
+		kernel_gather_rows<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(w), wRow, labels, batch, samples, cand, 
+				cand * wCol, thrust::raw_pointer_cast(out));
+	}
+
+	// atomicAdd: a label can be a candidate more than once
+	template <typename T>
+	__global__
+	void kernel_scatter_add_rows(
+			T *in, int cand, int *labels, int batch, int *samples, int size, T *w, int wRow, T alpha)
+	{
+		ThreadIndex1D(idx, size);
+
+		int i = idx % cand;
+		atomicAdd(w + (idx / cand) * wRow + device_candidate(i, labels, batch, samples), alpha * in[idx]);
+	}
+
+	// Transpose of gather: candidate rows of w += alpha * in (cand * wCol). Other rows untouched
+	template <typename T>
+	inline void gpu_scatter_add_rows(
+			device_ptr<T> in, int cand, int *labels, int batch, int *samples, 
+			device_ptr<T> w, int wRow, int wCol, T alpha)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(cand * wCol, gridDim, blockDim);
+
+		kernel_scatter_add_rows<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(in), cand, labels, batch, samples, 
+				cand * wCol, thrust::raw_pointer_cast(w), wRow, alpha);
+	}
+
+	// Column b scores its gold label (row b) against all shared samples (rows batch..cand), 
+	// each corrected by -logQ. Samples that hit the gold label are left out.
+	template <typename T>
+	__global__
+	void kernel_sampled_softmax(
+			T *logits, int cand, int batch, int *labels, int *samples, T *logQ, 
+			T *outGrad, T *outLogProb, T scale)
+	{
+		ThreadIndex1D(idx, batch);
+
+		logits += idx * cand;
+		int label = labels[idx];
+		T gold = logits[idx] - logQ[label];
+		T mx = gold;
+		for (int i = batch; i < cand; i++)
+			if (samples[i - batch] != label)
+				mx = max(mx, logits[i] - logQ[samples[i - batch]]);
+		T sum = exp(gold - mx);
+		for (int i = batch; i < cand; i++)
+			if (samples[i - batch] != label)
+				sum += exp(logits[i] - logQ[samples[i - batch]] - mx);
+		T logProb = gold - mx - log(sum);
+		outLogProb[idx] = logProb;
+
+		// gradient of -logProb w.r.t. the uncorrected logits
+		outGrad += idx * cand;
+		for (int i = 0; i < batch; i++)
+			outGrad[i] = 0;
+		outGrad[idx] = scale * (exp(logProb) - 1);
+		for (int i = batch; i < cand; i++)
+			outGrad[i] = samples[i - batch] == label ? 0 : 
+					scale * exp(logits[i] - logQ[samples[i - batch]] - mx) / sum;
+	}
+
+	// logits: cand * batch, from the gathered rows. outGrad same size
+	// return sum(outLogProb)
+	template <typename T>
+	inline float gpu_sampled_softmax(
+			device_ptr<T> logits, int cand, int batch, int *labels, int *samples, device_ptr<T> logQ, 
+			device_ptr<T> outGrad, device_ptr<T> outLogProb, T scale)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(batch, gridDim, blockDim);
+
+		kernel_sampled_softmax<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(logits), cand, batch, labels, samples, 
+				thrust::raw_pointer_cast(logQ), thrust::raw_pointer_cast(outGrad), 
+				thrust::raw_pointer_cast(outLogProb), scale);
+
+		return gpu_sum<T>(outLogProb, batch);
+	}
+
+    /**********************************************
+    * Class-factored softmax kernels  *
+	W rows: the class rows [0, classes), then the label rows grouped by class: 
+	class c owns W rows [classStart[c], classStart[c+1]). 
+	The factored matrices hold the class logits in rows [0, classes), 
+	then the logits of the gold class's labels, padded to 'blockRows'
+    **********************************************/
+	template <typename T>
+    __inline__ __device__
+	T device_log_sum_exp(T *begin, int size)
+	{
+		T mx = device_max<T>(begin, size);
+		T sum = 0;
+		for (int i = 0; i < size; i++)
+			sum += exp(begin[i] - mx);
+		return mx + log(sum);
+	}
+
+	template <typename T>
+	__global__
+	void kernel_class_block_mult(
+			T *w, int wRow, int wCol, T *x, int xRow, int *labels, int *labelClass, int *classStart, 
+			int classes, int outRow, int size, T *out)
+	{
+		ThreadIndex1D(idx, size);
+
+		int blockRows = outRow - classes;
+		int i = idx % blockRows, b = idx / blockRows;
+		int c = labelClass[labels[b]];
+		int r = classStart[c] + i;
+		T sum = 0;
+		if (r < classStart[c + 1])
+		{
+			x += b * xRow;
+			for (int k = 0; k < wCol; k++)
+				sum += w[r + k * wRow] * x[k];
+		}
+		out[b * outRow + classes + i] = sum;
+	}
+
+	// Rows [classes, outRow) of each column of 'out' = the gold class's label rows of W times the column of x
+	template <typename T>
+	inline void gpu_class_block_mult(
+			device_ptr<T> w, int wRow, int wCol, device_ptr<T> x, int xRow, int batch, 
+			int *labels, int *labelClass, int *classStart, int classes, int outRow, device_ptr<T> out)
+	{
+		int size = (outRow - classes) * batch;
+		dim3 gridDim, blockDim;
+		setKernelDim1D(size, gridDim, blockDim);
+
+		kernel_class_block_mult<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(w), wRow, wCol, thrust::raw_pointer_cast(x), xRow, 
+				labels, labelClass, classStart, classes, outRow, size, thrust::raw_pointer_cast(out));
+	}
+
+	template <typename T>
+	__global__
+	void kernel_class_softmax(
+			T *logits, int row, int classes, int batch, int *labels, int *labelClass, int *labelRow, int *classStart, 
+			T *outGrad, T *outLogProb, T scale)
+	{
+		ThreadIndex1D(idx, batch);
+
+		logits += idx * row;
+		outGrad += idx * row;
+		int label = labels[idx];
+		int c = labelClass[label];
+		int size = classStart[c + 1] - classStart[c];
+		int pos = labelRow[label] - classStart[c];
+
+		T lseClass = device_log_sum_exp<T>(logits, classes);
+		T lseLabel = device_log_sum_exp<T>(logits + classes, size);
+		outLogProb[idx] = logits[c] - lseClass + logits[classes + pos] - lseLabel;
+
+		for (int i = 0; i < classes; i++)
+			outGrad[i] = scale * (exp(logits[i] - lseClass) - (i == c ? 1 : 0));
+		for (int i = 0; i < row - classes; i++)
+			outGrad[classes + i] = i < size ? 
+					scale * (exp(logits[classes + i] - lseLabel) - (i == pos ? 1 : 0)) : 0;
+	}
+
+	// log P(class) + log P(label | class) at the gold label. 
+	// outGrad = scale * gradient of -log(prob) w.r.t. the factored logits
+	// return sum(outLogProb)
+	template <typename T>
+	inline float gpu_class_softmax(
+			device_ptr<T> logits, int row, int classes, int batch, 
+			int *labels, int *labelClass, int *labelRow, int *classStart, 
+			device_ptr<T> outGrad, device_ptr<T> outLogProb, T scale)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(batch, gridDim, blockDim);
+
+		kernel_class_softmax<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(logits), row, classes, batch, labels, labelClass, labelRow, classStart, 
+				thrust::raw_pointer_cast(outGrad), thrust::raw_pointer_cast(outLogProb), scale);
+
+		return gpu_sum<T>(outLogProb, batch);
+	}
+
+	template <typename T>
+	__global__
+	void kernel_class_block_mult_t(
+			T *w, int wRow, int wCol, T *grad, int gradRow, int *labels, int *labelClass, int *classStart, 
+			int classes, int size, T *inGrad)
+	{
+		ThreadIndex1D(idx, size);
+
+		int k = idx % wCol, b = idx / wCol;
+		int c = labelClass[labels[b]];
+		int start = classStart[c];
+		grad += b * gradRow + classes;
+		T sum = 0;
+		for (int r = start; r < classStart[c + 1]; r++)
+			sum += w[r + k * wRow] * grad[r - start];
+		inGrad[idx] += sum;
+	}
+
+	// Transpose of class_block_mult: inGrad (wCol * batch) += the gold class's label rows of W ^T * grad
+	template <typename T>
+	inline void gpu_class_block_mult_t(
+			device_ptr<T> w, int wRow, int wCol, device_ptr<T> grad, int gradRow, int batch, 
+			int *labels, int *labelClass, int *classStart, int classes, device_ptr<T> inGrad)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(wCol * batch, gridDim, blockDim);
+
+		kernel_class_block_mult_t<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(w), wRow, wCol, thrust::raw_pointer_cast(grad), gradRow, 
+				labels, labelClass, classStart, classes, wCol * batch, thrust::raw_pointer_cast(inGrad));
+	}
+
+	// atomicAdd: columns of the same class update the same rows
+	template <typename T>
+	__global__
+	void kernel_class_block_update(
+			T *grad, int gradRow, T *x, int xRow, int *labels, int *labelClass, int *classStart, 
+			int classes, int size, T *w, int wRow, int wCol, T alpha)
+	{
+		ThreadIndex1D(idx, size);
+
+		int blockRows = gradRow - classes;
+		int i = idx % blockRows;
+		int k = (idx / blockRows) % wCol, b = idx / blockRows / wCol;
+		int c = labelClass[labels[b]];
+		int r = classStart[c] + i;
+		if (r < classStart[c + 1])
+			atomicAdd(w + r + k * wRow, alpha * grad[b * gradRow + classes + i] * x[b * xRow + k]);
+	}
+
+	// The gold class's label rows of W += alpha * grad * x^T. Other rows untouched
+	template <typename T>
+	inline void gpu_class_block_update(
+			device_ptr<T> grad, int gradRow, device_ptr<T> x, int xRow, int batch, 
+			int *labels, int *labelClass, int *classStart, int classes, 
+			device_ptr<T> w, int wRow, int wCol, T alpha)
+	{
+		int size = (gradRow - classes) * wCol * batch;
+		dim3 gridDim, blockDim;
+		setKernelDim1D(size, gridDim, blockDim);
+
+		kernel_class_block_update<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(grad), gradRow, thrust::raw_pointer_cast(x), xRow, 
+				labels, labelClass, classStart, classes, size, thrust::raw_pointer_cast(w), wRow, wCol, alpha);
+	}
+
+	template <typename T>
+	__global__
+	void kernel_class_block_scale(
+			T *w, int wRow, int wCol, int *classStart, int *classList, int blockRows, int size, T factor)
+	{
+		ThreadIndex1D(idx, size);
+
+		int i = idx % blockRows;
+		int k = (idx / blockRows) % wCol, c = classList[idx / blockRows / wCol];
+		int r = classStart[c] + i;
+		if (r < classStart[c + 1])
+			w[r + k * wRow] *= factor;
+	}
+
+	// Label rows of every class in 'classList' (no duplicates) *= factor
+	template <typename T>
+	inline void gpu_class_block_scale(
+			device_ptr<T> w, int wRow, int wCol, int *classStart, int *classList, int n, int blockRows, T factor)
+	{
+		int size = blockRows * wCol * n;
+		dim3 gridDim, blockDim;
+		setKernelDim1D(size, gridDim, blockDim);
+
+		kernel_class_block_scale<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(w), wRow, wCol, classStart, classList, blockRows, size, factor);
+	}
+
+	template <typename T>
+	__global__
+	void kernel_class_log_prob(
+			T *logits, int row, int classes, int *classStart, int *rowLabel, int labels, int col, T *out, int outRow)
+	{
+		ThreadIndex1D(idx, col);
+
+		logits += idx * row;
+		out += idx * outRow;
+		T lseClass = device_log_sum_exp<T>(logits, classes);
+		for (int c = 0; c < classes; c++)
+		{
+			int start = classStart[c], end = classStart[c + 1];
+			T logClass = logits[c] - lseClass - device_log_sum_exp<T>(logits + start, end - start);
+			for (int r = start; r < end; r++)
+				out[rowLabel[r - classes]] = logClass + logits[r];
+		}
+		for (int i = labels; i < outRow; i++)
+			out[i] = 0;
+	}
+
+	// Full log P(label) = log P(class) + log P(label | class) of every label, from the full W * x. 
+	// Rows of 'out' past the labels (bias row) are set to 0
+	template <typename T>
+	inline void gpu_class_log_prob(
+			device_ptr<T> logits, int row, int col, int classes, int *classStart, int *rowLabel, int labels, 
+			device_ptr<T> out, int outRow)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(col, gridDim, blockDim);
+
+		kernel_class_log_prob<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(logits), row, classes, classStart, rowLabel, labels, col, 
+				thrust::raw_pointer_cast(out), outRow);
+	}
+
+    /**********************************************
+    * Parameter update kernels  *
+	One pass over W ('size' entries, 'row' rows) and its optimizer state. 
+	If hasBias, the last row of W is the bias row: kept at 0 along with its state
+    **********************************************/
+#define BiasRowMasked(idx, row, hasBias) (hasBias && idx % row == row - 1)
+
+	template <typename T>
+	__global__
+	void kernel_momentum_apply(T *w, T *v, int row, int size, T lrReg, T step, bool hasBias)
+	{
+		ThreadIndex1D(idx, size);
+
+		if (BiasRowMasked(idx, row, hasBias))
+		{
+			w[idx] = v[idx] = 0;
+			return;
+		}
+		T vel = v[idx] - lrReg * w[idx];
+		v[idx] = vel;
+		w[idx] += step * vel;
+	}
+
+	// v -= lrReg * w; w += step * v
+	template <typename T>
+	inline void gpu_momentum_apply(device_ptr<T> w, device_ptr<T> v, int row, int size, T lrReg, T step, bool hasBias)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(size, gridDim, blockDim);
+
+		kernel_momentum_apply<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(w), thrust::raw_pointer_cast(v), row, size, lrReg, step, hasBias);
+	}
+
+	template <typename T>
+	__global__
+	void kernel_nesterov_prepare(T *w, T *v, int size, T mu, T lrReg)
+	{
+		ThreadIndex1D(idx, size);
+
+		T vel = v[idx];
+		v[idx] = mu * vel - lrReg * w[idx];
+		w[idx] -= mu * vel;
+	}
+
+	// v = mu * v - lrReg * w; w -= mu * (old v)
+	template <typename T>
+	inline void gpu_nesterov_prepare(device_ptr<T> w, device_ptr<T> v, int size, T mu, T lrReg)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(size, gridDim, blockDim);
+
+		kernel_nesterov_prepare<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(w), thrust::raw_pointer_cast(v), size, mu, lrReg);
+	}
+
+	// Adaptive optimizers: the (L2-regularized) gradient is scale * g + reg * w
+	template <typename T>
+	__global__
+	void kernel_adagrad_update(T *w, T *g, T *s, int row, int size, T lr, T scale, T reg, T eps, bool hasBias)
+	{
+		ThreadIndex1D(idx, size);
+
+		if (BiasRowMasked(idx, row, hasBias))
+		{
+			w[idx] = s[idx] = 0;
+			return;
+		}
+		T grad = scale * g[idx] + reg * w[idx];
+		T sq = s[idx] + grad * grad;
+		s[idx] = sq;
+		w[idx] -= lr * grad / (sqrt(sq) + eps);
+	}
+
+	// s += g^2; w -= lr * g / (sqrt(s) + eps)
+	template <typename T>
+	inline void gpu_adagrad_update(device_ptr<T> w, device_ptr<T> g, device_ptr<T> s, int row, int size, 
+		T lr, T scale, T reg, T eps, bool hasBias)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(size, gridDim, blockDim);
+
+		kernel_adagrad_update<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(w), thrust::raw_pointer_cast(g), thrust::raw_pointer_cast(s), 
+				row, size, lr, scale, reg, eps, hasBias);
+	}
+
+	template <typename T>
+	__global__
+	void kernel_rmsprop_update(T *w, T *g, T *s, int row, int size, T lr, T scale, T reg, T decay, T eps, bool hasBias)
+	{
+		ThreadIndex1D(idx, size);
+
+		if (BiasRowMasked(idx, row, hasBias))
+		{
+			w[idx] = s[idx] = 0;
+			return;
+		}
+		T grad = scale * g[idx] + reg * w[idx];
+		T sq = decay * s[idx] + (1 - decay) * grad * grad;
+		s[idx] = sq;
+		w[idx] -= lr * grad / (sqrt(sq) + eps);
+	}
+
+	// s = decay * s + (1 - decay) * g^2; w -= lr * g / (sqrt(s) + eps)
+	template <typename T>
+	inline void gpu_rmsprop_update(device_ptr<T> w, device_ptr<T> g, device_ptr<T> s, int row, int size, 
+		T lr, T scale, T reg, T decay, T eps, bool hasBias)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(size, gridDim, blockDim);
+
+		kernel_rmsprop_update<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(w), thrust::raw_pointer_cast(g), thrust::raw_pointer_cast(s), 
+				row, size, lr, scale, reg, decay, eps, hasBias);
+	}
+
+	template <typename T>
+	__global__
+	void kernel_adam_update(T *w, T *g, T *m, T *v, int row, int size, 
+		T lr, T scale, T reg, T beta1, T beta2, T eps, bool hasBias)
+	{
+		ThreadIndex1D(idx, size);
+
+		if (BiasRowMasked(idx, row, hasBias))
+		{
+			w[idx] = m[idx] = v[idx] = 0;
+			return;
+		}
+		T grad = scale * g[idx] + reg * w[idx];
+		T mean = beta1 * m[idx] + (1 - beta1) * grad;
+		T sq = beta2 * v[idx] + (1 - beta2) * grad * grad;
+		m[idx] = mean;
+		v[idx] = sq;
+		w[idx] -= lr * mean / (sqrt(sq) + eps);
+	}
+
+	// m = beta1 * m + (1 - beta1) * g; v = beta2 * v + (1 - beta2) * g^2; w -= lr * m / (sqrt(v) + eps)
+	// lr already includes the bias correction
+	template <typename T>
+	inline void gpu_adam_update(device_ptr<T> w, device_ptr<T> g, device_ptr<T> m, device_ptr<T> v, int row, int size, 
+		T lr, T scale, T reg, T beta1, T beta2, T eps, bool hasBias)
+	{
+		dim3 gridDim, blockDim;
+		setKernelDim1D(size, gridDim, blockDim);
+
+		kernel_adam_update<T> << <gridDim, blockDim >> >(
+				thrust::raw_pointer_cast(w), thrust::raw_pointer_cast(g), 
+				thrust::raw_pointer_cast(m), thrust::raw_pointer_cast(v), 
+				row, size, lr, scale, reg, beta1, beta2, eps, hasBias);
+	}
 }
 
 #endif // my_kernel_h__
+
@@ -0,0 +1,331 @@
+package deep;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import gpu.*;
+import deep.units.*;
+
+/**
+ * A network whose units form a directed acyclic graph instead of a chain:
+ * multi-stream inputs, skip connections, several Fourier feature banks concatenated, etc.
+ * A unit reads the outputs of one or more units added before it (only ConcatUnit takes several),
+ * and any output can feed several units. Insertion order is therefore a topological order.
+ * When an output fans out, each extra consumer writes its gradient into a private branch
+ * (see {@link DataUnit#createBranch(String, ComputeUnit)}), and the branches are summed
+ * back into the output gradient before its producer runs backward.
+ *
+ * With {@link #setThreads(int)}, independent branches are run concurrently on a thread pool,
+ * in topological order for forwprop and reverse topological order for backprop.
+ * Every unit still runs on the shared GPU: the overlap is in host-side work and kernel launches.
+ * A single TerminalUnit must be added last.
+ */
+public class DagNet extends DeepNet
+{
+	private static final long serialVersionUID = 1L;
+	// insertion order, always topological
+	private final ArrayList<ComputeUnit> units = new ArrayList<>();
+	// indices of each unit's producers, -1 is the inlet
+	private final ArrayList<int[]> producers = new ArrayList<>();
+	private int threads = 1;
+
+	// Built at setup. 'source' index: producer index + 1, 0 is the inlet
+	// consumer indices of each source, one entry per edge
+	private transient ArrayList<ArrayList<Integer>> consumers;
+	// private gradient branches handed to the extra consumers of each source
+	private transient ArrayList<ArrayList<DataUnit>> branches;
+	// consumer edges of each source already linked during setup
+	private transient int[] linkedEdges;
+	private transient ExecutorService pool;
+
+	public DagNet(String name, InletUnit inlet)
+	{
+		super(name, inlet);
+	}
+
+	/**
+	 * Add a unit that reads the outputs of 'inputs', which must have been added before.
+	 * @param inputs none to read the inlet. A null entry also stands for the inlet.
+	 * Only a ConcatUnit can have more than one input.
+	 * @return unit
+	 */
+	public <T extends ComputeUnit> T add(T unit, ComputeUnit... inputs)
+	{
+		if (terminal != null)
+			throw new DeepException("Cannot add " + unit.name + " after the TerminalUnit");
+		if (inputs.length > 1 && !(unit instanceof ConcatUnit))
+			throw new DeepException("Only a ConcatUnit can have several inputs: " + unit.name);
+
+		int[] idx = new int[] {-1};
+		if (inputs.length > 0)
+		{
+			idx = new int[inputs.length];
+			for (int i = 0; i < inputs.length; i++)
+			{
+				idx[i] = inputs[i] == null ? -1 : units.indexOf(inputs[i]);
+				if (inputs[i] != null && idx[i] < 0)
+					throw new DeepException(inputs[i].name + " must be added before " + unit.name);
+			}
+		}
+
+		if (units.isEmpty())
+		{
+			this.head = unit;
+			inlet.setParent(unit);
+		}
+		units.add(unit);
+		producers.add(idx);
+		if (unit instanceof TerminalUnit)
+			this.terminal = (TerminalUnit) unit;
+		return unit;
+	}
+
+	/**
+	 * Run independent branches concurrently
+	 * @param threads 1 (default) for sequential execution in insertion order
+	 */
+	public void setThreads(int threads)
+	{
+		this.threads = Math.max(threads, 1);
+		if (pool != null)
+			pool.shutdown();
+		pool = null;
+	}
+
+	/**
+	 * Iterate in insertion (topological) order, or its reverse
+	 */
+	@Override
+	public Iterable<ComputeUnit> unitIter(boolean forward)
+	{
+		if (forward)
+			return Collections.unmodifiableList(units);
+		ArrayList<ComputeUnit> reversed = new ArrayList<>(units);
+		Collections.reverse(reversed);
+		return reversed;
+	}
+
+	// ******************** Setup ********************/
+	@Override
+	public void setup(LearningPlan learningPlan)
+	{
+		if (terminal == null)
+			throw new DeepException("DagNet " + name + " needs a TerminalUnit added last");
+		if (branches == null)
+		{
+			consumers = new ArrayList<>();
+			branches = new ArrayList<>();
+			for (int s = 0; s <= units.size(); s++)
+			{
+				consumers.add(new ArrayList<Integer>());
+				branches.add(new ArrayList<DataUnit>());
+			}
+			for (int i = 0; i < units.size(); i++)
+				for (int p : producers.get(i))
+					consumers.get(p + 1).add(i);
+			linkedEdges = new int[units.size() + 1];
+		}
+		super.setup(learningPlan);
+	}
+
+	/**
+	 * Link the unit to its producers' outputs (or branches of them), then setup.
+	 * Producers are always setup before.
+	 */
+	@Override
+	protected void setupUnit(ComputeUnit unit)
+	{
+		int i = units.indexOf(unit);
+		ArrayList<DataUnit> ins = new ArrayList<>();
+		for (int p : producers.get(i))
+		{
+			DataUnit source = p < 0 ? inlet : units.get(p).output;
+			ArrayList<Integer> cons = consumers.get(p + 1);
+			if (cons.size() > 1 && unit.isMergeIO())
+				throw new DeepException(unit.name + " can't merge input and output: its input feeds other units");
+
+			// the first consumer edge gets the source itself, every other one a branch
+			int edge = linkedEdges[p + 1] ++;
+			if (edge == 0)
+				ins.add(source);
+			else
+			{
+				DataUnit branch = source.createBranch(
+						"Data[branch" + edge + "]#" + source.name, unit);
+				branches.get(p + 1).add(branch);
+				ins.add(branch);
+			}
+		}
+
+		if (unit instanceof ConcatUnit)
+			((ConcatUnit) unit).setInputs(ins);
+		else
+			unit.input = ins.get(0);
+		unit.setup();
+	}
+
+	/**
+	 * A data unit needs gradient iff a ParamComputeUnit is upstream of it
+	 */
+	@Override
+	protected void disableGradients()
+	{
+		boolean[] needsGrad = new boolean[units.size()];
+		for (int i = 0; i < units.size(); i++)
+		{
+			needsGrad[i] = units.get(i) instanceof ParamComputeUnit;
+			for (int p : producers.get(i))
+				needsGrad[i] |= p >= 0 && needsGrad[p];
+		}
+		for (int i = 0; i < units.size(); i++)
+		{
+			ArrayList<DataUnit> ins = inputsOf(i);
+			int[] prods = producers.get(i);
+			for (int k = 0; k < prods.length; k++)
+				if (prods[k] < 0 || !needsGrad[prods[k]])
+					ins.get(k).setNoGradient();
+		}
+	}
+
+	private ArrayList<DataUnit> inputsOf(int i)
+	{
+		ComputeUnit unit = units.get(i);
+		if (unit instanceof ConcatUnit)
+			return ((ConcatUnit) unit).getInputs();
+		return new ArrayList<>(Arrays.asList(unit.input));
+	}
+
+	// ******************** Propagation ********************/
+	@Override
+	public void forwprop()
+	{
+		if (threads == 1)
+			super.forwprop();
+		else
+			schedule(true);
+	}
+
+	@Override
+	public void backprop()
+	{
+		if (threads == 1)
+			for (int i = units.size() - 1; i >= 0; i--)
+				backward(i);
+		else
+			schedule(false);
+		// the inlet only has gradient in debug mode
+		sumBranches(-1);
+
+		if (learningPlan.isAccumBoundary())
+			applyAccumGradient();
+	}
+
+	/**
+	 * Fan-in: sum the gradients of all consumers before backprop through the producer
+	 */
+	private void backward(int i)
+	{
+		sumBranches(i);
+		units.get(i).backward();
+	}
+
+	/**
+	 * @param p producer index, -1 for the inlet
+	 */
+	private void sumBranches(int p)
+	{
+		ArrayList<DataUnit> brs = branches.get(p + 1);
+		if (brs.isEmpty())	return;
+		DataUnit source = p < 0 ? inlet : units.get(p).output;
+		if (!source.isGradientComputed())	return;
+		FloatMat grad = source.gradient();
+		for (DataUnit branch : brs)
+			GpuBlas.add(grad, branch.gradient(), grad);
+	}
+
+	/**
+	 * Run every unit as soon as all its dependencies are done:
+	 * producers for forwprop, consumers for backprop
+	 */
+	private void schedule(final boolean forward)
+	{
+		if (pool == null)
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "DagNet-" + name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		int n = units.size();
+		// unfinished dependency edges of every unit
+		int[] pending = new int[n];
+		for (int i = 0; i < n; i++)
+			pending[i] = forward ? countProducers(i) : consumers.get(i + 1).size();
+
+		CompletionService<Integer> done = new ExecutorCompletionService<>(pool);
+		for (int i = 0; i < n; i++)
+			if (pending[i] == 0)
+				submit(done, i, forward);
+		try
+		{
+			for (int finished = 0; finished < n; finished++)
+			{
+				int i = done.take().get();
+				if (forward)
+				{
+					for (int c : consumers.get(i + 1))
+						if (-- pending[c] == 0)
+							submit(done, c, forward);
+				}
+				else
+					for (int p : producers.get(i))
+						if (p >= 0 && -- pending[p] == 0)
+							submit(done, p, forward);
+			}
+		}
+		catch (InterruptedException | ExecutionException e) {
+			throw new DeepException("DagNet " + (forward ? "forwprop" : "backprop") + " failed: " + e.getMessage());
+		}
+	}
+
+	private int countProducers(int i)
+	{
+		int n = 0;
+		for (int p : producers.get(i))
+			if (p >= 0)	++ n;
+		return n;
+	}
+
+	private void submit(CompletionService<Integer> done, final int i, final boolean forward)
+	{
+		done.submit(new Callable<Integer>()
+		{
+			@Override
+			public Integer call()
+			{
+				if (forward)
+					units.get(i).forward();
+				else
+					backward(i);
+				return i;
+			}
+		});
+	}
+
+	@Override
+	public void destroy()
+	{
+		if (pool != null)
+			pool.shutdown();
+		if (branches != null)
+			for (ArrayList<DataUnit> brs : branches)
+				for (DataUnit branch : brs)
+					// shares the source's data
+					branch.setNoGradient();
+		super.destroy();
+	}
+}
@@ -229,6 +229,43 @@ public class DeepFactory
 				projIniters);
 	}
 	
+	/**
+	 * Compute-only Fastfood projection net: structured counterpart of 
+	 * fourierProjectionNet(), with CosineUnit activations
+	 * @param gamma for all layers
+	 * @see FastfoodProjectUnit
+	 */
+	public static DeepNet fastfoodProjectionNet(
+			InletUnit inlet, int[] layerDims, Initializer.ProjKernel kernelType, float gamma)
+	{
+		ArrayList<ComputeUnit> units = new ArrayList<>();
+		for (int i = 0; i < layerDims.length; i++)
+		{
+			units.add(new FastfoodProjectUnit("", inlet, layerDims[i], kernelType, gamma));
+			// scalor = sqrt(2/D) where D is #new features
+			ElementComputeUnit eleUnit = new CosineUnit("", inlet, (float) Math.sqrt(2.0 / layerDims[i]));
+			eleUnit.setMergeIO(true);
+			units.add(eleUnit);
+		}
+		units.add(new ForwardOnlyTUnit("", inlet));
+		return 
+			new DeepNet("FastfoodProjectionNet(forward-only)", inlet, units).genDefaultUnitName();
+	}
+	
+	/**
+	 * Streaming counterpart of a single-layer fourierProjectionNet(): 
+	 * the random features are never materialized
+	 * @see FourierLinearUnit
+	 */
+	public static DeepNet fourierLinearNet(
+			InletUnit inlet, int features, int outDim, Initializer projIniter, Initializer lastLinearIniter)
+	{
+		return 
+			new DeepNet("FourierLinearNet", inlet, 
+					new FourierLinearUnit("", inlet, features, outDim, projIniter, lastLinearIniter), 
+					new SparseCrossEntropyTUnit("", inlet)).genDefaultUnitName();
+	}
+	
 	public static DeepNet debugLinearLayers(
 			InletUnit inlet, int[] layerDims, Class<? extends TerminalUnit> terminalClass, Initializer initer)
 	{
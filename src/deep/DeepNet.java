@@ -23,6 +23,8 @@ public class DeepNet implements Iterable<ComputeUnit>, Serializable
 	
 	private transient boolean setup = false; // should only setup once
 	private boolean debug = false; // the whole net is in debug mode
+	private boolean fusion = true; // fuse activations into the preceding GEMM at setup
+	private boolean packParams = true; // all parameters in one contiguous arena
 
 	// Parameter list in forward order: for updating regularization term
 	public ParamList paramList = null;
@@ -47,6 +49,16 @@ public class DeepNet implements Iterable<ComputeUnit>, Serializable
 		this(name, inlet, MiscUtil.toArray(units, ComputeUnit.class));
 	}
 	
+	/**
+	 * For subclasses that link their units themselves
+	 * @see DagNet
+	 */
+	protected DeepNet(String name, InletUnit inlet)
+	{
+		this.name = name;
+		this.inlet = inlet;
+	}
+	
 	/**
 	 * Link an Inlet with head ComputeUnit. 
 	 * Useful for deserialization
@@ -87,6 +99,20 @@ public class DeepNet implements Iterable<ComputeUnit>, Serializable
 	{
 		for (ComputeUnit unit : unitIter(false))
 			unit.backward();
+		if (learningPlan.isAccumBoundary())
+			applyAccumGradient();
+	}
+	
+	/**
+	 * Update every parameter with its accumulated gradient and start a new cycle
+	 * @see LearningPlan#setAccumGradient(int)
+	 */
+	public void applyAccumGradient()
+	{
+		for (ComputeUnit unit : this)
+			if (unit instanceof ParamComputeUnit)
+				((ParamComputeUnit) unit).applyAccumGradient();
+		learningPlan.resetAccum();
 	}
 
 	/**
@@ -211,6 +237,25 @@ public class DeepNet implements Iterable<ComputeUnit>, Serializable
 		this.clearLoss();
 	}
 	
+	/**
+	 * Release the GPU memory of all units and parameter lists. 
+	 * The inlet isn't released: it belongs to the caller. 
+	 * The net can't be used afterwards. 
+	 */
+	public void destroy()
+	{
+		for (ComputeUnit unit : this)
+			unit.destroy();
+		for (ParamList params : new ParamList[] {bestParamList, lastEpochParamList})
+			if (params != null)
+				for (ParamUnit w : params)
+					w.destroy();
+		for (ParamList params : new ParamList[] {paramList, bestParamList, lastEpochParamList})
+			if (params != null)
+				params.destroyArena();
+		clearParamLists();
+	}
+	
 	// ******************** Training setups ********************/
 	/**
 	 * This function call will only setup once and do nothing later
@@ -222,24 +267,78 @@ public class DeepNet implements Iterable<ComputeUnit>, Serializable
 		if (!setup)
 		{
 			setPlan(learningPlan);
+			
+			if (fusion)
+				fuseActivations();
 
 			for (ComputeUnit unit : this)
-    			unit.setup();
+    			setupUnit(unit);
 			
-			// Explicitly disable gradient calculation in the first few non-paramComputeUnit
 			if (!debug)
-    			for (ComputeUnit unit : this)
-    			{
-    				// SetNoGradient for all non-paramComputeUnits and the first paramComputeUnit
-    				unit.input.setNoGradient();
-    				if (unit instanceof ParamComputeUnit)
-    					break;
-    			}
+				disableGradients();
 
 			getParamList(); // refresh param-list
+			if (packParams)
+				paramList.pack();
 			setup = true;
 		}
 	}
+	
+	/**
+	 * Fusion pass: an activation right after a LinearUnit or a Fourier/Fastfood projection runs in place 
+	 * at the end of the GEMM unit's forward(), so the pre-activation buffer isn't kept. 
+	 * Skipped when backward needs the pre-activation, which a forward-only net never does. 
+	 * @see ElementComputeUnit#fuseInto(ComputeUnit)
+	 */
+	protected void fuseActivations()
+	{
+		boolean forwardOnly = terminal instanceof ForwardOnlyTUnit;
+		for (ComputeUnit unit : this)
+			if ((unit instanceof LinearUnit || unit instanceof FourierProjectUnit
+					|| unit instanceof FastfoodProjectUnit)
+					&& unit.next instanceof ElementComputeUnit)
+			{
+				ElementComputeUnit element = (ElementComputeUnit) unit.next;
+				if (!element.isMergeIO() && !element.isFused()
+						&& (forwardOnly || !element.backwardNeedsInput()))
+					element.fuseInto(unit);
+			}
+	}
+	
+	/**
+	 * Default true. Needs to be called BEFORE setup()
+	 * @see #fuseActivations()
+	 */
+	public void setFusion(boolean fusion) {	this.fusion = fusion;	}
+	
+	/**
+	 * Default true. Needs to be called BEFORE setup()
+	 * @see ParamList#pack()
+	 */
+	public void setPackParams(boolean packParams) {	this.packParams = packParams;	}
+	
+	/**
+	 * Setup one unit, in forward order
+	 */
+	protected void setupUnit(ComputeUnit unit)
+	{
+		unit.setup();
+	}
+	
+	/**
+	 * Explicitly disable gradient calculation in the first few non-paramComputeUnit. 
+	 * Not called in debug mode.
+	 */
+	protected void disableGradients()
+	{
+		for (ComputeUnit unit : this)
+		{
+			// SetNoGradient for all non-paramComputeUnits and the first paramComputeUnit
+			unit.input.setNoGradient();
+			if (unit instanceof ParamComputeUnit)
+				break;
+		}
+	}
 
 	/**
 	 * Must be called after setup()
@@ -456,6 +555,14 @@ public class DeepNet implements Iterable<ComputeUnit>, Serializable
 		return this.terminal.lossTotal();
 	}
 
+	/**
+	 * @return regularization loss at the current parameters
+	 */
+	public float lossReg()
+	{
+		return this.terminal.lossReg();
+	}
+	
 	/**
 	 * @return pure loss function value is without reg
 	 */
@@ -474,6 +581,32 @@ public class DeepNet implements Iterable<ComputeUnit>, Serializable
 		this.terminal.setCalcLoss(doesCalcLoss);
 	}
 	
+	/**
+	 * Compute the loss on every k-th batch only
+	 * @see TerminalUnit#setLossSampling(int)
+	 */
+	public void setLossSampling(int every)
+	{
+		this.terminal.setLossSampling(every);
+	}
+	
+	/**
+	 * Compute the loss on a random subset of the batches
+	 * @see TerminalUnit#setLossSampling(float, long)
+	 */
+	public void setLossSampling(float ratio, long seed)
+	{
+		this.terminal.setLossSampling(ratio, seed);
+	}
+	
+	/**
+	 * @see TerminalUnit#lossVariance()
+	 */
+	public float lossVariance()
+	{
+		return this.terminal.lossVariance();
+	}
+	
 	/**
 	 * Are we calculating loss in Terminal?
 	 */
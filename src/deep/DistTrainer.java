@@ -0,0 +1,292 @@
+package deep;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import gpu.*;
+import utils.*;
+import deep.units.*;
+
+/**
+ * Data-parallel training across processes. Every process owns a DeepNet replica reading
+ * its own inlet shard, and all replicas exchange parameter gradients with a ring all-reduce.
+ * Built on gradient accumulation: each LinearUnit's batch gradient lands in W.accum()
+ * (weighted by batch size), then at every accumulation boundary the replicas
+ * sum their accumulators and the global sample count, and all apply the same update.
+ * Communication overlaps backprop: as soon as a unit's gradient is ready,
+ * its all-reduce is handed to a dedicated communication thread
+ * while the GPU goes on with the earlier layers.
+ *
+ * The epoch loss is summed over all ranks before the LearningPlan records it,
+ * so every rank takes the same LrScheme decisions.
+ *
+ * NOTE: every rank must run the same number of mini-batches per epoch,
+ * i.e. the shards must be equally sized. Checked in {@link #setup(LearningPlan)}.
+ * @see RingAllReducer
+ */
+public class DistTrainer
+{
+	private final DeepNet net;
+	private final RingAllReducer ring;
+	// all-reduces run in submission order on one thread, hence in the same order on every rank
+	private ExecutorService comm;
+	// every ParamComputeUnit in backward order, and the host staging buffer of its accumulator
+	private final ArrayList<ParamComputeUnit> paramUnits = new ArrayList<>();
+	private final ArrayList<float[]> hostGrads = new ArrayList<>();
+	// null: exchange full precision gradients
+	private GradientCodec codec = null;
+
+	public DistTrainer(DeepNet net, RingAllReducer ring)
+	{
+		this.net = net;
+		this.ring = ring;
+	}
+
+	/**
+	 * Setup the net with accumulated gradients (1 batch per cycle if the plan doesn't say otherwise),
+	 * then make every replica start from rank 0's parameters.
+	 * @param plan totalSampleSize is the size of this rank's shard
+	 */
+	public void setup(LearningPlan plan)
+	{
+		if (!plan.doesAccumGradient())
+			plan.setAccumGradient(1);
+		net.setup(plan);
+
+		for (ComputeUnit unit : net.unitIter(false))
+			if (unit instanceof ParamComputeUnit)
+			{
+				ParamComputeUnit punit = (ParamComputeUnit) unit;
+				paramUnits.add(punit);
+				hostGrads.add(new float[punit.W.accum().size()]);
+			}
+
+		try {
+			checkBatchCount(plan);
+			syncParams();
+		}
+		catch (IOException e) {
+			throw new DeepException("Ring all-reduce failed during setup: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Compress the gradients before exchanging them. Instead of a ring all-reduce,
+	 * every rank encodes its own gradient (with error feedback), the messages are all-gathered
+	 * and every rank decodes and sums them in rank order, so all replicas get the same update.
+	 * The global sample count is always exchanged in full precision.
+	 * @param codec null to exchange full precision gradients
+	 */
+	public void setCodec(GradientCodec codec)
+	{
+		this.codec = codec;
+	}
+
+	/**
+	 * Train all epochs. Assume setup() is already called.
+	 * @see DeepNet#run()
+	 */
+	@SuppressWarnings("unused")
+	public void run()
+	{
+		comm = Executors.newSingleThreadExecutor();
+		try
+		{
+			for (int epoch : net.epochIter())
+			{
+				for (int doneSample : net.batchIter())
+				{
+					net.forwprop();
+					this.backprop();
+				}
+				if (net.doesCalcLoss())
+					reduceLoss();
+			}
+		}
+		finally {
+			comm.shutdown();
+		}
+	}
+
+	/**
+	 * Same as DeepNet.backprop(), except that the accumulated gradients are summed over all ranks
+	 * before they're applied
+	 */
+	public void backprop()
+	{
+		LearningPlan plan = net.learningPlan;
+		boolean boundary = plan.isAccumBoundary();
+		ArrayList<Future<?>> pending = new ArrayList<>();
+
+		int key = 0;
+		for (ComputeUnit unit : net.unitIter(false))
+		{
+			unit.backward();
+			if (boundary && unit instanceof ParamComputeUnit)
+			{
+				// this unit's gradient is final: ship it while the earlier layers backprop
+				FloatMat accum = ((ParamComputeUnit) unit).W.accum();
+				float[] host = hostGrads.get(key);
+				GpuUtil.deviceToHostFloat(accum.toDevice(), host, host.length);
+				pending.add(exchangeAsync(key ++, host, accum.row, accum.col));
+			}
+		}
+		if (!boundary)	return;
+
+		final float[] sampleSize = new float[] {plan.accumSampleSize};
+		pending.add(exchangeAsync(-1, sampleSize, 1, 1));
+		try {
+			for (Future<?> f : pending)
+				f.get();
+		}
+		catch (InterruptedException | ExecutionException e) {
+			throw new DeepException("Ring all-reduce failed: " + e.getMessage());
+		}
+
+		for (int i = 0; i < paramUnits.size(); i++)
+		{
+			float[] host = hostGrads.get(i);
+			GpuUtil.hostToDeviceFloat(host, paramUnits.get(i).W.accum().toDevice(), host.length);
+		}
+		// normalize by the global number of samples in this cycle
+		plan.accumSampleSize = (int) sampleSize[0];
+		net.applyAccumGradient();
+	}
+
+	/**
+	 * Before the end of an epoch: merge the loss statistics of all shards, so that every rank 
+	 * records the same global loss, and the LrScheme decays lr or rolls back params the same way.
+	 * The statistics are gathered in double precision and merged in rank order on every rank
+	 */
+	private void reduceLoss()
+	{
+		double[] stats = net.terminal.lossStats();
+		final ByteBuffer local = ByteBuffer.allocate(stats.length * 8);
+		local.asDoubleBuffer().put(stats);
+		byte[][] msgs;
+		try {
+			msgs = comm.submit(new Callable<byte[][]>()
+			{
+				@Override
+				public byte[][] call() throws IOException
+				{
+					return ring.allGather(local.array());
+				}
+			}).get();
+		}
+		catch (InterruptedException | ExecutionException e) {
+			throw new DeepException("Ring all-gather failed: " + e.getMessage());
+		}
+		net.terminal.clearLoss();
+		for (byte[] msg : msgs)
+		{
+			ByteBuffer.wrap(msg).asDoubleBuffer().get(stats);
+			net.terminal.addLossStats(stats);
+		}
+	}
+
+	/**
+	 * Sum 'data' over all ranks on the communication thread
+	 * @param key index of the ParamComputeUnit in backward order, negative for non-gradients
+	 * that are always exchanged in full precision
+	 */
+	private Future<?> exchangeAsync(final int key, final float[] data, final int row, final int col)
+	{
+		return comm.submit(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws IOException
+			{
+				if (codec == null || key < 0)
+				{
+					ring.allReduce(data);
+					return null;
+				}
+				byte[][] msgs = ring.allGather(codec.encode(key, data, row, col));
+				Arrays.fill(data, 0);
+				for (byte[] msg : msgs)
+					codec.decodeAdd(msg, data);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Broadcast rank 0's parameters and fixed random projections to every replica. 
+	 * A regenerated or structured projection only needs its seed (and tile size)
+	 */
+	private void syncParams() throws IOException
+	{
+		ArrayList<FloatMat> mats = new ArrayList<>();
+		ParamList params = net.getParamList();
+		if (params.arena() != null)
+			mats.add(params.arena());
+		else
+			for (ParamUnit w : params)
+				mats.add(w.data());
+		for (ComputeUnit unit : net)
+			if (unit instanceof FourierProjectUnit)
+			{
+				FourierProjectUnit proj = (FourierProjectUnit) unit;
+				if (proj.isRegenerated())
+					proj.setRegenerate(broadcast(proj.getTileRows()), broadcast(proj.getSeed()));
+				else
+					mats.add(proj.getProjection());
+			}
+			else if (unit instanceof FourierLinearUnit)
+			{
+				FourierLinearUnit fourier = (FourierLinearUnit) unit;
+				if (fourier.isRegenerated())
+					fourier.setRegenerate(broadcast(fourier.getSeed()));
+				else
+					mats.add(fourier.getProjection());
+			}
+			else if (unit instanceof FastfoodProjectUnit)
+			{
+				FastfoodProjectUnit fastfood = (FastfoodProjectUnit) unit;
+				fastfood.setSeed(broadcast(fastfood.getSeed()));
+			}
+
+		for (FloatMat mat : mats)
+		{
+			float[] host = GpuUtil.deviceToHostFloat(mat.toDevice(), new float[mat.size()], mat.size());
+			ring.broadcast(host, 0, host.length, 0);
+			GpuUtil.hostToDeviceFloat(host, mat.toDevice(), host.length);
+		}
+	}
+
+	/**
+	 * @return rank 0's value. It travels as four 16-bit pieces, which a float holds exactly
+	 */
+	private long broadcast(long value) throws IOException
+	{
+		float[] msg = new float[] {value >>> 48, value >>> 32 & 0xFFFF, value >>> 16 & 0xFFFF, value & 0xFFFF};
+		ring.broadcast(msg, 0, msg.length, 0);
+		value = 0;
+		for (float piece : msg)
+			value = value << 16 | (long) piece;
+		return value;
+	}
+
+	private int broadcast(int value) throws IOException
+	{
+		return (int) broadcast((long) value);
+	}
+
+	/**
+	 * An uneven number of mini-batches would leave some ranks waiting forever in the ring
+	 */
+	private void checkBatchCount(LearningPlan plan) throws IOException
+	{
+		int MaxBatchSize = net.inlet.MaxBatchSize;
+		int batches = (plan.totalSampleSize + MaxBatchSize - 1) / MaxBatchSize;
+		// all equal iff N * sum(b^2) == sum(b)^2
+		float[] stats = new float[] {batches, batches * batches};
+		ring.allReduce(stats);
+		if (ring.worldSize * stats[1] != stats[0] * stats[0])
+			throw new DeepException("Rank " + ring.rank + " runs " + batches
+					+ " batches per epoch, but not all ranks do. Shards must be equally sized.");
+	}
+}
@@ -0,0 +1,619 @@
+package deep;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import gpu.*;
+import utils.*;
+import deep.units.*;
+
+/**
+ * Parallel finite-difference gradient checking.
+ * Same semantics as {@link DeepNet#gradCheck(LearningPlan, boolean, float, boolean)},
+ * but the parameter entries are partitioned over several threads, each of which
+ * perturbs its own replica of the net. Replicas are built by a NetFactory around a copy of the
+ * master's batch and get an exact copy of the master's parameters and fixed random state.
+ * Optionally checks only a random subset of entries, and reports a confidence bound
+ * on the average percentage error instead.
+ * For big nets, {@link #checkDirectional(int, float, boolean)} verifies the gradient
+ * along random directions with only two forward passes per probe.
+ *
+ * Like DeepNet.gradCheck(), the gradient is taken at the parameters before the backprop update,
+ * and every perturbed forward pass starts from a reset net fed with the same batch again.
+ *
+ * NOTE: refeeding the master's inlet after InletUnit.reset() must yield the same batch.
+ * The replicas never touch it: each one reads its own copy of the batch and gold.
+ * Nets without parameters perturb the inlet itself and are always checked by the master alone.
+ */
+public class GradChecker
+{
+	private final DeepNet net;
+	private final NetFactory factory;
+	private final LearningPlan plan;
+	private final boolean hasBias;
+
+	private int threads = 1;
+	// number of randomly sampled entries to check. Non-positive: check all
+	private int samples = 0;
+	private long seed = GpuRand.SEED;
+	// z-score of the confidence bound, default 95% two-sided
+	private float zScore = 1.96f;
+	// below it, directional errors aren't normalized
+	private static final double MIN_SCALE = 1e-12;
+	// batch position at which the gradient is taken, shared by every replica
+	private int batchEpoch, batchDoneSize;
+
+	/**
+	 * @param net master net, not necessarily setup
+	 * @param factory builds replicas structurally identical to 'net'.
+	 * Can be null if threads == 1
+	 * @param hasBias enable bias units on all ComputeUnit
+	 */
+	public GradChecker(DeepNet net, NetFactory factory, LearningPlan plan, boolean hasBias)
+	{
+		this.net = net;
+		this.factory = factory;
+		this.plan = plan;
+		this.hasBias = hasBias;
+	}
+
+	/**
+	 * Number of threads, each with its own replica. Default 1 (master only)
+	 */
+	public void setThreads(int threads)
+	{
+		if (threads > 1 && factory == null)
+			throw new DeepException("Need a NetFactory to build replicas for multi-threaded grad check");
+		this.threads = Math.max(threads, 1);
+	}
+
+	/**
+	 * Check only 'samples' entries drawn uniformly without replacement
+	 * @param samples non-positive to check all entries
+	 * @param seed also seeds the directions of checkDirectional()
+	 */
+	public void setSampling(int samples, long seed)
+	{
+		this.samples = samples;
+		this.seed = seed;
+	}
+
+	/**
+	 * @param zScore of the reported confidence bound. Default 1.96 (95%)
+	 */
+	public void setConfidence(float zScore) {	this.zScore = zScore;	}
+
+	/**
+	 * Outcome of a gradient check
+	 */
+	public static class Report
+	{
+		// average percentage error (already multiplied by 100)
+		public float avgPercentErr;
+		// upper confidence bound of avgPercentErr. Equal to it if every entry is checked
+		public float percentErrBound;
+		public float avgAbsErr;
+		public float eps;
+		public int checked;
+		public int total;
+
+		@Override
+		public String toString()
+		{
+			return String.format("checked %d / %d entries, perturb EPS = %.2e, "
+					+ "average absolute error = %.2e, average percent error = %.2e %% (bound %.2e %%)",
+					checked, total, eps, avgAbsErr, avgPercentErr, percentErrBound);
+		}
+	}
+
+	/**
+	 * Run the gradient check on one batch from the inlet
+	 * @param perturbRatio default = 1e3f. perturb EPS = average_abs_val / perturbRatio
+	 * @param verbose show the actual gradient comparison of every checked entry
+	 */
+	public Report check(float perturbRatio, boolean verbose)
+	{
+		PP.pTitledSectionLine("PARALLEL GRAD CHECK: " + net.name, "=", 10);
+
+		net.enableDebug();
+		net.setBias(hasBias);
+		net.setup(plan);
+		net.reset(); net.inlet.nextBatch();
+		batchEpoch = plan.curEpoch;
+		batchDoneSize = plan.doneSampleSize;
+
+		ArrayList<ParamUnit> params = net.getParamList();
+		final boolean hasParams = params.size() != 0;
+		// we treat inlet as 'parameter' for pure computing networks
+		if (!hasParams)
+			net.inlet.initGradient();
+
+		int targetN = hasParams ? params.size() : 1;
+		final float[][] propGrad = new float[targetN][];
+		final float[][] origData = new float[targetN][];
+		final int[] rows = new int[targetN];
+
+		// Snapshot before backprop, which also applies the update in debug mode
+		for (int t = 0; t < targetN; t++)
+		{
+			FloatMat data = target(net, t, hasParams).data();
+			rows[t] = data.row;
+			origData[t] = GpuUtil.deviceToHostFloat(data.toDevice(), new float[data.size()], data.size());
+		}
+
+		// Get the exact gradient by backprop first
+		net.forwprop();
+		net.backprop();
+
+		int total = 0;
+		float totalGradAbsSum = 0, totalDataAbsSum = 0;
+		for (int t = 0; t < targetN; t++)
+		{
+			DataUnit w = target(net, t, hasParams);
+			FloatMat data = w.data();
+			propGrad[t] = GpuUtil.deviceToHostFloat(w.gradient().toDevice(), new float[data.size()], data.size());
+			for (int i = 0; i < data.size(); i++)
+			{
+				if (hasBias && i % data.row == data.row - 1)
+					continue;
+				totalDataAbsSum += Math.abs(origData[t][i]);
+				totalGradAbsSum += Math.abs(propGrad[t][i]);
+				++ total;
+			}
+		}
+
+		// Heuristic to pick a good EPS, same as DeepNet.gradCheck()
+		final float EPS = Math.max(totalDataAbsSum / total / perturbRatio, 1e-3f);
+
+		// Enumerate every entry except the bias rows, then sample if required
+		int[] entryTarget = new int[total];
+		int[] entryIdx = new int[total];
+		int e = 0;
+		for (int t = 0; t < targetN; t++)
+			for (int i = 0; i < origData[t].length; i++)
+				if (!(hasBias && i % rows[t] == rows[t] - 1))
+				{
+					entryTarget[e] = t;
+					entryIdx[e ++] = i;
+				}
+
+		int checked = samples > 0 && samples < total ? samples : total;
+		if (checked < total)
+		{
+			// partial Fisher-Yates: the first 'checked' entries are a uniform sample
+			Random rand = new Random(seed);
+			for (int i = 0; i < checked; i++)
+			{
+				int j = i + rand.nextInt(total - i);
+				swap(entryTarget, i, j);
+				swap(entryIdx, i, j);
+			}
+		}
+		final float[] goldGrad = new float[checked];
+
+		// Replicas: the master is always worker 0
+		int workerN = hasParams ? Math.min(threads, checked) : 1;
+		ArrayList<DeepNet> replicas = new ArrayList<>();
+		replicas.add(net);
+		for (int r = 1; r < workerN; r++)
+			replicas.add(createReplica());
+
+		// Partition the entries into contiguous chunks
+		ArrayList<Callable<double[]>> tasks = new ArrayList<>();
+		int chunk = (checked + workerN - 1) / workerN;
+		for (int r = 0; r < workerN; r++)
+			tasks.add(new Worker(replicas.get(r), hasParams, EPS,
+					entryTarget, entryIdx, r * chunk, Math.min((r + 1) * chunk, checked),
+					origData, propGrad, goldGrad));
+
+		double sumErr = 0, sumSqErr = 0;
+		ExecutorService pool = Executors.newFixedThreadPool(workerN);
+		try
+		{
+			for (Future<double[]> f : pool.invokeAll(tasks))
+			{
+				double[] partial = f.get();
+				sumErr += partial[0];
+				sumSqErr += partial[1];
+			}
+		}
+		catch (InterruptedException | ExecutionException ex) {
+			throw new DeepException("Parallel grad check failed: " + ex.getMessage());
+		}
+		finally
+		{
+			pool.shutdown();
+			for (int r = 1; r < replicas.size(); r++)
+			{
+				replicas.get(r).destroy();
+				replicas.get(r).inlet.destroy();
+			}
+			// Leave the master at the point the gradient was taken
+			refeed(net, origData, hasParams);
+		}
+
+		if (verbose)
+		{
+			PP.pTitledSectionLine("Back-Prop vs Numerical Gold");
+			for (int i = 0; i < checked; i++)
+				PP.p(target(net, entryTarget[i], hasParams).name,
+						entryIdx[i], ":", propGrad[entryTarget[i]][entryIdx[i]], goldGrad[i]);
+		}
+
+		Report report = new Report();
+		report.eps = EPS;
+		report.checked = checked;
+		report.total = total;
+		double mean = sumErr / checked;
+		double halfWidth = 0;
+		if (checked < total && checked > 1)
+		{
+			double var = (sumSqErr / checked - mean * mean) * checked / (checked - 1);
+			// finite population correction: sampling without replacement
+			double fpc = Math.sqrt((double) (total - checked) / (total - 1));
+			halfWidth = zScore * Math.sqrt(Math.max(var, 0) / checked) * fpc;
+		}
+		float avgAbsVal = (hasParams ? totalGradAbsSum : totalDataAbsSum) / total;
+		report.avgAbsErr = (float) mean;
+		report.avgPercentErr = (float) (mean / avgAbsVal * 100);
+		report.percentErrBound = (float) ((mean + halfWidth) / avgAbsVal * 100);
+
+		PP.pTitledSectionLine("Error Report", "-", 10);
+		PP.p(report);
+		PP.p();
+		return report;
+	}
+
+	/**
+	 * Default perturbRatio 1e3f, not verbose
+	 */
+	public Report check()
+	{
+		return this.check(1e3f, false);
+	}
+
+	/**
+	 * Directional (randomized) gradient check: O(1) forward passes per probe, regardless of #params.
+	 * Every probe draws a Gaussian direction d over the whole ParamList (bias rows excluded)
+	 * and compares the symmetric finite difference (L(w + EPS*d) - L(w - EPS*d)) / 2EPS
+	 * against the backprop dot product grad . d.
+	 * The error of a probe is normalized by |grad| * |d|, the Cauchy-Schwarz bound of grad . d,
+	 * unless the gradient vanishes and the absolute error is reported instead.
+	 * Nets without parameters probe the inlet instead. Always runs on the master net.
+	 * @param probes number of random directions
+	 * @param perturbRatio default = 1e3f. perturb EPS = average_abs_val / perturbRatio
+	 * @param verbose show the directional derivatives of every probe
+	 * @return Report.checked is the number of probes and Report.total the number of entries.
+	 * Percent errors are relative to |grad| * |d|.
+	 */
+	public Report checkDirectional(int probes, float perturbRatio, boolean verbose)
+	{
+		if (probes <= 0)
+			throw new DeepException("Directional grad check needs at least one probe");
+		PP.pTitledSectionLine("DIRECTIONAL GRAD CHECK: " + net.name, "=", 10);
+
+		net.enableDebug();
+		net.setBias(hasBias);
+		net.setup(plan);
+		net.reset(); net.inlet.nextBatch();
+
+		ArrayList<ParamUnit> params = net.getParamList();
+		boolean hasParams = params.size() != 0;
+		if (!hasParams)
+			net.inlet.initGradient();
+
+		int targetN = hasParams ? params.size() : 1;
+		FloatMat[] orig = new FloatMat[targetN];
+		FloatMat[] grad = new FloatMat[targetN];
+		FloatMat[] dir = new FloatMat[targetN];
+
+		// Snapshot before backprop, which also applies the update in debug mode
+		for (int t = 0; t < targetN; t++)
+		{
+			FloatMat data = target(net, t, hasParams).data();
+			orig[t] = new FloatMat(data);
+			orig[t].copyFrom(data);
+		}
+
+		net.forwprop();
+		net.backprop();
+
+		int total = 0;
+		float totalDataAbsSum = 0, gradNormSq = 0;
+		for (int t = 0; t < targetN; t++)
+		{
+			DataUnit w = target(net, t, hasParams);
+			grad[t] = new FloatMat(w.data());
+			grad[t].copyFrom(w.gradient());
+			// dir is scratch here: abs_sum() mutates the mat
+			dir[t] = new FloatMat(w.data());
+			dir[t].copyFrom(orig[t]);
+			if (hasBias)
+			{
+				// bias rows are never checked
+				grad[t].fillLastRow0();
+				dir[t].fillLastRow0();
+			}
+			totalDataAbsSum += dir[t].abs_sum();
+			float norm = GpuBlas.norm(grad[t]);
+			gradNormSq += norm * norm;
+			total += orig[t].size() - (hasBias ? orig[t].row : 0);
+		}
+		final float EPS = Math.max(totalDataAbsSum / total / perturbRatio, 1e-3f);
+		float gradNorm = (float) Math.sqrt(gradNormSq);
+
+		// host generator: reproducible probes without disturbing Initializer's GpuRand
+		Random rand = new Random(seed);
+		float[][] dirHost = new float[targetN][];
+		for (int t = 0; t < targetN; t++)
+			dirHost[t] = new float[dir[t].size()];
+		double sumErr = 0, sumSqErr = 0, sumAbsErr = 0;
+		if (verbose)
+			PP.pTitledSectionLine("Back-Prop vs Numerical Directional Derivative");
+		for (int p = 0; p < probes; p++)
+		{
+			float propDeriv = 0, dirNormSq = 0;
+			for (int t = 0; t < targetN; t++)
+			{
+				for (int i = 0; i < dirHost[t].length; i++)
+					dirHost[t][i] = hasBias && i % dir[t].row == dir[t].row - 1 ?
+							0 : (float) rand.nextGaussian();
+				GpuUtil.hostToDeviceFloat(dirHost[t], dir[t].toDevice(), dirHost[t].length);
+				propDeriv += GpuBlas.dot(grad[t], dir[t]);
+				float norm = GpuBlas.norm(dir[t]);
+				dirNormSq += norm * norm;
+			}
+
+			float posResult = 0, negResult = 0;
+			for (int perturb : new int[] {-1, 1})
+			{
+				// Re-init everything as the exact gradient initialization, then perturb around the snapshot
+				net.reset(); net.inlet.nextBatch();
+				for (int t = 0; t < targetN; t++)
+					GpuBlas.add(orig[t], dir[t], target(net, t, hasParams).data(), 1, perturb * EPS);
+				net.forwprop();
+				float result = net.terminal.lossTotal();
+				if (perturb < 0) negResult = result; else posResult = result;
+			}
+			float goldDeriv = (posResult - negResult) / (2 * EPS);
+
+			double absErr = Math.abs(goldDeriv - propDeriv);
+			// a vanishing gradient has no scale: fall back to the absolute error
+			double scale = gradNorm * Math.sqrt(dirNormSq);
+			double err = scale > MIN_SCALE ? absErr / scale : absErr;
+			sumAbsErr += absErr;
+			sumErr += err;
+			sumSqErr += err * err;
+			if (verbose)
+				PP.p("probe", p, ":", propDeriv, goldDeriv);
+		}
+
+		// Leave the net at the point the gradient was taken
+		for (int t = 0; t < targetN; t++)
+		{
+			target(net, t, hasParams).data().copyFrom(orig[t]);
+			FloatMat.destroy(orig[t]);
+			FloatMat.destroy(grad[t]);
+			FloatMat.destroy(dir[t]);
+		}
+
+		Report report = new Report();
+		report.eps = EPS;
+		report.checked = probes;
+		report.total = total;
+		double mean = sumErr / probes;
+		double halfWidth = 0;
+		if (probes > 1)
+		{
+			double var = (sumSqErr / probes - mean * mean) * probes / (probes - 1);
+			halfWidth = zScore * Math.sqrt(Math.max(var, 0) / probes);
+		}
+		report.avgAbsErr = (float) (sumAbsErr / probes);
+		report.avgPercentErr = (float) (mean * 100);
+		report.percentErrBound = (float) ((mean + halfWidth) * 100);
+
+		PP.pTitledSectionLine("Error Report", "-", 10);
+		PP.p(report);
+		PP.p();
+		return report;
+	}
+
+	/**
+	 * Default perturbRatio 1e3f, not verbose
+	 */
+	public Report checkDirectional(int probes)
+	{
+		return this.checkDirectional(probes, 1e3f, false);
+	}
+
+	/**
+	 * Either the t-th ParamUnit or the inlet of a pure computing net
+	 */
+	private static DataUnit target(DeepNet net, int t, boolean hasParams)
+	{
+		return hasParams ? net.getParamList().get(t) : net.inlet;
+	}
+
+	/**
+	 * A replica reads its own copy of the master's batch,
+	 * and has exactly the master's parameters and fixed random state
+	 */
+	private DeepNet createReplica()
+	{
+		DeepNet replica = factory.create(new BatchCopyInlet(net.inlet));
+
+		// Reg is computed by the Worker against the master's plan:
+		// a fresh plan keeps the master's schemes linked to the master
+		LearningPlan replicaPlan = new LearningPlan(
+				plan.name + "_replica", plan.dir, plan.lrStart, 0, plan.totalSampleSize, plan.totalEpochs);
+
+		replica.enableDebug();
+		replica.setBias(hasBias);
+		synchronized (Initializer.class)
+		{
+			replica.setup(replicaPlan);
+		}
+		replica.setCalcLoss(true);
+
+		replica.getParamList().copyDataFrom(net.getParamList());
+		// Fixed random state isn't in the ParamList: projections and the seed of the sampled negatives
+		Iterator<ComputeUnit> masterIter = net.iterator();
+		for (ComputeUnit unit : replica)
+		{
+			ComputeUnit masterUnit = masterIter.next();
+			if (unit instanceof FourierProjectUnit)
+				((FourierProjectUnit) unit).copyProjectionFrom((FourierProjectUnit) masterUnit);
+			else if (unit instanceof FourierLinearUnit)
+				((FourierLinearUnit) unit).copyProjectionFrom((FourierLinearUnit) masterUnit);
+			else if (unit instanceof FastfoodProjectUnit)
+				((FastfoodProjectUnit) unit).setSeed(((FastfoodProjectUnit) masterUnit).getSeed());
+			else if (unit instanceof SampledSoftmaxTUnit)
+				((SampledSoftmaxTUnit) unit).setSeed(((SampledSoftmaxTUnit) masterUnit).getSeed());
+		}
+		return replica;
+	}
+
+	/**
+	 * Checks a contiguous range of entries on one replica
+	 * @return {sum of abs error, sum of squared abs error}
+	 */
+	private class Worker implements Callable<double[]>
+	{
+		private final DeepNet replica;
+		private final boolean hasParams;
+		private final float EPS;
+		private final int[] entryTarget, entryIdx;
+		private final int start, end;
+		private final float[][] origData, propGrad;
+		private final float[] goldGrad;
+
+		public Worker(DeepNet replica, boolean hasParams, float EPS,
+				int[] entryTarget, int[] entryIdx, int start, int end,
+				float[][] origData, float[][] propGrad, float[] goldGrad)
+		{
+			this.replica = replica;
+			this.hasParams = hasParams;
+			this.EPS = EPS;
+			this.entryTarget = entryTarget;
+			this.entryIdx = entryIdx;
+			this.start = start;
+			this.end = end;
+			this.origData = origData;
+			this.propGrad = propGrad;
+			this.goldGrad = goldGrad;
+		}
+
+		@Override
+		public double[] call()
+		{
+			double sumErr = 0, sumSqErr = 0;
+			for (int e = start; e < end; e++)
+			{
+				int t = entryTarget[e], idx = entryIdx[e];
+				float orig = origData[t][idx];
+
+				// +EPS and -EPS perturb, each from a freshly fed batch
+				refeed(replica, origData, hasParams);
+				target(replica, t, hasParams).data().setSingle(idx, orig + EPS);
+				float posResult = loss();
+				refeed(replica, origData, hasParams);
+				target(replica, t, hasParams).data().setSingle(idx, orig - EPS);
+				float negResult = loss();
+
+				goldGrad[e] = (posResult - negResult) / (2 * EPS);
+				double err = Math.abs(goldGrad[e] - propGrad[t][idx]);
+				sumErr += err;
+				sumSqErr += err * err;
+			}
+			return new double[] {sumErr, sumSqErr};
+		}
+
+		/**
+		 * Total loss = pure + reg, reg always computed with the master's plan
+		 */
+		private float loss()
+		{
+			replica.forwprop();
+			float loss = replica.terminal.lossPure();
+			if (hasParams && plan.hasReg())
+				loss += plan.regScheme.regLoss_(plan, replica.getParamList());
+			return loss;
+		}
+	}
+
+	/**
+	 * Reset and refeed the same batch, like DeepNet.gradCheck() does before every perturbed forward,
+	 * then put back the snapshot instead of re-initializing: replicas don't own the initers' random stream.
+	 * Every replica refeeds its own inlet and plan, then takes the master's batch position,
+	 * which keys the sampled negatives.
+	 */
+	private void refeed(DeepNet replica, float[][] origData, boolean hasParams)
+	{
+		replica.learningPlan.reset();
+		replica.clearLoss();
+		replica.inlet.reset();
+		replica.inlet.nextBatch();
+		replica.learningPlan.curEpoch = batchEpoch;
+		replica.learningPlan.doneSampleSize = batchDoneSize;
+		for (int t = 0; t < origData.length; t++)
+			GpuUtil.hostToDeviceFloat(origData[t], target(replica, t, hasParams).data().toDevice(), origData[t].length);
+	}
+
+	private static void swap(int[] arr, int i, int j)
+	{
+		int tmp = arr[i]; arr[i] = arr[j]; arr[j] = tmp;
+	}
+
+	/**
+	 * A replica's own copy of the master's current batch and gold, fed again on every nextBatch().
+	 * Taken after the master's forward pass, which loads the gold
+	 */
+	private static class BatchCopyInlet extends InletUnit
+	{
+		private static final long serialVersionUID = 1L;
+		private final int batch;
+
+		public BatchCopyInlet(InletUnit master)
+		{
+			super(master.name + "_copy", master.dim(), master.MaxBatchSize, true);
+			this.batch = master.batchSize;
+			copyBatch(master.data(), this.data);
+			if (master.goldMat != null)
+			{
+				goldMat = new FloatMat(master.goldMat.row, MaxBatchSize);
+				copyBatch(master.goldMat, goldMat);
+			}
+			if (master.goldLabels != null)
+			{
+				int[] labels = new int[batch];
+				Thrust.copy_device_to_host(master.goldLabels, labels, 0, batch);
+				goldLabels = Thrust.copy_host_to_device(labels);
+			}
+		}
+
+		private void copyBatch(FloatMat from, FloatMat to)
+		{
+			GpuBlas.copy(from.createColOffset(0, batch), to.createColOffset(0, batch));
+		}
+
+		@Override
+		protected int nextBatch_() {	return batch;	}
+
+		@Override
+		public void nextGold() { }
+
+		@Override
+		public void prepareNextEpoch() { }
+
+		@Override
+		public void destroy()
+		{
+			super.destroy();
+			FloatMat.destroy(goldMat);
+			if (goldLabels != null)
+				Thrust.free_device(goldLabels);
+			goldMat = null;
+			goldLabels = null;
+		}
+	}
+}
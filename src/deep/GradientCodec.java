@@ -0,0 +1,186 @@
+package deep;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Lossy compression of a gradient matrix for data-parallel exchange, with error feedback:
+ * the quantization error of every message is kept as a residual and added back
+ * to the next gradient of the same key, so that no gradient is ever lost, only delayed.
+ * Messages are self-describing byte arrays: any exchange path can ship them,
+ * e.g. {@link utils.RingAllReducer#allGather(byte[])}, and every receiver
+ * decodes and sums them in the same order.
+ * @see DistTrainer#setCodec(GradientCodec)
+ */
+public abstract class GradientCodec
+{
+	// error feedback residual of every key
+	private final HashMap<Integer, float[]> residuals = new HashMap<>();
+
+	/**
+	 * Quantize grad + residual, then keep the new quantization error as residual.
+	 * @param key identifies the gradient, e.g. the layer index. One residual per key.
+	 * @param grad column major row * col, not modified
+	 * @return compressed message
+	 */
+	public byte[] encode(int key, float[] grad, int row, int col)
+	{
+		int size = row * col;
+		float[] residual = residuals.get(key);
+		if (residual == null)
+		{
+			residual = new float[size];
+			residuals.put(key, residual);
+		}
+		else if (residual.length != size)
+			throw new DeepException("Gradient size of key " + key + " changed");
+
+		// residual becomes the error-compensated gradient, then the new error
+		for (int i = 0; i < size; i++)
+			residual[i] += grad[i];
+		ByteBuffer msg = ByteBuffer.allocate(8 + messageSize(row, col));
+		msg.putInt(row).putInt(col);
+		encode_(residual, row, col, msg);
+
+		// subtract what the receivers will decode
+		msg.flip();
+		decode(msg, residual, -1);
+		return msg.array();
+	}
+
+	/**
+	 * Decode a message and add it onto 'out'
+	 */
+	public void decodeAdd(byte[] msg, float[] out)
+	{
+		decode(ByteBuffer.wrap(msg), out, 1);
+	}
+
+	private void decode(ByteBuffer msg, float[] out, float sign)
+	{
+		int row = msg.getInt(), col = msg.getInt();
+		if (out.length != row * col)
+			throw new DeepException("Message is " + row + " * " + col + " but out has " + out.length);
+		decode_(msg, row, col, out, sign);
+	}
+
+	/**
+	 * Drop all residuals
+	 */
+	public void reset() {	residuals.clear();	}
+
+	/**
+	 * @return bytes of the payload, excluding the (row, col) header
+	 */
+	protected abstract int messageSize(int row, int col);
+
+	/**
+	 * Quantize x into msg
+	 */
+	protected abstract void encode_(float[] x, int row, int col, ByteBuffer msg);
+
+	/**
+	 * out += sign * decoded msg
+	 */
+	protected abstract void decode_(ByteBuffer msg, int row, int col, float[] out, float sign);
+
+	// ******************** Codecs ********************/
+	/**
+	 * 1-bit SGD: every entry is reduced to its sign. Each column is reconstructed with
+	 * two values: the mean of its non-negative entries and the mean of its negative entries.
+	 * ~32x smaller for tall columns.
+	 */
+	public static class OneBitCodec extends GradientCodec
+	{
+		@Override
+		protected int messageSize(int row, int col)
+		{
+			return col * (8 + (row + 7) / 8);
+		}
+
+		@Override
+		protected void encode_(float[] x, int row, int col, ByteBuffer msg)
+		{
+			byte[] bits = new byte[(row + 7) / 8];
+			for (int c = 0; c < col; c++)
+			{
+				int base = c * row;
+				float posSum = 0, negSum = 0;
+				int posN = 0;
+				Arrays.fill(bits, (byte) 0);
+				for (int i = 0; i < row; i++)
+				{
+					float v = x[base + i];
+					if (v >= 0)
+					{
+						posSum += v; ++ posN;
+						bits[i >> 3] |= 1 << (i & 7);
+					}
+					else
+						negSum += v;
+				}
+				msg.putFloat(posN == 0 ? 0 : posSum / posN);
+				msg.putFloat(posN == row ? 0 : negSum / (row - posN));
+				msg.put(bits);
+			}
+		}
+
+		@Override
+		protected void decode_(ByteBuffer msg, int row, int col, float[] out, float sign)
+		{
+			byte[] bits = new byte[(row + 7) / 8];
+			for (int c = 0; c < col; c++)
+			{
+				int base = c * row;
+				float pos = sign * msg.getFloat(), neg = sign * msg.getFloat();
+				msg.get(bits);
+				for (int i = 0; i < row; i++)
+					out[base + i] += (bits[i >> 3] & (1 << (i & 7))) != 0 ? pos : neg;
+			}
+		}
+	}
+
+	/**
+	 * Every entry is rounded to one of 256 evenly spaced levels between its column's min and max.
+	 * ~4x smaller.
+	 */
+	public static class EightBitCodec extends GradientCodec
+	{
+		@Override
+		protected int messageSize(int row, int col)
+		{
+			return col * (8 + row);
+		}
+
+		@Override
+		protected void encode_(float[] x, int row, int col, ByteBuffer msg)
+		{
+			for (int c = 0; c < col; c++)
+			{
+				int base = c * row;
+				float min = Float.MAX_VALUE, max = - Float.MAX_VALUE;
+				for (int i = 0; i < row; i++)
+				{
+					min = Math.min(min, x[base + i]);
+					max = Math.max(max, x[base + i]);
+				}
+				float step = (max - min) / 255;
+				msg.putFloat(min).putFloat(step);
+				for (int i = 0; i < row; i++)
+					msg.put((byte) (step == 0 ? 0 : Math.round((x[base + i] - min) / step)));
+			}
+		}
+
+		@Override
+		protected void decode_(ByteBuffer msg, int row, int col, float[] out, float sign)
+		{
+			for (int c = 0; c < col; c++)
+			{
+				int base = c * row;
+				float min = msg.getFloat(), step = msg.getFloat();
+				for (int i = 0; i < row; i++)
+					out[base + i] += sign * (min + (msg.get() & 0xFF) * step);
+			}
+		}
+	}
+}
@@ -0,0 +1,556 @@
+package deep;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import utils.*;
+import gpu.*;
+import deep.units.*;
+
+/**
+ * A trained DeepNet compiled for forward-only inference.
+ * Keeps nothing of the training object graph: no gradient, LearningPlan,
+ * param list copies or loss bookkeeping. Only the (folded) weights and a plan of
+ * ping-pong activation buffers: a GEMM writes to the other buffer,
+ * an element-wise activation runs in place.
+ *
+ * Bias handling is folded into the weights: the bias row of every activation
+ * holds a known constant 'c' (1 after a linear layer, scalor * f(c) after an activation),
+ * so the next weight matrix divides its bias column by 'c' instead of calling fillLastRow1(),
+ * and its last row is set to produce 1 again.
+ *
+ * Immutable after construction and safe for concurrent callers:
+ * each call borrows its own buffers from a pool. Kernels from all callers still
+ * go through the shared cuBLAS handle and device.
+ * Supports chain nets of LinearUnit, FourierProjectUnit and ElementComputeUnit.
+ * The output is the terminal unit's input (e.g. the logits before softmax),
+ * with the bias row (if any) set to 0.
+ * Can be exported to a flat file that loads by memory mapping, see {@link #export(String)}.
+ */
+public class InferenceEngine
+{
+	// buffer ids: the caller's input and output, and the two ping-pong buffers
+	private static final int IN = -1, PING = 0, PONG = 1, OUT = 2;
+
+	private final Step[] steps;
+	// where each step writes. The first step reads IN
+	private final int[] dst;
+	private final int[] bufferRows = new int[2];
+	private final boolean zeroBiasRow;
+	public final int inDim;
+	public final int outDim;
+	public final int MaxBatchSize;
+	private final ConcurrentLinkedQueue<Buffers> freeBuffers = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Compile a trained net. The net must be setup, and can be destroyed afterwards.
+	 * @param MaxBatchSize max number of columns per call
+	 */
+	public InferenceEngine(DeepNet net, int MaxBatchSize)
+	{
+		this(compile(net), MaxBatchSize);
+	}
+
+	private InferenceEngine(Compiled compiled, int MaxBatchSize)
+	{
+		if (compiled.steps.isEmpty())
+			throw new DeepException("Nothing to compile");
+		this.steps = compiled.steps.toArray(new Step[compiled.steps.size()]);
+		this.zeroBiasRow = compiled.zeroBiasRow;
+		this.inDim = compiled.inDim;
+		this.outDim = MiscUtil.get(steps, -1).outDim;
+		this.MaxBatchSize = MaxBatchSize;
+
+		// Plan the ping-pong buffers
+		this.dst = new int[steps.length];
+		int src = IN;
+		for (int i = 0; i < dst.length; i++)
+		{
+			if (i == dst.length - 1)
+				dst[i] = OUT;
+			else if (steps[i] instanceof ElementStep && src != IN)
+				dst[i] = src;
+			else
+				dst[i] = src == PING ? PONG : PING;
+
+			if (dst[i] != OUT)
+				bufferRows[dst[i]] = Math.max(bufferRows[dst[i]], steps[i].outDim);
+			src = dst[i];
+		}
+	}
+
+	// everything the engine is built from, before buffer planning
+	private static class Compiled
+	{
+		final ArrayList<Step> steps = new ArrayList<>();
+		boolean zeroBiasRow = false;
+		int inDim;
+	}
+
+	private static Compiled compile(DeepNet net)
+	{
+		if (net instanceof DagNet)
+			throw new DeepException("InferenceEngine only supports chain nets");
+		if (net.head == null || net.head.input == null)
+			throw new DeepException("DeepNet " + net.name + " must be setup before compiling for inference");
+
+		Compiled compiled = new Compiled();
+		compiled.inDim = net.head.input.dim();
+		// Value of the current activation's bias row, NaN if there's none.
+		// The caller's input must have 1 in its bias row, like the inlet data
+		float bias = net.head.hasBias() ? 1 : Float.NaN;
+
+		for (ComputeUnit unit : net)
+		{
+			if (unit instanceof TerminalUnit)
+			{
+				compiled.zeroBiasRow = !Float.isNaN(bias) && bias != 0;
+				break;
+			}
+
+			// the class-factored W isn't a plain linear map to the labels
+			if (unit instanceof LinearUnit && !(unit instanceof ClassFactoredLinearUnit)
+					|| unit instanceof FourierProjectUnit)
+			{
+				if (unit instanceof LinearUnit)
+					((LinearUnit) unit).W.normalize();
+				FloatMat W = unit instanceof LinearUnit ? ((LinearUnit) unit).W.data() :
+						((FourierProjectUnit) unit).isRegenerated() ?
+						((FourierProjectUnit) unit).genProjection() :
+						((FourierProjectUnit) unit).getProjection();
+				if (!unit.hasBias() && !Float.isNaN(bias))
+					throw new DeepException(unit.name +
+							" has no bias but its input has: mixed bias settings aren't supported");
+				boolean isLast = unit.next instanceof TerminalUnit;
+				compiled.steps.add(ParamStep.fold(W, unit.hasBias(), bias, isLast));
+				// regenerated projectors are materialized just for folding
+				if (unit instanceof FourierProjectUnit && ((FourierProjectUnit) unit).isRegenerated())
+					W.destroy();
+				bias = !unit.hasBias() ? Float.NaN : isLast ? 0 : 1;
+			}
+			else if (unit instanceof ElementComputeUnit)
+			{
+				ElementComputeUnit element = (ElementComputeUnit) unit;
+				compiled.steps.add(new ElementStep(element, unit.output.dim()));
+				if (!Float.isNaN(bias))
+					bias = probe(element, bias);
+			}
+			else
+				throw new DeepException("InferenceEngine doesn't support "
+							+ unit.getClass().getSimpleName() + " " + unit.name);
+		}
+		return compiled;
+	}
+
+	/**
+	 * Default MaxBatchSize: the net's inlet
+	 */
+	public InferenceEngine(DeepNet net)
+	{
+		this(net, net.inlet.MaxBatchSize);
+	}
+
+	/**
+	 * @param input inDim * batchSize, batchSize <= MaxBatchSize.
+	 * If the first unit has bias, the last row must be 1. Never modified.
+	 * @param output outDim * batchSize
+	 * @return output
+	 */
+	public FloatMat infer(FloatMat input, FloatMat output)
+	{
+		int batchSize = input.col;
+		if (input.row != inDim || output.row != outDim || output.col != batchSize)
+			throw new DeepException(String.format(
+					"Inference expects input %d * b and output %d * b, got %d * %d and %d * %d",
+					inDim, outDim, input.row, input.col, output.row, output.col));
+		if (batchSize > MaxBatchSize)
+			throw new DeepException("Batch size " + batchSize + " exceeds MaxBatchSize " + MaxBatchSize);
+
+		Buffers buffers = acquire();
+		try {
+			run(input, output, buffers);
+		}
+		finally {
+			freeBuffers.offer(buffers);
+		}
+		return output;
+	}
+
+	/**
+	 * Host version
+	 * @param input column-major inDim * batchSize
+	 * @return column-major outDim * batchSize
+	 */
+	public float[] infer(float[] input, int batchSize)
+	{
+		if (batchSize > MaxBatchSize || input.length < inDim * batchSize)
+			throw new DeepException("Host input too short or batch size "
+						+ batchSize + " exceeds MaxBatchSize " + MaxBatchSize);
+		Buffers buffers = acquire();
+		try {
+			FloatMat in = buffers.in.createColOffset(0, batchSize);
+			FloatMat out = buffers.out.createColOffset(0, batchSize);
+			GpuUtil.hostToDeviceFloat(input, in.toDevice(), in.size());
+			run(in, out, buffers);
+			return GpuUtil.deviceToHostFloat(out.toDevice(), out.size());
+		}
+		finally {
+			freeBuffers.offer(buffers);
+		}
+	}
+
+	private void run(FloatMat input, FloatMat output, Buffers buffers)
+	{
+		int batchSize = input.col;
+		FloatMat src = input;
+		for (int i = 0; i < steps.length; i++)
+		{
+			FloatMat out = dst[i] == OUT ?
+					output : buffers.view(dst[i], steps[i].outDim, batchSize);
+			steps[i].forward(src, out);
+			src = out;
+		}
+		if (zeroBiasRow)
+			output.fillLastRow0();
+	}
+
+	/**
+	 * Release the weights and all pooled buffers.
+	 * Must not be called while any infer() is running.
+	 */
+	public void destroy()
+	{
+		for (Step step : steps)
+			step.destroy();
+		Buffers buffers;
+		while ((buffers = freeBuffers.poll()) != null)
+			buffers.destroy();
+	}
+
+	/**
+	 * Pooled per call: a concurrent caller gets its own set
+	 */
+	private Buffers acquire()
+	{
+		Buffers buffers = freeBuffers.poll();
+		return buffers != null ? buffers : new Buffers();
+	}
+
+	/**
+	 * scalor * f(x), evaluated by the unit's own kernel
+	 */
+	private static float probe(ElementComputeUnit unit, float x)
+	{
+		FloatMat probe = new FloatMat(new float[] {x}, 1, 1);
+		probe.toDevice();
+		unit.forward_element(probe, probe, unit.getScalor());
+		float y = probe.toHostArray(true)[0];
+		probe.destroy();
+		return y;
+	}
+
+	// ******************** Flat export ********************/
+	/*
+	 * One file, little-endian, no Java serialization:
+	 * header: magic "BABELINF", int version, int inDim, int MaxBatchSize, int zeroBiasRow, int #steps
+	 * each step: int kind, int outDim, then
+	 * 		PARAM: int row, int col, int fillBias, long blob offset
+	 * 		ELEMENT: float scalor, int name length, UTF-8 ElementComputeUnit class name
+	 * blobs: folded weights, column-major, each aligned to 64 bytes
+	 */
+	private static final byte[] Magic = "BABELINF".getBytes(StandardCharsets.US_ASCII);
+	private static final int Version = 1;
+	private static final int Alignment = 64;
+	private static final int PARAM = 0, ELEMENT = 1;
+
+	/**
+	 * Write the compiled engine to a flat file
+	 * @see #load(String, int)
+	 */
+	public void export(String filePath) throws IOException
+	{
+		// header size first, to place the blobs
+		int headerBytes = Magic.length + 5 * 4;
+		for (Step step : steps)
+			headerBytes += 2 * 4 + (step instanceof ParamStep ?
+						3 * 4 + 8 : 2 * 4 + ((ElementStep) step).className().length);
+		long[] offsets = new long[steps.length];
+		long end = align(headerBytes);
+		for (int i = 0; i < steps.length; i++)
+			if (steps[i] instanceof ParamStep)
+			{
+				offsets[i] = end;
+				end = align(end + 4L * ((ParamStep) steps[i]).W.size());
+			}
+
+		ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(Magic).putInt(Version).putInt(inDim).putInt(MaxBatchSize)
+			.putInt(zeroBiasRow ? 1 : 0).putInt(steps.length);
+		for (int i = 0; i < steps.length; i++)
+		{
+			header.putInt(steps[i] instanceof ParamStep ? PARAM : ELEMENT).putInt(steps[i].outDim);
+			if (steps[i] instanceof ParamStep)
+			{
+				ParamStep step = (ParamStep) steps[i];
+				header.putInt(step.W.row).putInt(step.W.col)
+					.putInt(step.fillBias ? 1 : 0).putLong(offsets[i]);
+			}
+			else
+			{
+				ElementStep step = (ElementStep) steps[i];
+				byte[] name = step.className();
+				header.putFloat(step.scalor).putInt(name.length).put(name);
+			}
+		}
+
+		RandomAccessFile file = new RandomAccessFile(filePath, "rw");
+		try {
+			file.setLength(end);
+			FileChannel channel = file.getChannel();
+			header.flip();
+			writeFully(channel, header, 0);
+			for (int i = 0; i < steps.length; i++)
+				if (steps[i] instanceof ParamStep)
+				{
+					FloatMat W = ((ParamStep) steps[i]).W;
+					float[] w = GpuUtil.deviceToHostFloat(W.toDevice(), W.size());
+					ByteBuffer blob = ByteBuffer.allocate(4 * w.length).order(ByteOrder.LITTLE_ENDIAN);
+					blob.asFloatBuffer().put(w);
+					writeFully(channel, blob, offsets[i]);
+				}
+		}
+		finally {
+			FileUtil.quietClose(file);
+		}
+	}
+
+	/**
+	 * Memory-map a file written by {@link #export(String)}: each blob goes
+	 * straight from the mapped pages to the device, nothing is deserialized.
+	 * @param MaxBatchSize non-positive to use the exported one
+	 */
+	public static InferenceEngine load(String filePath, int MaxBatchSize) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(filePath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+						0, Math.min(channel.size(), Integer.MAX_VALUE));
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			byte[] magic = new byte[Magic.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, Magic) || header.getInt() != Version)
+				throw new DeepException(filePath + " isn't a version " + Version + " flat inference model");
+
+			Compiled compiled = new Compiled();
+			compiled.inDim = header.getInt();
+			int exportedMaxBatchSize = header.getInt();
+			compiled.zeroBiasRow = header.getInt() != 0;
+			int stepN = header.getInt();
+			for (int i = 0; i < stepN; i++)
+			{
+				int kind = header.getInt(), outDim = header.getInt();
+				if (kind == PARAM)
+				{
+					int row = header.getInt(), col = header.getInt();
+					boolean fillBias = header.getInt() != 0;
+					long offset = header.getLong();
+					FloatMat W = new FloatMat(row, col, false);
+					uploadBlob(channel, offset, W);
+					compiled.steps.add(new ParamStep(W, fillBias));
+				}
+				else
+				{
+					float scalor = header.getFloat();
+					byte[] name = new byte[header.getInt()];
+					header.get(name);
+					compiled.steps.add(new ElementStep(
+							newElementUnit(new String(name, StandardCharsets.UTF_8), scalor), outDim));
+				}
+			}
+			return new InferenceEngine(compiled,
+					MaxBatchSize > 0 ? MaxBatchSize : exportedMaxBatchSize);
+		}
+		finally {
+			FileUtil.quietClose(file);
+		}
+	}
+
+	/**
+	 * Default: the exported MaxBatchSize
+	 */
+	public static InferenceEngine load(String filePath) throws IOException
+	{
+		return load(filePath, 0);
+	}
+
+	private static long align(long pos)
+	{
+		return (pos + Alignment - 1) / Alignment * Alignment;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException
+	{
+		while (buf.hasRemaining())
+			pos += channel.write(buf, pos);
+	}
+
+	private static void uploadBlob(FileChannel channel, long offset, FloatMat W) throws IOException
+	{
+		FloatBuffer blob = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * W.size())
+				.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+			GpuUtil.hostToDeviceFloat(blob, W.toDevice(), W.size());
+		else // the device expects native order
+		{
+			float[] w = new float[W.size()];
+			blob.get(w);
+			GpuUtil.hostToDeviceFloat(w, W.toDevice(), W.size());
+		}
+	}
+
+	private static ElementComputeUnit newElementUnit(String className, float scalor)
+	{
+		try {
+			return Class.forName(className)
+					.asSubclass(ElementComputeUnit.class)
+					.getConstructor(String.class, InletUnit.class, float.class)
+					.newInstance(className, null, scalor);
+		}
+		catch (Exception e) {
+			throw new DeepException("Cannot construct activation " + className + ": " + e);
+		}
+	}
+
+	// ******************** Steps ********************/
+	private static abstract class Step
+	{
+		final int outDim;
+		Step(int outDim) {	this.outDim = outDim;	}
+		abstract void forward(FloatMat in, FloatMat out);
+		void destroy() { }
+	}
+
+	/**
+	 * out = W * in with bias folded into W
+	 */
+	private static class ParamStep extends Step
+	{
+		// dividing the bias column by a smaller constant loses too much precision
+		static final float MIN_FOLD_BIAS = 1e-2f;
+		final FloatMat W;
+		// the input's bias row can't be folded: fill it like training does
+		final boolean fillBias;
+
+		ParamStep(FloatMat W, boolean fillBias)
+		{
+			super(W.row);
+			this.W = W;
+			this.fillBias = fillBias;
+		}
+
+		/**
+		 * @param bias value of the input's bias row
+		 * @param isLast true to zero the output's bias row, as the terminal would
+		 */
+		static ParamStep fold(FloatMat trainedW, boolean hasBias, float bias, boolean isLast)
+		{
+			int row = trainedW.row, col = trainedW.col;
+			float[] w = GpuUtil.deviceToHostFloat(trainedW.toDevice(), row * col);
+			boolean fillBias = hasBias &&
+					(Float.isNaN(bias) || Float.isInfinite(bias) || Math.abs(bias) < MIN_FOLD_BIAS);
+			if (hasBias)
+			{
+				float divisor = fillBias ? 1 : bias;
+				// bias column
+				for (int r = 0; r < row; r++)
+					w[(col - 1) * row + r] /= divisor;
+				// last row: 0 * everything + 1/c * c = 1, the next bias constant
+				for (int c = 0; c < col; c++)
+					w[c * row + row - 1] = 0;
+				if (!isLast)
+					w[(col - 1) * row + row - 1] = 1 / divisor;
+			}
+			FloatMat W = new FloatMat(row, col, false);
+			GpuUtil.hostToDeviceFloat(w, W.toDevice(), row * col);
+			return new ParamStep(W, fillBias);
+		}
+
+		@Override
+		void forward(FloatMat in, FloatMat out)
+		{
+			if (fillBias)
+				in.fillLastRow1();
+			GpuBlas.mult(W, in, out);
+		}
+
+		@Override
+		void destroy() {	W.destroy();	}
+	}
+
+	/**
+	 * Element-wise activation, in place when possible
+	 */
+	private static class ElementStep extends Step
+	{
+		// only its stateless forward_element() is used
+		final ElementComputeUnit unit;
+		final float scalor;
+
+		ElementStep(ElementComputeUnit unit, int outDim)
+		{
+			super(outDim);
+			this.unit = unit;
+			this.scalor = unit.getScalor();
+		}
+
+		@Override
+		void forward(FloatMat in, FloatMat out)
+		{
+			unit.forward_element(in, out, scalor);
+		}
+
+		byte[] className()
+		{
+			return unit.getClass().getName().getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Ping-pong activations plus staging for the host version of infer()
+	 */
+	private class Buffers
+	{
+		final FloatMat[] pingPong = new FloatMat[2];
+		final FloatMat in, out;
+
+		Buffers()
+		{
+			for (int b = 0; b < 2; b++)
+				pingPong[b] = bufferRows[b] > 0 ?
+						new FloatMat(bufferRows[b], MaxBatchSize, false) : null;
+			in = new FloatMat(inDim, MaxBatchSize, false);
+			out = new FloatMat(outDim, MaxBatchSize, false);
+		}
+
+		/**
+		 * Contiguous rows * batchSize at the start of a buffer
+		 */
+		FloatMat view(int b, int rows, int batchSize)
+		{
+			return pingPong[b].createOffset(0, rows * batchSize, rows);
+		}
+
+		void destroy()
+		{
+			for (FloatMat mat : pingPong)
+				FloatMat.destroy(mat);
+			in.destroy();
+			out.destroy();
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package deep;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * In-process dynamic batching in front of an InferenceEngine.
+ * Small concurrent requests (e.g. one utterance chunk each) are coalesced into one
+ * batch of at most MaxBatchSize columns, or whatever has arrived when the oldest
+ * request in the batch hits its deadline. One forward pass, then the result columns
+ * are scattered back to each caller's Future.
+ * A request never waits more than maxDelay for others to join it.
+ */
+public class InferenceServer
+{
+	private final InferenceEngine engine;
+	private final long maxDelayNanos;
+	private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+	private final Thread dispatcher;
+	private volatile boolean running = true;
+	// 'running' only turns false under this lock, so nothing is enqueued after the dispatcher's last poll
+	private final Object submitLock = new Object();
+
+	// ******************** Metrics ********************/
+	// latencies of the most recent requests, in nanoseconds
+	private static final int LatencyWindow = 1 << 14;
+	private final long[] latencies = new long[LatencyWindow];
+	private long requestCount = 0;
+	private long batchCount = 0;
+	private long filledCols = 0;
+
+	/**
+	 * Starts the dispatcher thread right away
+	 * @param maxDelay max time a request waits for its batch to fill up
+	 */
+	public InferenceServer(InferenceEngine engine, long maxDelay, TimeUnit unit)
+	{
+		this.engine = engine;
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+		this.dispatcher = new Thread(new Runnable()
+		{
+			@Override
+			public void run() {	dispatch();	}
+		}, "InferenceServer");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * @param input column-major inDim * k, 1 <= k <= MaxBatchSize
+	 * @return column-major outDim * k
+	 */
+	public Future<float[]> submit(float[] input)
+	{
+		int inDim = engine.inDim;
+		if (input.length == 0 || input.length % inDim != 0)
+			throw new DeepException("Request length " + input.length + " isn't a multiple of inDim " + inDim);
+		if (input.length / inDim > engine.MaxBatchSize)
+			throw new DeepException("Request of " + input.length / inDim
+					+ " columns exceeds MaxBatchSize " + engine.MaxBatchSize);
+
+		Request request = new Request(input, input.length / inDim);
+		synchronized (submitLock)
+		{
+			if (!running)
+				throw new DeepException("InferenceServer is shut down");
+			queue.add(request);
+		}
+		return request;
+	}
+
+	/**
+	 * Blocking version of {@link #submit(float[])}
+	 */
+	public float[] infer(float[] input) throws InterruptedException, ExecutionException
+	{
+		return submit(input).get();
+	}
+
+	/**
+	 * Serve every request already submitted, then stop.
+	 * The engine isn't destroyed: it belongs to the caller.
+	 */
+	public void shutdown() throws InterruptedException
+	{
+		synchronized (submitLock)
+		{
+			running = false;
+		}
+		dispatcher.join();
+	}
+
+	// ******************** Dispatch ********************/
+	private void dispatch()
+	{
+		int maxBatch = engine.MaxBatchSize;
+		float[] batchInput = new float[engine.inDim * maxBatch];
+		ArrayList<Request> batch = new ArrayList<>();
+		// didn't fit in the previous batch: opens the next one
+		Request carry = null;
+		try {
+			while (running || carry != null || !queue.isEmpty())
+			{
+				Request first = carry != null ? carry : queue.poll(10, TimeUnit.MILLISECONDS);
+				carry = null;
+				if (first == null)	continue;
+
+				batch.add(first);
+				int cols = first.cols;
+				long deadline = first.arrival + maxDelayNanos;
+				while (cols < maxBatch)
+				{
+					long wait = deadline - System.nanoTime();
+					// past the deadline: still take whatever is already queued
+					Request next = wait > 0 ?
+							queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null)	break;
+					if (cols + next.cols > maxBatch)
+					{
+						carry = next;
+						break;
+					}
+					batch.add(next);
+					cols += next.cols;
+				}
+				runBatch(batch, cols, batchInput);
+				batch.clear();
+			}
+		}
+		catch (InterruptedException e) {
+			synchronized (submitLock)
+			{
+				running = false;
+			}
+			DeepException failure = new DeepException("InferenceServer interrupted");
+			if (carry != null)	carry.fail(failure);
+			for (Request request : batch)
+				request.fail(failure);
+			Request left;
+			while ((left = queue.poll()) != null)
+				left.fail(failure);
+		}
+	}
+
+	private void runBatch(ArrayList<Request> batch, int cols, float[] batchInput)
+	{
+		int inDim = engine.inDim, outDim = engine.outDim;
+		try {
+			int offset = 0;
+			for (Request request : batch)
+			{
+				System.arraycopy(request.input, 0, batchInput, offset * inDim, request.input.length);
+				offset += request.cols;
+			}
+			float[] output = engine.infer(batchInput, cols);
+			offset = 0;
+			for (Request request : batch)
+			{
+				request.complete(Arrays.copyOfRange(output,
+						offset * outDim, (offset + request.cols) * outDim));
+				offset += request.cols;
+			}
+		}
+		// anything, e.g. an OutOfMemoryError, fails this batch only: the dispatcher keeps serving
+		catch (Throwable e) {
+			for (Request request : batch)
+				request.fail(e);
+		}
+		record(batch, cols);
+	}
+
+	/**
+	 * A Future completed by the dispatcher
+	 */
+	private static class Request extends FutureTask<float[]>
+	{
+		final float[] input;
+		final int cols;
+		final long arrival = System.nanoTime();
+		long latency;
+
+		Request(float[] input, int cols)
+		{
+			super(NeverCalled);
+			this.input = input;
+			this.cols = cols;
+		}
+
+		void complete(float[] output)
+		{
+			this.latency = System.nanoTime() - arrival;
+			set(output);
+		}
+
+		void fail(Throwable e)
+		{
+			this.latency = System.nanoTime() - arrival;
+			setException(e);
+		}
+	}
+
+	private static final Callable<float[]> NeverCalled = new Callable<float[]>()
+	{
+		@Override
+		public float[] call() {	throw new IllegalStateException("Completed by InferenceServer only");	}
+	};
+
+	// ******************** Metrics ********************/
+	private synchronized void record(ArrayList<Request> batch, int cols)
+	{
+		++ batchCount;
+		filledCols += cols;
+		for (Request request : batch)
+			latencies[(int) (requestCount ++ % LatencyWindow)] = request.latency;
+	}
+
+	/**
+	 * Snapshot of the server metrics. 
+	 * A batch is recorded right after its Futures complete.
+	 */
+	public static class Metrics
+	{
+		public final long requests;
+		public final long batches;
+		// over the most recent requests, milliseconds
+		public final double p50Latency;
+		public final double p99Latency;
+		// mean fraction of MaxBatchSize used per forward pass
+		public final double batchFill;
+
+		private Metrics(long requests, long batches, double p50Latency, double p99Latency, double batchFill)
+		{
+			this.requests = requests;
+			this.batches = batches;
+			this.p50Latency = p50Latency;
+			this.p99Latency = p99Latency;
+			this.batchFill = batchFill;
+		}
+
+		public String toString()
+		{
+			return String.format("requests %d, batches %d, latency p50 %.3f ms p99 %.3f ms, batch fill %.1f%%",
+					requests, batches, p50Latency, p99Latency, 100 * batchFill);
+		}
+	}
+
+	public synchronized Metrics metrics()
+	{
+		int n = (int) Math.min(requestCount, LatencyWindow);
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		return new Metrics(requestCount, batchCount,
+				percentile(sorted, 0.5), percentile(sorted, 0.99),
+				batchCount == 0 ? 0 : (double) filledCols / (batchCount * engine.MaxBatchSize));
+	}
+
+	/**
+	 * Nearest rank, in milliseconds
+	 */
+	private static double percentile(long[] sorted, double p)
+	{
+		if (sorted.length == 0)	return 0;
+		int rank = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(rank, 0)] / 1e6;
+	}
+
+	public synchronized void resetMetrics()
+	{
+		requestCount = batchCount = filledCols = 0;
+	}
+}
@@ -2,6 +2,7 @@ package deep;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Random;
 
 import utils.*;
 import gpu.*;
@@ -37,7 +38,29 @@ public abstract class Initializer implements Serializable
 	}
 	
 	
+	/**
+	 * Counter-based init of rows [rowOffset, rowOffset + tile.row) of a bigger matrix
+	 * that has tile.col columns and is never stored: entry (row, col) of that matrix
+	 * depends only on (seed, row, col), so any tile can be regenerated at any time.
+	 * Doesn't touch the bias row.
+	 * Only supported by the uniform, fill, distribution and single-kernel projection initers.
+	 */
+	public void initTile(FloatMat tile, long seed, int rowOffset)
+	{
+		throw new DeepException("This initializer can't regenerate tiles from a seed");
+	}
+	
+	/**
+	 * Counter of the first entry of the tile
+	 */
+	private static long tileCounter(FloatMat tile, int rowOffset)
+	{
+		return (long) rowOffset * tile.col;
+	}
+	
 	private static final GpuRand gRand = new GpuRand(GpuRand.SEED);
+	// seeds the units that regenerate their random state from a seed, in construction order
+	private static final Random seeder = new Random(GpuRand.SEED);
 	
 	/**
 	 * Does absolutely nothing
@@ -50,20 +73,29 @@ public abstract class Initializer implements Serializable
         	};
 	
 	/**
-	 * Reset random generator to default seed
+	 * Reset random generator to default seed, along with the unit seeds
+	 * @see #nextSeed()
 	 */
 	public static void resetRand()
 	{
-		gRand.resetSeed(GpuRand.SEED);
+		resetRand(GpuRand.SEED);
 	}
 	
 	/**
-	 * Reset random generator to specified seed
+	 * Reset random generator to specified seed, along with the unit seeds
 	 */
 	public static void resetRand(long seed)
 	{
 		gRand.resetSeed(seed);
+		seeder.setSeed(seed);
 	}
+	
+	/**
+	 * Seed of the next unit that regenerates its random state from a seed, 
+	 * e.g. a random projection or a negative sampler. 
+	 * Successive units get different seeds, reproducible from the last resetRand()
+	 */
+	public static long nextSeed() {	return seeder.nextLong();	}
 
 	/**
 	 * Initialize uniform random parameter matrix from low to high
@@ -80,6 +112,13 @@ public abstract class Initializer implements Serializable
 				if (range != 1f || low != 0f)
 					w.linear(range, low);
 			}
+			@Override
+			public void initTile(FloatMat tile, long seed, int rowOffset)
+			{
+				Thrust.counter_rand_uniform(tile, seed, tileCounter(tile, rowOffset), tile.col);
+				if (range != 1f || low != 0f)
+					tile.linear(range, low);
+			}
 		};
 	}
 	
@@ -103,6 +142,11 @@ public abstract class Initializer implements Serializable
 			{
 				w.fill(val);
 			}
+			@Override
+			public void initTile(FloatMat tile, long seed, int rowOffset)
+			{
+				tile.fill(val);
+			}
 		};
 	}
 	
@@ -121,6 +165,12 @@ public abstract class Initializer implements Serializable
 				gRand.genNormalFloat(w);
 				GpuBlas.scale(w, scalor);
 			}
+			@Override
+			public void initTile(FloatMat tile, long seed, int rowOffset)
+			{
+				Thrust.counter_rand_normal(tile, seed, tileCounter(tile, rowOffset), tile.col);
+				GpuBlas.scale(tile, scalor);
+			}
 		};
 	}
 	
@@ -137,6 +187,13 @@ public abstract class Initializer implements Serializable
 				gRand.genLaplacianFloat(w);
 				GpuBlas.scale(w, scalor);
 			}
+			@Override
+			public void initTile(FloatMat tile, long seed, int rowOffset)
+			{
+				Thrust.counter_rand_uniform(tile, seed, tileCounter(tile, rowOffset), tile.col);
+				Thrust.laplacian(tile);
+				GpuBlas.scale(tile, scalor);
+			}
 		};
 	}
 	
@@ -153,6 +210,13 @@ public abstract class Initializer implements Serializable
 				gRand.genCauchyFloat(w);
 				GpuBlas.scale(w, scalor);
 			}
+			@Override
+			public void initTile(FloatMat tile, long seed, int rowOffset)
+			{
+				Thrust.counter_rand_uniform(tile, seed, tileCounter(tile, rowOffset), tile.col);
+				Thrust.cauchy(tile);
+				GpuBlas.scale(tile, scalor);
+			}
 		};
 	}
 	
@@ -174,6 +238,16 @@ public abstract class Initializer implements Serializable
 				gRand.genUniformFloat(
 						w.createColOffset(-1), 0, 2 * Math.PI);
 			}
+			@Override
+			public void initTile(FloatMat tile, long seed, int rowOffset)
+			{
+				distrIniter.initTile(tile, seed, rowOffset);
+				// the last column's counters, overwritten with U[0, 2*PI]
+				FloatMat phases = tile.createColOffset(-1);
+				Thrust.counter_rand_uniform(phases, seed, 
+						tileCounter(tile, rowOffset) + tile.col - 1, tile.col);
+				phases.linear((float) (2 * Math.PI), 0);
+			}
 		};
 		return origIniter;
 	}
@@ -352,6 +426,12 @@ public abstract class Initializer implements Serializable
 			@Override
 			public void init(ParamUnit W)
 			{
+				// an arena view can't be swapped out: copy instead of sharing
+				if (W.isArenaView())
+				{
+					W.data().copyFrom(otherW.data());
+					return;
+				}
 				if (W.data() != null)
 					W.data().destroy();
 				W.setData(otherW.data());
@@ -0,0 +1,309 @@
+package deep;
+
+import gpu.*;
+import deep.RegScheme.L2RegScheme;
+import deep.units.*;
+
+/**
+ * Full-batch L-BFGS over all parameters of a DeepNet, e.g. for the convex output layer
+ * on fixed random features, where quasi-Newton needs far fewer passes than SGD.
+ * The ParamUnits are flattened into one device vector, laid out like the ParamList arena,
+ * and the two-loop recursion runs on device vectors with cuBLAS: nothing goes through host double[].
+ * The full-data loss and gradient come from one streamed pass over the inlet,
+ * built on gradient accumulation: every mini-batch adds its gradient to W.accum().
+ * One L-BFGS iteration (including its line search) per epoch of the LearningPlan,
+ * so 'record', the best params and the EpochSaver work as in DeepNet.run().
+ * lr isn't used, but an LrScheme may still roll the parameters back at the end of an epoch:
+ * L-BFGS then restarts from there with an empty history.
+ * Only the L2 regularizer is supported.
+ */
+public class LbfgsTrainer
+{
+	private final DeepNet net;
+	// number of correction pairs kept
+	private final int memory;
+	// stop once |grad| <= tolerance * max(1, |x|)
+	private float tolerance = 1e-5f;
+	// backtracking steps per iteration
+	private int maxLineSearch = 20;
+	// sufficient decrease constant of the Armijo condition
+	private static final float ARMIJO = 1e-4f;
+
+	private ParamList params;
+	// flattened parameters and their full-data gradient, with a candidate for the line search
+	private FloatMat x, grad, newX, newGrad, dir;
+	private float loss;
+	// correction pairs in a ring: s = x_k+1 - x_k, y = grad_k+1 - grad_k
+	private FloatMat[] s, y;
+	private float[] rho, alpha;
+	private int pairs = 0, newest = -1;
+
+	/**
+	 * @param memory number of correction pairs, typically 5 to 20
+	 */
+	public LbfgsTrainer(DeepNet net, int memory)
+	{
+		this.net = net;
+		this.memory = memory;
+	}
+
+	/**
+	 * Default 1e-5
+	 */
+	public void setTolerance(float tolerance) {	this.tolerance = tolerance;	}
+
+	/**
+	 * Default 20
+	 */
+	public void setMaxLineSearch(int maxLineSearch) {	this.maxLineSearch = maxLineSearch;	}
+
+	/**
+	 * Setup the net with gradient accumulation over a whole epoch, and allocate the vectors
+	 * @param plan totalEpochs is the max number of L-BFGS iterations. lr isn't used
+	 */
+	public void setup(LearningPlan plan)
+	{
+		if (plan.hasReg() && !(plan.regScheme instanceof L2RegScheme))
+			throw new DeepException("LbfgsTrainer only supports the L2 regularizer");
+		int MaxBatchSize = net.inlet.MaxBatchSize;
+		plan.setAccumGradient((plan.totalSampleSize + MaxBatchSize - 1) / MaxBatchSize);
+		net.setup(plan);
+		net.setCalcLoss(true);
+
+		params = net.getParamList();
+		int n = 0;
+		for (ParamUnit W : params)
+		{
+			// the flat vector is the actual parameters
+			W.normalize();
+			n += W.data().size();
+		}
+		x = new FloatMat(n, 1, false);
+		grad = new FloatMat(n, 1, false);
+		newX = new FloatMat(n, 1, false);
+		newGrad = new FloatMat(n, 1, false);
+		dir = new FloatMat(n, 1, false);
+		s = new FloatMat[memory];
+		y = new FloatMat[memory];
+		for (int i = 0; i < memory; i++)
+		{
+			s[i] = new FloatMat(n, 1, false);
+			y[i] = new FloatMat(n, 1, false);
+		}
+		rho = new float[memory];
+		alpha = new float[memory];
+	}
+
+	/**
+	 * Run until convergence or plan.totalEpochs iterations. Assume setup() is already called.
+	 * W ends up at the last accepted point, or where the LrScheme last restored it.
+	 * @return number of iterations
+	 */
+	public int run()
+	{
+		gather(x, false);
+		loss = evaluate(x, grad);
+		int iterations = 0;
+		for (int epoch : net.epochIter())
+		{
+			syncRestored();
+			if (converged() || !iterate())
+				break;
+			++ iterations;
+		}
+		syncRestored();
+		return iterations;
+	}
+
+	/**
+	 * W always equals x between iterations, unless something else wrote it at the end of the epoch,
+	 * e.g. LrScheme's restoreLastEpochParams(). Then x, its gradient and the correction pairs are stale:
+	 * restart from W with an empty history
+	 */
+	private void syncRestored()
+	{
+		gather(newX, false);
+		GpuBlas.add(newX, x, newX, 1, -1);
+		if (GpuBlas.norm(newX) == 0)
+			return;
+		gather(x, false);
+		loss = evaluate(x, grad);
+		pairs = 0;
+		newest = -1;
+	}
+
+	/**
+	 * Total loss (pure + L2) at the current point
+	 */
+	public float loss() {	return this.loss;	}
+
+	private boolean converged()
+	{
+		return GpuBlas.norm(grad) <= tolerance * Math.max(1, GpuBlas.norm(x));
+	}
+
+	/**
+	 * One L-BFGS step with a backtracking line search.
+	 * @return false if no step decreases the loss
+	 */
+	private boolean iterate()
+	{
+		direction();
+		float slope = GpuBlas.dot(grad, dir);
+		if (slope >= 0)
+		{
+			// not a descent direction: restart from steepest descent
+			pairs = 0;
+			direction();
+			slope = GpuBlas.dot(grad, dir);
+		}
+		// the first step has no curvature information to scale it
+		float step = pairs == 0 ? 1 / GpuBlas.norm(grad) : 1;
+		float newLoss = loss;
+		int trial;
+		for (trial = 0; trial < maxLineSearch; trial++)
+		{
+			GpuBlas.add(x, dir, newX, 1, step);
+			newLoss = evaluate(newX, newGrad);
+			if (newLoss <= loss + ARMIJO * step * slope)
+				break;
+			step *= .5f;
+		}
+		if (trial == maxLineSearch)
+		{
+			// leave W and the epoch record at the last accepted point
+			evaluate(x, grad);
+			return false;
+		}
+
+		// new correction pair, overwrites the oldest one
+		newest = (newest + 1) % memory;
+		GpuBlas.add(newX, x, s[newest], 1, -1);
+		GpuBlas.add(newGrad, grad, y[newest], 1, -1);
+		float ys = GpuBlas.dot(y[newest], s[newest]);
+		if (ys > 1e-10f)
+		{
+			rho[newest] = 1 / ys;
+			pairs = Math.min(pairs + 1, memory);
+		}
+		else
+			// curvature condition fails: drop the pair
+			newest = (newest + memory - 1) % memory;
+
+		FloatMat tmp = x; x = newX; newX = tmp;
+		tmp = grad; grad = newGrad; newGrad = tmp;
+		loss = newLoss;
+		return true;
+	}
+
+	/**
+	 * Two-loop recursion: dir = - H * grad
+	 */
+	private void direction()
+	{
+		GpuBlas.copy(grad, dir);
+		for (int k = 0; k < pairs; k++)
+		{
+			int i = (newest - k + memory) % memory;
+			alpha[i] = rho[i] * GpuBlas.dot(s[i], dir);
+			GpuBlas.scaleAdd(y[i], dir, - alpha[i]);
+		}
+		// initial Hessian: gamma * I
+		if (pairs > 0)
+			GpuBlas.scale(dir, 1 / (rho[newest] * GpuBlas.dot(y[newest], y[newest])));
+		for (int k = pairs - 1; k >= 0; k--)
+		{
+			int i = (newest - k + memory) % memory;
+			float beta = rho[i] * GpuBlas.dot(y[i], dir);
+			GpuBlas.scaleAdd(s[i], dir, alpha[i] - beta);
+		}
+		GpuBlas.scale(dir, -1);
+	}
+
+	/**
+	 * Full-data loss and gradient at 'point': one pass over the inlet
+	 * @return pure loss + L2 loss
+	 */
+	private float evaluate(FloatMat point, FloatMat gradient)
+	{
+		LearningPlan plan = net.learningPlan;
+		scatter(point);
+		net.clearLoss();
+		net.inlet.prepareNextEpoch();
+		plan.doneSampleSize = 0;
+		plan.resetAccum();
+		while (plan.doneSampleSize < plan.totalSampleSize)
+		{
+			net.inlet.nextBatch();
+			net.forwprop();
+			for (ComputeUnit unit : net.unitIter(false))
+				unit.backward();
+		}
+
+		// accum holds the sum of the per-sample gradients
+		gather(gradient, true);
+		GpuBlas.scale(gradient, 1f / plan.accumSampleSize);
+		float lossReg = 0;
+		if (plan.hasReg())
+		{
+			GpuBlas.scaleAdd(point, gradient, plan.reg);
+			lossReg = 0.5f * plan.reg * GpuBlas.dot(point, point);
+		}
+		return net.lossPure() + lossReg;
+	}
+
+	/**
+	 * Copy every W.data(), or W.accum() with the bias rows zeroed, into the flat vector
+	 */
+	private void gather(FloatMat flat, boolean accum)
+	{
+		if (!accum && params.arena() != null)
+		{
+			GpuBlas.copy(params.arena(), flat);
+			return;
+		}
+		int offset = 0;
+		for (ParamUnit W : params)
+		{
+			FloatMat view = flat.createOffset(offset, W.data().size(), W.data().row);
+			GpuBlas.copy(accum ? W.accum() : W.data(), view);
+			if (accum && W.parent.hasBias())
+				view.fillLastRow0();
+			offset += W.data().size();
+		}
+	}
+
+	/**
+	 * Copy the flat vector into every W.data()
+	 */
+	private void scatter(FloatMat flat)
+	{
+		if (params.arena() != null)
+		{
+			GpuBlas.copy(flat, params.arena());
+			return;
+		}
+		int offset = 0;
+		for (ParamUnit W : params)
+		{
+			GpuBlas.copy(flat.createOffset(offset, W.data().size(), W.data().row), W.data());
+			offset += W.data().size();
+		}
+	}
+
+	/**
+	 * Release the vectors. The net isn't released: it belongs to the caller.
+	 */
+	public void destroy()
+	{
+		if (x == null)	return;
+		for (FloatMat mat : new FloatMat[] {x, grad, newX, newGrad, dir})
+			mat.destroy();
+		for (int i = 0; i < memory; i++)
+		{
+			s[i].destroy();
+			y[i].destroy();
+		}
+		x = null;
+	}
+}
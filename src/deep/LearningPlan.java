@@ -21,6 +21,15 @@ public class LearningPlan implements Serializable
 	public int totalEpochs;
 	public LrScheme lrScheme; // default no LR decay
 	public RegScheme regScheme; // default L2-regularization
+	public Optimizer optimizer; // default null: plain SGD
+	// Gradient accumulation: update W only once every 'accumBatches' mini-batches
+	public boolean accumGradient = false;
+	public int accumBatches = 1;
+	// Momentum of the velocity, 0 for plain SGD
+	public float momentum = 0;
+	public boolean nesterov = false;
+	// L2 decay as a scalar on W = scale * V instead of a pass over W
+	public boolean lazyDecay = false;
 	
 	/*
 	 * Varying section
@@ -31,6 +40,13 @@ public class LearningPlan implements Serializable
 	public int doneSampleSize = 0;
 	// Records the performance (loss function value) from each epoch
 	public ArrayList<Float> record = new ArrayList<>();
+	// Variance of each 'record' entry: 0 unless the loss is sampled
+	public ArrayList<Float> recordVariance = new ArrayList<>();
+	// Regularization loss at the end of each epoch
+	public ArrayList<Float> regRecord = new ArrayList<>();
+	// mini-batches and samples accumulated in the current cycle
+	public int accumBatchCount = 0;
+	public int accumSampleSize = 0;
 	
 	public LearningPlan() {};
 	
@@ -62,9 +78,15 @@ public class LearningPlan implements Serializable
 		this.reg = other.reg;
 		this.totalSampleSize = other.totalSampleSize;
 		this.totalEpochs = other.totalEpochs;
+		this.accumGradient = other.accumGradient;
+		this.accumBatches = other.accumBatches;
+		this.momentum = other.momentum;
+		this.nesterov = other.nesterov;
+		this.lazyDecay = other.lazyDecay;
 		
 		this.setLrScheme(other.lrScheme);
 		this.setRegScheme(other.regScheme);
+		this.setOptimizer(other.optimizer);
 	}
 	
 	/**
@@ -79,6 +101,8 @@ public class LearningPlan implements Serializable
 		{
 			float loss = net.lossPure();
 			record.add(loss);
+			recordVariance.add(net.lossVariance());
+			regRecord.add(net.lossReg());
 			if (CpuUtil.equal(loss, Collections.min(record), 1e-8))
 				net.recordBestParams();
 		}
@@ -95,6 +119,9 @@ public class LearningPlan implements Serializable
 		this.doneSampleSize = 0;
 		this.lr = lrStart;
 		this.record.clear();
+		this.recordVariance.clear();
+		this.regRecord.clear();
+		this.resetAccum();
 	}
 	
 	/**
@@ -110,6 +137,97 @@ public class LearningPlan implements Serializable
 	 */
 	public boolean hasReg() { return this.reg > 0; }
 	
+	// ******************** Gradient accumulation ********************/
+	/**
+	 * Accumulate the parameter gradients over 'accumBatches' mini-batches 
+	 * and update W only once, as if they were a single big batch. 
+	 * The last cycle of an epoch may be shorter. 
+	 * Must be called before DeepNet.setup()
+	 * @param accumBatches 0 to disable
+	 */
+	public void setAccumGradient(int accumBatches)
+	{
+		if (accumBatches < 0)
+			throw new DeepException("accumBatches must be non-negative");
+		this.accumGradient = accumBatches > 0;
+		this.accumBatches = Math.max(accumBatches, 1);
+		this.resetAccum();
+	}
+	
+	/**
+	 * Do we accumulate the gradients instead of updating W every batch?
+	 */
+	public boolean doesAccumGradient() { return this.accumGradient; }
+	
+	/**
+	 * Called by InletUnit for every new mini-batch
+	 */
+	public void updateAccum(int batchSize)
+	{
+		if (accumGradient)
+		{
+			++ this.accumBatchCount;
+			this.accumSampleSize += batchSize;
+		}
+	}
+	
+	/**
+	 * Is the current mini-batch the first of an accumulation cycle?
+	 * The accumulator is overwritten instead of added to.
+	 */
+	public boolean isFirstAccumBatch() { return this.accumBatchCount == 1; }
+	
+	/**
+	 * Should the accumulated gradient be applied after the current mini-batch?
+	 * Either the cycle is full or the epoch is over. 
+	 */
+	public boolean isAccumBoundary()
+	{
+		return accumGradient && accumBatchCount > 0
+				&& (accumBatchCount >= accumBatches || doneSampleSize >= totalSampleSize);
+	}
+	
+	/**
+	 * Start a new accumulation cycle
+	 */
+	public void resetAccum()
+	{
+		this.accumBatchCount = 0;
+		this.accumSampleSize = 0;
+	}
+	
+	// ******************** Momentum ********************/
+	/**
+	 * Classical or Nesterov momentum: every ParamUnit keeps a velocity, 
+	 * V = momentum * V - lr * gradient. 
+	 * Must be called before DeepNet.setup() to allocate the velocities
+	 * @param momentum 0 to disable
+	 * @param nesterov W += momentum * V - lr * gradient instead of W += V
+	 */
+	public void setMomentum(float momentum, boolean nesterov)
+	{
+		if (momentum < 0 || momentum >= 1)
+			throw new DeepException("momentum must be in [0, 1)");
+		this.momentum = momentum;
+		this.nesterov = nesterov;
+	}
+	
+	/**
+	 * Do we update W through a velocity?
+	 */
+	public boolean hasMomentum() { return this.momentum > 0; }
+	
+	// ******************** Lazy L2 decay ********************/
+	/**
+	 * Store LinearUnit parameters as W = scale * V: the L2 decay of an SGD step 
+	 * only multiplies the scalar, and the gradient is added to V with lr / scale. 
+	 * Only rows actually touched by the gradient are written, e.g. in SampledSoftmaxTUnit. 
+	 * V is renormalized when the scale drifts too far from 1. 
+	 * Applies to plain SGD with L2RegScheme, outside debug mode
+	 * @see ParamUnit#scale()
+	 */
+	public void setLazyDecay(boolean lazyDecay) {	this.lazyDecay = lazyDecay;	}
+	
 	// ******************** Schemes ********************/
 	/**
 	 * NOTE: do not set the public field directly!!!
@@ -135,6 +253,23 @@ public class LearningPlan implements Serializable
 		this.linkScheme(scheme);
 	}
 	
+	/**
+	 * Adaptive optimizer instead of plain SGD, null to disable. 
+	 * Must be called before DeepNet.setup() to allocate the optimizer states. 
+	 * The optimizer is stateless, it can be shared by several plans
+	 * NOTE: for Java serialization to work, MUST declare an explicit static subclass 
+	 * that extends Optimizer. DO NOT use anonoymous class.
+	 */
+	public void setOptimizer(Optimizer optimizer)
+	{
+		this.optimizer = optimizer;
+	}
+	
+	/**
+	 * Do we update W with an adaptive optimizer?
+	 */
+	public boolean hasOptimizer() { return this.optimizer != null; }
+	
 	private void linkScheme(Scheme scheme)
 	{
 		scheme.linkPlan(this);
@@ -160,7 +295,10 @@ public class LearningPlan implements Serializable
 		return "LearningPlan [name=" + name + ", \ndir=" + dir + ", \nlr=" + lrStart
 				+ ", \nreg=" + reg + ", \ntotalSampleSize=" + totalSampleSize
 				+ ", \ntotalEpochs=" + totalEpochs + ", \ncurEpoch=" + curEpoch
-				+ ", \ndoneSampleSize=" + doneSampleSize + ", \nrecord="
+				+ ", \ndoneSampleSize=" + doneSampleSize 
+				+ (accumGradient ? ", \naccumBatches=" + accumBatches : "") 
+				+ (hasMomentum() ? ", \nmomentum=" + momentum + (nesterov ? " (Nesterov)" : "") : "") 
+				+ (hasOptimizer() ? ", \noptimizer=" + optimizer.getClass().getSimpleName() : "") + ", \nrecord="
 				+ record + "]";
 	}
 }
\ No newline at end of file
@@ -85,7 +85,9 @@ public abstract class LrScheme extends LearningPlan.Scheme
 	 * let lastL = heldout loss of the last epoch. 
 	 * In order to keep the same learning rate, we require that curL < lastL *(1 - improvementTol).
 	 * if doesn't hold, we decay lr *= improveDecayRate 
-	 * if curL > lastL (we're doing worse), roll back to last parameters, lr *= worseDecayRate
+	 * if curL > lastL (we're doing worse), roll back to last parameters, lr *= worseDecayRate. 
+	 * With loss sampling, curL must exceed lastL by 2 standard deviations of their difference 
+	 * before we roll back
 	 */
 	public static LrScheme epochDecayScheme(
 			final float improvementTol, final float worseDecayRate, final float improveDecayRate)
@@ -113,10 +115,21 @@ public abstract class LrScheme extends LearningPlan.Scheme
 						|| ! CpuUtil.isInfNaN(lastLoss)
 						&& (lastLoss - curLoss) / lastLoss < improvementTol;
 
+				// sampled losses are only estimates. 
+				// Unknown variance (too few sampled batches): compare them as exact losses
+				float noise = 0;
+				ArrayList<Float> variance = plan.recordVariance;
+				if (plan.curEpoch != 0 && variance.size() == record.size())
+				{
+					float noiseVar = variance.get(variance.size() - 1) + variance.get(variance.size() - 2);
+					if (!Float.isNaN(noiseVar))
+						noise = 2 * (float) Math.sqrt(noiseVar);
+				}
+
 				// Instead of making progress, we're actually doing worse
 				boolean worse = plan.curEpoch != 0
 						&& (CpuUtil.isInfNaN(curLoss)
-							|| curLoss > lastLoss);
+							|| curLoss > lastLoss + noise);
 
 				if (decay)
 				{   // Roll-back params to last epoch if our progress is actually regressive
@@ -0,0 +1,16 @@
+package deep;
+
+import deep.units.InletUnit;
+
+/**
+ * Builds a fresh, not yet setup DeepNet around a given inlet. 
+ * Used wherever we need several structurally identical nets, 
+ * e.g. one per configuration of a hyperparameter sweep. 
+ */
+public abstract class NetFactory
+{
+	/**
+	 * @return a new DeepNet whose head reads from 'inlet'. Must not call setup(). 
+	 */
+	public abstract DeepNet create(InletUnit inlet);
+}
@@ -0,0 +1,146 @@
+package deep;
+
+import java.io.Serializable;
+
+import gpu.*;
+import deep.RegScheme.L2RegScheme;
+import deep.units.*;
+
+/**
+ * Adaptive per-parameter optimizer, replaces the plain SGD step.
+ * Every ParamUnit keeps stateSize() buffers of W's dim, and W.accum() holds the batch gradient.
+ * The whole update is one fused element-wise pass per parameter, after the gradient GEMM.
+ * The L2 regularizer is folded into the gradient: scale * g + reg * W
+ * Unlike the other schemes, it isn't linked to a LearningPlan: lr and reg are read from the plan 
+ * of the unit being updated, and all state lives in the ParamUnits, so plans can share one optimizer.
+ */
+public abstract class Optimizer implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Use it inside {@link ParamComputeUnit}, once W.accum() holds the gradient
+	 * @param scale of the gradient in W.accum()
+	 */
+	public final void update(ParamComputeUnit pcUnit, float scale)
+	{
+		ParamUnit W = pcUnit.W;
+		LearningPlan plan = pcUnit.getPlan();
+		float reg = plan.regScheme instanceof L2RegScheme && plan.hasReg() ? plan.reg : 0;
+		update_(plan, W.data(), W.accum(), W.optState(), W.nextOptStep(), scale, reg, pcUnit.hasBias());
+	}
+
+	/**
+	 * @return number of state buffers per parameter
+	 */
+	public abstract int stateSize();
+
+	/**
+	 * @param data = W.data()
+	 * @param grad = W.accum()
+	 * @param state = W.optState()
+	 * @param step number of updates of this parameter so far, starting from 1
+	 * @param reg L2 coefficient, 0 if none
+	 * @param hasBias if true, the last row of data and state stays 0
+	 */
+	protected abstract void update_(LearningPlan plan, FloatMat data, FloatMat grad, FloatMat[] state,
+			int step, float scale, float reg, boolean hasBias);
+
+	/**
+	 * Duchi et al.: lr / sqrt(sum of all squared gradients)
+	 */
+	public static class AdaGrad extends Optimizer
+	{
+		private static final long serialVersionUID = 1L;
+		private float eps;
+
+		public AdaGrad(float eps) {	this.eps = eps;	}
+
+		@Override
+		public int stateSize() {	return 1;	}
+
+		@Override
+		protected void update_(LearningPlan plan, FloatMat data, FloatMat grad, FloatMat[] state,
+				int step, float scale, float reg, boolean hasBias)
+		{
+			Thrust.adagrad_update(data, grad, state[0], plan.lr, scale, reg, eps, hasBias);
+		}
+	}
+
+	/**
+	 * Tieleman and Hinton: lr / sqrt(moving average of the squared gradients)
+	 */
+	public static class RmsProp extends Optimizer
+	{
+		private static final long serialVersionUID = 1L;
+		private float decay, eps;
+
+		public RmsProp(float decay, float eps)
+		{
+			this.decay = decay;
+			this.eps = eps;
+		}
+
+		@Override
+		public int stateSize() {	return 1;	}
+
+		@Override
+		protected void update_(LearningPlan plan, FloatMat data, FloatMat grad, FloatMat[] state,
+				int step, float scale, float reg, boolean hasBias)
+		{
+			Thrust.rmsprop_update(data, grad, state[0], plan.lr, scale, reg, decay, eps, hasBias);
+		}
+	}
+
+	/**
+	 * Kingma and Ba: moving averages of the gradient and its square, bias-corrected
+	 */
+	public static class Adam extends Optimizer
+	{
+		private static final long serialVersionUID = 1L;
+		private float beta1, beta2, eps;
+
+		public Adam(float beta1, float beta2, float eps)
+		{
+			this.beta1 = beta1;
+			this.beta2 = beta2;
+			this.eps = eps;
+		}
+
+		@Override
+		public int stateSize() {	return 2;	}
+
+		@Override
+		protected void update_(LearningPlan plan, FloatMat data, FloatMat grad, FloatMat[] state,
+				int step, float scale, float reg, boolean hasBias)
+		{
+			// the bias correction only depends on the step: fold it into lr
+			float lr = (float) (plan.lr * Math.sqrt(1 - Math.pow(beta2, step)) / (1 - Math.pow(beta1, step)));
+			Thrust.adam_update(data, grad, state[0], state[1], lr, scale, reg, beta1, beta2, eps, hasBias);
+		}
+	}
+
+	/**
+	 * @return Preset optimizer: AdaGrad with eps 1e-8
+	 */
+	public static Optimizer adaGrad()
+	{
+		return new AdaGrad(1e-8f);
+	}
+
+	/**
+	 * @return Preset optimizer: RMSProp with decay 0.9 and eps 1e-8
+	 */
+	public static Optimizer rmsProp()
+	{
+		return new RmsProp(.9f, 1e-8f);
+	}
+
+	/**
+	 * @return Preset optimizer: Adam with beta1 0.9, beta2 0.999 and eps 1e-8
+	 */
+	public static Optimizer adam()
+	{
+		return new Adam(.9f, .999f, 1e-8f);
+	}
+}
@@ -2,11 +2,14 @@ package deep;
 
 import java.util.ArrayList;
 
+import gpu.*;
 import deep.units.*;
 
 public class ParamList extends ArrayList<ParamUnit>
 {
 	private static final long serialVersionUID = 1L;
+	// once packed, every ParamUnit's data is a view into this contiguous buffer, in list order
+	private transient FloatMat arena = null;
 
 	public ParamList()
 	{
@@ -42,13 +45,78 @@ public class ParamList extends ArrayList<ParamUnit>
 			newW.setSaveMode(W.saveMode);
 			this.add(newW);
 		}
+		if (other.arena != null)
+			this.pack();
 	}
 	
 	/**
-	 * Deep copy data from another list
+	 * Move all parameters into one contiguous arena, so that whole-model 
+	 * copy, norm and transfer are single bulk operations. 
+	 * Every ParamUnit's data becomes a view at its offset. 
+	 * Nothing happens if already packed.
+	 * @see #destroyArena()
+	 */
+	public void pack()
+	{
+		if (arena != null)	return;
+		int size = 0;
+		for (ParamUnit W : this)
+			size += W.data().size();
+		arena = new FloatMat(size, 1, false);
+		int offset = 0;
+		for (ParamUnit W : this)
+		{
+			FloatMat data = W.data();
+			W.moveToArena(arena.createOffset(offset, data.size(), data.row));
+			offset += data.size();
+		}
+	}
+	
+	/**
+	 * All parameters back to back in list order, null if not packed
+	 */
+	public FloatMat arena() {	return this.arena;	}
+	
+	/**
+	 * Release the arena after the ParamUnits are destroyed
+	 */
+	public void destroyArena()
+	{
+		FloatMat.destroy(arena);
+		arena = null;
+	}
+	
+	/**
+	 * Sum of the squares of all parameters: a single reduction if packed and unscaled
+	 * @see ParamUnit#scale()
+	 */
+	public float squareSum()
+	{
+		boolean unscaled = true;
+		for (ParamUnit W : this)
+			unscaled &= W.scale() == 1;
+		if (arena != null && unscaled)
+			return Thrust.square_sum(arena);
+		float sum = 0;
+		for (ParamUnit W : this)
+			sum += W.scale() * W.scale() * Thrust.square_sum(W.data());
+		return sum;
+	}
+	
+	/**
+	 * Deep copy data from another list. 
+	 * A single copy if both are packed
 	 */
 	public void copyDataFrom(ParamList other)
 	{
+		if (this.arena != null && other.arena != null 
+				&& this.arena.size() == other.arena.size())
+		{
+			GpuBlas.copy(other.arena, this.arena);
+			for (int i = 0; i < size(); i++)
+				this.get(i).copyScaleFrom(other.get(i));
+			return;
+		}
 		for (int i = 0; i < size(); i++)
 		{
 			ParamUnit thisW = this.get(i);
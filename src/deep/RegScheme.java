@@ -68,10 +68,7 @@ public abstract class RegScheme extends LearningPlan.Scheme
 		@Override
 		protected float regLoss_(LearningPlan plan, ParamList paramList)
 		{
-			float loss = 0;
-			for (ParamUnit W : paramList)
-				loss += Thrust.square_sum(W.data());
-			return 0.5f * loss * plan.reg;
+			return 0.5f * paramList.squareSum() * plan.reg;
 		}
 
 		@Override
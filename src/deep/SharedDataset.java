@@ -0,0 +1,73 @@
+package deep;
+
+import com.googlecode.javacpp.IntPointer;
+
+import gpu.*;
+
+/**
+ * A whole dataset decoded once and kept on GPU.
+ * Several nets (e.g. a hyperparameter sweep) read it concurrently through
+ * their own SharedInletUnit, which only creates column views: nothing is copied per batch.
+ * The data must be treated as read-only after construction.
+ * @see deep.units.SharedInletUnit
+ */
+public class SharedDataset
+{
+	// dim * size, includes the extra bias row if hasBias
+	public final FloatMat data;
+	// Either can be null, depending on the TerminalUnit
+	public final FloatMat goldMat;
+	public final IntPointer goldLabels;
+	public final int size;
+	public final boolean hasBias;
+
+	/**
+	 * Wrap data that is already on GPU.
+	 * @param data if hasBias, its last row must already be filled with 1
+	 * @param goldMat can be null
+	 * @param goldLabels can be null
+	 */
+	public SharedDataset(FloatMat data, FloatMat goldMat, IntPointer goldLabels, boolean hasBias)
+	{
+		if (data == null)
+			throw new DeepException("SharedDataset data mustn't be null");
+		if (goldMat != null && goldMat.col != data.col)
+			throw new DeepException("SharedDataset goldMat must have the same number of columns as data");
+		this.data = data;
+		this.goldMat = goldMat;
+		this.goldLabels = goldLabels;
+		this.size = data.col;
+		this.hasBias = hasBias;
+	}
+
+	/**
+	 * Decode from host and upload to GPU once.
+	 * @param hostData column major: every 'dim' floats is a sample. Doesn't include the bias row.
+	 * @param labels can be null
+	 * @param hasBias if true, append an extra row of 1 to every sample
+	 */
+	public static SharedDataset fromHost(float[] hostData, int dim, int[] labels, boolean hasBias)
+	{
+		int size = hostData.length / dim;
+		int row = hasBias ? dim + 1 : dim;
+		float[] padded = hostData;
+		if (hasBias)
+		{
+			padded = new float[row * size];
+			for (int c = 0; c < size; c++)
+			{
+				System.arraycopy(hostData, c * dim, padded, c * row, dim);
+				padded[c * row + dim] = 1;
+			}
+		}
+		FloatMat data = new FloatMat(padded, row, size);
+		data.toDevice(true);
+		IntPointer goldLabels = labels == null ? null : Thrust.copy_host_to_device(labels);
+		return new SharedDataset(data, null, goldLabels, hasBias);
+	}
+
+	/**
+	 * @return input dimension, including the extra bias row
+	 */
+	public int dim() { return data.row; }
+}
@@ -0,0 +1,246 @@
+package deep;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import utils.*;
+import deep.units.*;
+
+/**
+ * Hyperparameter sweep: trains many (LearningPlan, NetFactory) configurations concurrently
+ * over one SharedDataset that is decoded and uploaded to GPU only once.
+ * Every net reads through its own SharedInletUnit, so batches are column views, never copies.
+ * Concurrency is bounded both by a thread count and by a memory budget
+ * (in any unit you like, e.g. MB of GPU memory), so the GPU isn't oversubscribed.
+ * plan.record of every configuration is streamed to a results table at the end of each epoch.
+ *
+ * NOTE: all nets share the GPU and the static cuBLAS handle.
+ * Initializer's random generator isn't thread-safe, so construction and setup()
+ * are serialized on Initializer.class. Training itself runs in parallel.
+ * Every config is built right after Initializer.resetRand(): its random units get the same seeds
+ * as when the net is built alone, whatever the order the configs start in.
+ */
+public class SweepRunner
+{
+	/**
+	 * One configuration of the sweep
+	 */
+	public static class Config
+	{
+		public final LearningPlan plan;
+		public final NetFactory factory;
+		// how much of the memory budget this config holds while training
+		public final int memoryCost;
+
+		public Config(LearningPlan plan, NetFactory factory, int memoryCost)
+		{
+			this.plan = plan;
+			this.factory = factory;
+			this.memoryCost = memoryCost;
+		}
+	}
+
+	/**
+	 * Outcome of one configuration
+	 */
+	public static class Result
+	{
+		public final Config config;
+		// copy of plan.record after the last epoch
+		public final ArrayList<Float> record;
+		// null if the training succeeded
+		public final Throwable error;
+
+		public Result(Config config, ArrayList<Float> record, Throwable error)
+		{
+			this.config = config;
+			this.record = new ArrayList<>(record);
+			this.error = error;
+		}
+
+		public boolean succeeded() { return error == null; }
+
+		/**
+		 * @return the lowest loss over all epochs, NaN if nothing is recorded
+		 */
+		public float bestLoss()
+		{
+			return record.isEmpty() ? Float.NaN : Collections.min(record);
+		}
+
+		@Override
+		public String toString()
+		{
+			return config.plan.name + (succeeded() ? " best loss = " + bestLoss() : " failed: " + error);
+		}
+	}
+
+	private final SharedDataset dataset;
+	private final int MaxBatchSize;
+	private final int threads;
+	private final int memoryBudget;
+	private final ArrayList<Config> configs = new ArrayList<>();
+	// results table, optional
+	private FileUtil.Writer table = null;
+
+	/**
+	 * @param MaxBatchSize of every SharedInletUnit
+	 * @param threads max number of configs trained at the same time
+	 * @param memoryBudget total memory cost allowed at the same time
+	 */
+	public SweepRunner(SharedDataset dataset, int MaxBatchSize, int threads, int memoryBudget)
+	{
+		if (threads <= 0 || memoryBudget <= 0)
+			throw new DeepException("SweepRunner needs a positive thread count and memory budget");
+		this.dataset = dataset;
+		this.MaxBatchSize = MaxBatchSize;
+		this.threads = threads;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Default: no memory budget, only bounded by 'threads'
+	 */
+	public SweepRunner(SharedDataset dataset, int MaxBatchSize, int threads)
+	{
+		this(dataset, MaxBatchSize, threads, threads);
+	}
+
+	/**
+	 * Add a configuration. Each plan must have a distinct name: it identifies the row in the results table.
+	 */
+	public void add(LearningPlan plan, NetFactory factory, int memoryCost)
+	{
+		if (memoryCost > memoryBudget)
+			throw new DeepException("Config " + plan.name + " costs more than the whole memory budget");
+		if (plan.totalSampleSize > dataset.size)
+			throw new DeepException("Config " + plan.name + " wants more samples than the dataset has");
+		configs.add(new Config(plan, factory, memoryCost));
+	}
+
+	/**
+	 * Default memoryCost = 1
+	 */
+	public void add(LearningPlan plan, NetFactory factory)
+	{
+		this.add(plan, factory, 1);
+	}
+
+	/**
+	 * Stream a tab-separated line (name, epoch, lr, reg, loss) for every finished epoch.
+	 * @param tee also print to stdout
+	 */
+	public void setResultTable(boolean tee, String file, String... file_)
+	{
+		this.table = new FileUtil.Writer(file, file_);
+		this.table.setTee(tee);
+		this.table.write("name\tepoch\tlr\treg\tloss");
+	}
+
+	/**
+	 * Train all configurations and wait for them to finish.
+	 * A failed config doesn't stop the others: its Result carries the error.
+	 * @return results in the order configs were added
+	 */
+	public ArrayList<Result> run()
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final Semaphore memory = new Semaphore(memoryBudget, true);
+
+		ArrayList<Future<Result>> futures = new ArrayList<>();
+		for (final Config config : configs)
+			futures.add(pool.submit(new Callable<Result>()
+			{
+				@Override
+				public Result call() throws Exception
+				{
+					return train(config, memory);
+				}
+			}));
+		pool.shutdown();
+
+		ArrayList<Result> results = new ArrayList<>();
+		for (int i = 0; i < futures.size(); i++)
+		{
+			try {
+				results.add(futures.get(i).get());
+			}
+			catch (InterruptedException | ExecutionException e) {
+				results.add(new Result(configs.get(i), configs.get(i).plan.record, e));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Train a single config on the calling thread
+	 */
+	private Result train(Config config, Semaphore memory) throws InterruptedException
+	{
+		memory.acquire(config.memoryCost);
+		DeepNet net = null;
+		LearningPlan plan = config.plan;
+		try
+		{
+			SharedInletUnit inlet =
+					new SharedInletUnit("Inlet#" + plan.name, dataset, MaxBatchSize);
+			synchronized (Initializer.class)
+			{
+				Initializer.resetRand();
+				net = config.factory.create(inlet);
+				net.setEpochSaver(new RecordSaver(net.epochSaver, this));
+				net.setup(plan);
+			}
+			net.run();
+			return new Result(config, plan.record, null);
+		}
+		catch (RuntimeException e) {
+			return new Result(config, plan.record, e);
+		}
+		finally
+		{
+			if (net != null)
+				net.destroy();
+			memory.release(config.memoryCost);
+		}
+	}
+
+	/**
+	 * Called at the end of every epoch, after LearningPlan.prepareNextEpoch()
+	 */
+	private synchronized void recordEpoch(LearningPlan plan)
+	{
+		if (table == null)	return;
+		// curEpoch has already been incremented
+		int epoch = plan.curEpoch - 1;
+		// plan.record isn't updated if the net doesn't calculate loss
+		float loss = plan.record.size() > epoch && epoch >= 0 ?
+				plan.record.get(epoch) : Float.NaN;
+		table.write(String.format("%s\t%d\t%g\t%g\t%g", plan.name, epoch, plan.lr, plan.reg, loss));
+	}
+
+	/**
+	 * Chains a user's EpochSaver and then streams the record.
+	 * Static with a transient link, so that saving the net doesn't drag the runner along.
+	 */
+	private static class RecordSaver extends DeepNet.EpochSaver
+	{
+		private static final long serialVersionUID = 1L;
+		private DeepNet.EpochSaver inner;
+		private transient SweepRunner runner;
+
+		public RecordSaver(DeepNet.EpochSaver inner, SweepRunner runner)
+		{
+			this.inner = inner;
+			this.runner = runner;
+		}
+
+		@Override
+		public void save(DeepNet net)
+		{
+			inner.save(net);
+			if (runner != null)
+				runner.recordEpoch(net.learningPlan);
+		}
+	}
+}
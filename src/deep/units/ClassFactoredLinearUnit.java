@@ -0,0 +1,363 @@
+package deep.units;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.googlecode.javacpp.IntPointer;
+
+import gpu.*;
+import deep.*;
+import deep.RegScheme.L2RegScheme;
+
+/**
+ * Output layer of a two-level class-factored softmax (Goodman, Morin and Bengio):
+ * P(label) = P(class) * P(label | class).
+ * W has a row for every class, followed by the label rows grouped by class.
+ * In the factored mode (training), each column only touches the class rows and
+ * the rows of its gold class: O(sqrt(K)) rows with ~sqrt(K) classes of K labels.
+ * The label rows need the gold labels, so the forward pass is finished by ClassFactoredTUnit.
+ * In the full mode (evaluation), the output is log P(label) for every label,
+ * which works with Thrust.best_label() like a normal softmax input.
+ */
+public class ClassFactoredLinearUnit extends LinearUnit
+{
+	private static final long serialVersionUID = 1L;
+
+	private int labels, classes;
+	// largest class
+	private int blockRows;
+	private boolean factored = true;
+	// class of every label
+	private int[] labelClass;
+	// W row of every label, and label of every W label row
+	private int[] labelRow, rowLabel;
+	// class c owns W rows [classStart[c], classStart[c+1])
+	private int[] classStart;
+
+	private transient IntPointer labelClassDevice, labelRowDevice, rowLabelDevice, classStartDevice;
+	// distinct gold classes of a batch
+	private transient int[] labelHost;
+	private transient IntPointer classListDevice;
+	// class logits followed by the gold class's label logits. (classes + blockRows) * MaxBatchSize
+	private transient FloatMat factoredLogits, factoredGrad;
+	private transient FloatMat outLogProb;
+	// W * input, full mode only
+	private transient FloatMat fullLogits;
+	// set by factoredLoss()
+	private transient IntPointer goldLabels;
+
+	/**
+	 * @param labelClass class of every label, in [0, classes). 
+	 * Empty classes are dropped and the others renumbered in order: a class row without labels 
+	 * would still take probability mass
+	 * @see #uniformClasses(int)
+	 * @see #frequencyClasses(float[], int)
+	 */
+	public ClassFactoredLinearUnit(String name, InletUnit inlet, int[] labelClass, Initializer initer)
+	{
+		super(name, inlet, labelClass.length, initer);
+		this.labels = labelClass.length;
+		this.labelClass = labelClass.clone();
+		int maxClass = -1;
+		for (int c : labelClass)
+		{
+			if (c < 0)
+				throw new DeepException("Class index must be non-negative");
+			maxClass = Math.max(maxClass, c);
+		}
+		int[] renumber = new int[maxClass + 1];
+		for (int c : labelClass)
+			renumber[c] = 1;
+		for (int c = 0; c <= maxClass; c++)
+			if (renumber[c] > 0)
+				renumber[c] = classes ++;
+		for (int label = 0; label < labels; label++)
+			this.labelClass[label] = renumber[labelClass[label]];
+
+		classStart = new int[classes + 1];
+		for (int c : this.labelClass)
+			++ classStart[c + 1];
+		classStart[0] = classes;
+		for (int c = 0; c < classes; c++)
+		{
+			blockRows = Math.max(blockRows, classStart[c + 1]);
+			classStart[c + 1] += classStart[c];
+		}
+		labelRow = new int[labels];
+		rowLabel = new int[labels];
+		int[] next = Arrays.copyOf(classStart, classes);
+		for (int label = 0; label < labels; label++)
+		{
+			labelRow[label] = next[this.labelClass[label]] ++;
+			rowLabel[labelRow[label] - classes] = label;
+		}
+	}
+
+	/**
+	 * Default uniformClasses()
+	 */
+	public ClassFactoredLinearUnit(String name, InletUnit inlet, int labels, Initializer initer)
+	{
+		this(name, inlet, uniformClasses(labels), initer);
+	}
+
+	/**
+	 * ceil(sqrt(labels)) classes of consecutive labels
+	 */
+	public static int[] uniformClasses(int labels)
+	{
+		int classes = (int) Math.ceil(Math.sqrt(labels));
+		int[] labelClass = new int[labels];
+		for (int label = 0; label < labels; label++)
+			labelClass[label] = (int) ((long) label * classes / labels);
+		return labelClass;
+	}
+
+	/**
+	 * Frequency binning (Mikolov et al.): in order of decreasing frequency,
+	 * labels fill the classes with about the same total frequency each,
+	 * so the frequent labels get small classes. 
+	 * A class is closed once it holds its share of the frequency still left, 
+	 * and never before every later class can still get a label, so no class is empty 
+	 * even if a few labels dominate. 
+	 * @param classes capped at the number of labels
+	 */
+	public static int[] frequencyClasses(final float[] labelFreq, int classes)
+	{
+		int labels = labelFreq.length;
+		Integer[] order = new Integer[labels];
+		double total = 0;
+		for (int label = 0; label < labels; label++)
+		{
+			order[label] = label;
+			total += labelFreq[label];
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return Float.compare(labelFreq[b], labelFreq[a]);
+			}
+		});
+		classes = Math.min(classes, labels);
+		int[] labelClass = new int[labels];
+		int c = 0;
+		double filled = 0, share = total / classes;
+		for (int i = 0; i < labels; i++)
+		{
+			int label = order[i];
+			labelClass[label] = c;
+			filled += labelFreq[label];
+			total -= labelFreq[label];
+			int classesLeft = classes - c - 1;
+			if (classesLeft > 0 && (filled >= share || labels - i - 1 == classesLeft))
+			{
+				++ c;
+				filled = 0;
+				share = total / classesLeft;
+			}
+		}
+		return labelClass;
+	}
+
+	public int classes() {	return this.classes;	}
+
+	/**
+	 * Factored softmax for training, or the full log P(label) for evaluation. Default true.
+	 * Can be switched after setup()
+	 */
+	public void setFactored(boolean factored) {	this.factored = factored;	}
+
+	public boolean isFactored() {	return this.factored;	}
+	
+	/**
+	 * The class kernels read W directly
+	 */
+	@Override
+	protected boolean supportsLazyDecay() {	return false;	}
+
+	@Override
+	protected void setupW_()
+	{
+		this.initer.setBias(hasBias);
+		this.W = new ParamUnit(
+				"Param#" + this.name,
+				this,
+				classes + this.outDim,
+				this.input.dim());
+		reInit();
+	}
+
+	@Override
+	public void setup()
+	{
+		super.setup();
+		if (getPlan().hasMomentum() || getPlan().hasOptimizer())
+			throw new DeepException(name + ": the factored update is sparse, momentum and optimizers aren't supported");
+		if (factoredLogits == null)
+		{
+			labelClassDevice = Thrust.copy_host_to_device(labelClass);
+			labelRowDevice = Thrust.copy_host_to_device(labelRow);
+			rowLabelDevice = Thrust.copy_host_to_device(rowLabel);
+			classStartDevice = Thrust.copy_host_to_device(classStart);
+			labelHost = new int[inlet.MaxBatchSize];
+			classListDevice = Thrust.malloc_device_int(Math.min(classes, inlet.MaxBatchSize));
+			factoredLogits = new FloatMat(classes + blockRows, inlet.MaxBatchSize, false);
+			factoredGrad = new FloatMat(classes + blockRows, inlet.MaxBatchSize, false);
+			outLogProb = new FloatMat(inlet.MaxBatchSize, 1, false);
+		}
+	}
+
+	/**
+	 * The buffers are allocated for MaxBatchSize
+	 */
+	private FloatMat batch(FloatMat mat)
+	{
+		int batchSize = inlet.batchSize;
+		return batchSize < mat.col ? mat.createColOffset(0, batchSize) : mat;
+	}
+
+	/**
+	 * Factored: only the class logits. The rest is done by factoredLoss()
+	 */
+	@Override
+	public void forward()
+	{
+		if (hasBias)
+			input.data().fillLastRow1();
+		if (factored)
+		{
+			GpuBlas.mult(W.data().createRowOffset(0, classes), input.data(),
+					batch(factoredLogits).createRowOffset(0, classes));
+			return;
+		}
+
+		if (fullLogits == null)
+			fullLogits = new FloatMat(W.data().row, inlet.MaxBatchSize, false);
+		FloatMat logits = batch(fullLogits);
+		GpuBlas.mult(W.data(), input.data(), logits);
+		Thrust.class_log_prob(logits, classes, classStartDevice, rowLabelDevice, labels, output.data());
+	}
+
+	/**
+	 * Second half of the factored forward(), once the gold labels are known:
+	 * the gold classes' label logits, the loss and its gradient, kept for backward()
+	 * @param scale of the gradient
+	 * @return sum of log P(gold label)
+	 */
+	public float factoredLoss(IntPointer goldLabels, float scale)
+	{
+		this.goldLabels = goldLabels;
+		FloatMat logits = batch(factoredLogits);
+		Thrust.class_block_mult(W.data(), input.data(), goldLabels,
+				labelClassDevice, classStartDevice, classes, logits);
+		return Thrust.class_softmax(logits, classes, goldLabels,
+				labelClassDevice, labelRowDevice, classStartDevice,
+				batch(factoredGrad), outLogProb.createOffset(0, inlet.batchSize, inlet.batchSize), scale);
+	}
+
+	@Override
+	public void backward()
+	{
+		if (!factored)
+			throw new DeepException(name + ": back-prop needs the factored mode");
+
+		FloatMat x = input.data(), grad = batch(factoredGrad);
+		FloatMat classGrad = grad.createRowOffset(0, classes);
+		FloatMat classW = W.data().createRowOffset(0, classes);
+		if (input.hasGradient())
+		{
+			GpuBlas.mult(classW.transpose(), classGrad, input.gradient());
+			Thrust.class_block_mult_t(W.data(), grad, goldLabels,
+					labelClassDevice, classStartDevice, classes, input.gradient());
+		}
+
+		if (!W.hasGradient())	return;
+		LearningPlan plan = getPlan();
+		// In debug mode, we explicitly store the parameter gradient
+		if (debug)
+		{
+			FloatMat wGrad = W.gradient();
+			wGrad.fill(0);
+			GpuBlas.mult(classGrad, x.transpose(), wGrad.createRowOffset(0, classes));
+			updateLabelRows(grad, wGrad, 1);
+			plan.regScheme.regGradUpdate(this);
+			if (hasBias) wGrad.fillLastRow0();
+		}
+
+		if (plan.doesAccumGradient())
+		{
+			// same weighting as ParamComputeUnit.updateW()
+			if (plan.isFirstAccumBatch())
+				W.accum().fill(0);
+			GpuBlas.mult(classGrad, x.transpose(), W.accum().createRowOffset(0, classes), inlet.batchSize, 1);
+			updateLabelRows(grad, W.accum(), inlet.batchSize);
+			return;
+		}
+
+		float lr = plan.lr, decay = 1;
+		// L2 decays the class rows and the gold classes' label rows
+		if (plan.regScheme instanceof L2RegScheme)
+		{
+			if (plan.hasReg())
+			{
+				decay = 1 - lr * plan.reg;
+				decayGoldClasses(decay);
+			}
+		}
+		else
+			plan.regScheme.regParamUpdate(this);
+		GpuBlas.mult(classGrad, x.transpose(), classW, - lr, decay);
+		updateLabelRows(grad, W.data(), - lr);
+	}
+
+	private void updateLabelRows(FloatMat grad, FloatMat w, float alpha)
+	{
+		Thrust.class_block_update(grad, input.data(), goldLabels,
+				labelClassDevice, classStartDevice, classes, w, alpha);
+	}
+
+	/**
+	 * Scale the label rows of every class in the batch once
+	 */
+	private void decayGoldClasses(float decay)
+	{
+		int batchSize = inlet.batchSize;
+		Thrust.copy_device_to_host(goldLabels, labelHost, 0, batchSize);
+		boolean[] seen = new boolean[classes];
+		int[] classList = new int[Math.min(classes, batchSize)];
+		int n = 0;
+		for (int i = 0; i < batchSize; i++)
+		{
+			int c = labelClass[labelHost[i]];
+			if (!seen[c])
+			{
+				seen[c] = true;
+				classList[n ++] = c;
+			}
+		}
+		Thrust.copy_host_to_device(Arrays.copyOf(classList, n), classListDevice);
+		Thrust.class_block_scale(W.data(), classStartDevice, classListDevice, n, blockRows, decay);
+	}
+
+	@Override
+	public void destroy()
+	{
+		super.destroy();
+		if (factoredLogits != null)
+		{
+			for (IntPointer p : new IntPointer[] {
+					labelClassDevice, labelRowDevice, rowLabelDevice, classStartDevice, classListDevice})
+				Thrust.free_device(p);
+			factoredLogits.destroy();
+			factoredGrad.destroy();
+			outLogProb.destroy();
+			factoredLogits = null;
+		}
+		if (fullLogits != null)
+		{
+			fullLogits.destroy();
+			fullLogits = null;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package deep.units;
+
+import deep.DeepException;
+
+/**
+ * Class-factored softmax loss, -log P(class) - log P(label | class).
+ * Must follow a ClassFactoredLinearUnit, which does the actual work.
+ * In the full mode, the input is already log P(label) of every label,
+ * and this is a plain SparseCrossEntropyTUnit on it.
+ */
+public class ClassFactoredTUnit extends SparseCrossEntropyTUnit
+{
+	private static final long serialVersionUID = 1L;
+
+	private transient ClassFactoredLinearUnit linear;
+
+	public ClassFactoredTUnit(String name, InletUnit inlet)
+	{
+		super(name, inlet);
+	}
+
+	@Override
+	public void setup()
+	{
+		super.setup();
+		if (!(prev instanceof ClassFactoredLinearUnit))
+			throw new DeepException("ClassFactoredTUnit must follow a ClassFactoredLinearUnit");
+		linear = (ClassFactoredLinearUnit) prev;
+	}
+
+	/**
+	 * Also computes the gradient, which the ClassFactoredLinearUnit's backward() uses
+	 */
+	@Override
+	protected float forward_terminal(boolean doesCalcLoss)
+	{
+		if (!linear.isFactored())
+			return super.forward_terminal(doesCalcLoss);
+
+		float logProb = linear.factoredLoss(inlet.goldLabels, batchNormalizer());
+		return doesCalcLoss ? - logProb : 0;
+	}
+
+	/**
+	 * The gradient is already computed by forward_terminal()
+	 */
+	@Override
+	public void backward()
+	{
+		if (!linear.isFactored())
+			throw new DeepException("The full class-factored softmax is for evaluation only");
+	}
+}
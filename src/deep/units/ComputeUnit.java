@@ -17,6 +17,8 @@ public abstract class ComputeUnit extends Unit
 	protected boolean hasBias;
 	// Do we store input/output data separately?
 	protected boolean mergeIO = false;
+	// activation fused into forward(), if any
+	protected ElementComputeUnit epilogue = null;
 
 	// ALWAYS equal to prev.output
 	public DataUnit input;
@@ -86,6 +88,16 @@ public abstract class ComputeUnit extends Unit
 		}
 	}
 	
+	/**
+	 * Release the GPU memory owned by this unit. 
+	 * 'input' belongs to the previous unit (or the inlet), so only 'output' is released. 
+	 */
+	public void destroy()
+	{
+		if (!mergeIO && output != null)
+			output.destroy();
+	}
+	
 	/**
 	 * Judges if a DataUnit/ParamUnit needs to be setup ('new' ctor). 
 	 * null means first-time: of course initialize it. 
@@ -138,6 +150,24 @@ public abstract class ComputeUnit extends Unit
 		}
 	}
 	
+	public boolean hasBias() {	return this.hasBias;	}
+
+	/**
+	 * Fuse an activation into this unit's forward(): applied in place right after
+	 * the output is computed. Set by the fusion pass in DeepNet.setup
+	 * @see ElementComputeUnit#fuseInto(ComputeUnit)
+	 */
+	public void setEpilogue(ElementComputeUnit epilogue) {	this.epilogue = epilogue;	}
+
+	/**
+	 * Call at the end of forward()
+	 */
+	protected void runEpilogue()
+	{
+		if (epilogue != null)
+			epilogue.forward_element(output.data(), output.data(), epilogue.getScalor());
+	}
+
 	/**
 	 * @return 'real' outDim: if hasBias, outDim-1
 	 */
@@ -154,4 +184,9 @@ public abstract class ComputeUnit extends Unit
 	 * Needs to be called BEFORE setup()
 	 */
 	public void setMergeIO(boolean mergeIO) { this.mergeIO = mergeIO; }
+	
+	/**
+	 * Are input and output the same memory?
+	 */
+	public boolean isMergeIO() { return this.mergeIO; }
 }
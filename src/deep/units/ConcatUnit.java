@@ -0,0 +1,102 @@
+package deep.units;
+
+import java.util.ArrayList;
+
+import deep.DeepException;
+import gpu.*;
+
+/**
+ * Stacks several inputs on top of each other, e.g. Fourier feature banks with different kernels.
+ * If hasBias, the bias row of every input is dropped and a single bias row is appended.
+ * Only meaningful in a DagNet, which sets 'inputs' before setup.
+ * @see deep.DagNet
+ */
+public class ConcatUnit extends ComputeUnit
+{
+	private static final long serialVersionUID = 1L;
+	// 'input' is always inputs.get(0)
+	protected ArrayList<DataUnit> inputs = new ArrayList<>();
+
+	public ConcatUnit(String name, InletUnit inlet, boolean hasBias)
+	{
+		super(name, inlet, -1, hasBias);
+	}
+
+	/**
+	 * Default hasBias = true
+	 */
+	public ConcatUnit(String name, InletUnit inlet)
+	{
+		this(name, inlet, true);
+	}
+
+	/**
+	 * Set by DagNet before setup()
+	 */
+	public void setInputs(ArrayList<DataUnit> inputs)
+	{
+		this.inputs = inputs;
+		this.input = inputs.get(0);
+	}
+
+	public ArrayList<DataUnit> getInputs() {	return this.inputs;	}
+
+	@Override
+	public void setup()
+	{
+		if (inputs.isEmpty())
+			throw new DeepException("ConcatUnit " + name + " has no input");
+		this.outDim = hasBias ? 1 : 0;
+		for (DataUnit in : inputs)
+			this.outDim += biaslessDim(in);
+		setupOutput();
+	}
+
+	@Override
+	public void setMergeIO(boolean mergeIO)
+	{
+		if (mergeIO)
+			throw new DeepException("ConcatUnit can't merge input and output");
+	}
+
+	private int biaslessDim(DataUnit in)
+	{
+		return in.dim() - (hasBias ? 1 : 0);
+	}
+
+	@Override
+	public void forward()
+	{
+		FloatMat out = output.data();
+		int row = 0;
+		for (DataUnit in : inputs)
+		{
+			int dim = biaslessDim(in);
+			FloatMat inRows = in.data().createRowOffset(0, dim);
+			GpuBlas.add(inRows, inRows, out.createRowOffset(row, row + dim), 1, 0);
+			row += dim;
+		}
+		if (hasBias)
+			out.fillLastRow1();
+	}
+
+	@Override
+	public void backward()
+	{
+		FloatMat outGrad = output.gradient();
+		int row = 0;
+		for (DataUnit in : inputs)
+		{
+			int dim = biaslessDim(in);
+			if (in.hasGradient())
+			{
+				FloatMat inGrad = in.gradient();
+				FloatMat outRows = outGrad.createRowOffset(row, row + dim);
+				GpuBlas.add(outRows, outRows, inGrad.createRowOffset(0, dim), 1, 0);
+				if (hasBias)
+					inGrad.fillLastRow0();
+			}
+			row += dim;
+		}
+	}
+}
@@ -22,15 +22,15 @@ public class CosineUnit extends ElementComputeUnit
 	}
 
 	@Override
-	public void forward_element(float scalor)
+	public void forward_element(FloatMat in, FloatMat out, float scalor)
 	{
-		Thrust.cos(input.data(), output.data(), 1, 0, scalor);
+		Thrust.cos(in, out, 1, 0, scalor);
 	}
 
 	@Override
-	public void backward_element()
+	public void backward_element(FloatMat outGrad, FloatMat inGrad)
 	{
-		Thrust.sin(input.data(), input.gradient(), 1, 0, -1);
+		Thrust.sin_mult(input.data(), outGrad, inGrad, 1, 0, -scalor);
 	}
 
 }
@@ -11,6 +11,8 @@ public class DataUnit extends Unit
 	protected transient FloatMat data;
     protected transient FloatMat gradient;
     public ComputeUnit parent;
+    // non-null for a branch: 'data' always follows the source's, e.g. an inlet that swaps batches
+    private DataUnit source = null;
     
    /**
     * Serialization
@@ -53,6 +55,8 @@ public class DataUnit extends Unit
 	 */
 	public FloatMat data()
 	{
+		if (source != null)
+			return source.data();
 		int batchSize = this.parent.inlet.batchSize;
 		return data != null && batchSize < data.col ? 
 				this.data.createColOffset(0, batchSize) : this.data;
@@ -104,6 +108,33 @@ public class DataUnit extends Unit
 		this.gradient = null;
 	}
 	
+	/**
+	 * A second consumer of the same data: shares 'data' but has its own gradient (if this has one),
+	 * so that several consumers can each write their gradient without overwriting the others
+	 * (DagNet sums them back), or a fused activation can overwrite its input in place.
+	 * NOTE: release only the branch gradient, never call destroy() on a branch.
+	 * @see deep.DagNet
+	 * @see ElementComputeUnit#fuseInto(ComputeUnit)
+	 */
+	public DataUnit createBranch(String name, ComputeUnit parent)
+	{
+		DataUnit branch = new DataUnit(name, parent, this.data,
+				this.hasGradient() ? new FloatMat(this.data) : null);
+		branch.source = this;
+		return branch;
+	}
+
+	/**
+	 * Release the GPU memory of both 'data' and 'gradient'
+	 */
+	public void destroy()
+	{
+		FloatMat.destroy(this.data);
+		FloatMat.destroy(this.gradient);
+		this.data = null;
+		this.gradient = null;
+	}
+	
 	/**
 	 * @return learningPlan from parent
 	 */
@@ -1,6 +1,6 @@
 package deep.units;
 
-import gpu.GpuBlas;
+import gpu.*;
 
 /**
  * Element-wise transformation
@@ -10,6 +10,8 @@ public abstract class ElementComputeUnit extends ComputeUnit
 {
 	private static final long serialVersionUID = 1L;
 	protected float scalor = 1;
+	// non-null if the producer unit runs this activation in place
+	protected ComputeUnit fusedInto = null;
 	
 	/**
 	 * outDim always equal to prev.outDim or input.dim
@@ -42,7 +44,45 @@ public abstract class ElementComputeUnit extends ComputeUnit
 		setupLink();
 		this.outDim = prev != null ?
 				prev.outDim : input.dim();
-		setupOutput();
+		if (fusedInto == null)
+			setupOutput();
+		else if (needsSetup(this.output))
+		{
+			// The pre-activation is overwritten in place: share the data, 
+			// but keep a separate gradient for backward
+			this.output = input.createBranch("Data[out]#" + this.name, this);
+			this.output.setSaveMode(outputSaveMode);
+		}
+	}
+	
+	/**
+	 * Let 'producer' apply this activation in place right after computing its output, 
+	 * so no pre-activation buffer is kept. Only valid if the backward pass doesn't need it. 
+	 * Needs to be called BEFORE setup()
+	 * @see #backwardNeedsInput()
+	 * @see deep.DeepNet#setFusion(boolean)
+	 */
+	public void fuseInto(ComputeUnit producer)
+	{
+		this.fusedInto = producer;
+		producer.setEpilogue(this);
+	}
+	
+	public boolean isFused() {	return this.fusedInto != null;	}
+	
+	/**
+	 * Does backward_element() read input.data() (the pre-activation)? 
+	 * Default true. Override to false if the gradient only needs output.data(). 
+	 */
+	public boolean backwardNeedsInput() {	return true;	}
+
+	@Override
+	public void destroy()
+	{
+		if (fusedInto == null)
+			super.destroy();
+		else if (output != null) // the data belongs to the producer
+			output.setNoGradient();
 	}
 	
 	/**
@@ -52,10 +92,19 @@ public abstract class ElementComputeUnit extends ComputeUnit
 	@Override
 	public final void forward()
 	{
-		forward_element(this.scalor);
+		// if fused, the producer already did it
+		if (fusedInto == null)
+			forward_element(input.data(), output.data(), this.scalor);
 	}
 	
-	public abstract void forward_element(float scalor);
+	/**
+	 * out = scalor * f(in), element-wise. Must not depend on any state of the unit, 
+	 * so that it can also run on buffers outside the net (in == out allowed)
+	 * @see deep.InferenceEngine
+	 */
+	public abstract void forward_element(FloatMat in, FloatMat out, float scalor);
+	
+	public float getScalor() {	return this.scalor;	}
 	
 	/**
 	 * 'final' ensures that subclass cannot directly override backward()
@@ -66,12 +115,15 @@ public abstract class ElementComputeUnit extends ComputeUnit
 	{
 		if (input.hasGradient())
 		{
-			backward_element();
-    		GpuBlas.dotMult(output.gradient(), input.gradient(), scalor);
+			backward_element(output.gradient(), input.gradient());
     		if (debug && hasBias)
     			input.gradient().fillLastRow0();
 		}
 	}
 	
-	public abstract void backward_element();
+	/**
+	 * Single pass: inGrad = scalor * f'(input) .* outGrad. 
+	 * inGrad and outGrad may be the same memory (mergeIO)
+	 */
+	public abstract void backward_element(FloatMat outGrad, FloatMat inGrad);
 }
@@ -0,0 +1,267 @@
+package deep.units;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.googlecode.javacpp.IntPointer;
+
+import gpu.*;
+import utils.CpuUtil;
+import deep.DeepException;
+import deep.Initializer;
+import deep.Initializer.ProjKernel;
+
+/**
+ * Fastfood structured random Fourier features (Le, Sarlos, Smola).
+ * Stands in for FourierProjectUnit: instead of a dense outDim * inDim projector,
+ * every block of d features (d = inDim padded to a power of 2) is projected by
+ * V = S H G Perm H B, with H the Walsh-Hadamard transform, B random signs,
+ * Perm a random permutation, G Gaussian and S chi-distributed row scalings.
+ * O(D log d) time and O(D) memory per column, D the number of features.
+ *
+ * Gaussian kernel rows are Gaussian in distribution. The Laplacian and Cauchy kernels
+ * are product kernels: their spectral distributions (Cauchy and Laplacian) are Gaussian
+ * scale mixtures, so each block draws one random scale per input dimension, folded into B.
+ * Those are stratified across blocks; see mixScales().
+ *
+ * Like FourierProjectUnit, the input must have an extra row for bias,
+ * and the output bias row is 0.
+ * The structured matrices are regenerated from 'seed' at setup, so nothing is saved.
+ */
+public class FastfoodProjectUnit extends ComputeUnit
+{
+	private static final long serialVersionUID = 1L;
+
+	private ProjKernel kernelType;
+	private float gamma;
+	private long seed;
+
+	// block size (power of 2) and number of blocks
+	private int d, blocks;
+	// input rows without the bias row, output features without the bias row
+	private int inDim, features;
+
+	// B (random signs) times the per-dimension kernel scales, zero for the padding. d * blocks
+	private transient FloatMat diag;
+	// G. d * blocks
+	private transient FloatMat gauss;
+	// within each block: perm[k*d + j] = k*d + perm_k(j)
+	private transient IntPointer perm;
+	// S / (|G| * sqrt(d)), and U[0, 2*PI] phases. features each
+	private transient FloatMat scale, bias;
+	// d * blocks rows, MaxBatchSize
+	private transient FloatMat work, work2;
+
+	/**
+	 * 'hasBias' must be true because the U[0, 2*pi] phases need to be added
+	 * @param gamma same as in Initializer.projKernelIniter()
+	 * @param seed generates all the structured matrices
+	 */
+	public FastfoodProjectUnit(String name, InletUnit inlet, int outDim, ProjKernel kernelType, float gamma, long seed)
+	{
+		super(name, inlet, outDim, true);
+		this.kernelType = kernelType;
+		this.gamma = gamma;
+		this.seed = seed;
+	}
+
+	public FastfoodProjectUnit(String name, InletUnit inlet, int outDim, ProjKernel kernelType, float gamma)
+	{
+		this(name, inlet, outDim, kernelType, gamma, Initializer.nextSeed());
+	}
+
+	public long getSeed() {	return this.seed;	}
+
+	/**
+	 * Regenerates the structured matrices if already setup, e.g. to share another unit's projection
+	 */
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+		if (diag != null)
+			reInitProjector();
+	}
+
+	@Override
+	public void setup()
+	{
+		if (!hasBias && !debug)
+			throw new DeepException("FastfoodProjectUnit requires that hasBias is set to true.");
+
+		super.setup();
+		if (diag == null)
+			reInitProjector();
+	}
+
+	/**
+	 * Regenerate the structured matrices from the seed
+	 */
+	public void reInitProjector()
+	{
+		destroyProjector();
+		this.inDim = input.dim() - 1;
+		this.features = outDim - 1;
+		this.d = Integer.highestOneBit(Math.max(inDim, 1));
+		if (d < inDim)	d <<= 1;
+		this.blocks = (features + d - 1) / d;
+		int segment = d * blocks;
+
+		Random rand = new Random(seed);
+		float scalor = Initializer.gammaToScalor(gamma, kernelType);
+		float[] diagHost = new float[segment];
+		float[] gaussHost = new float[segment];
+		int[] permHost = new int[segment];
+		float[] scaleHost = new float[features];
+		float[] biasHost = new float[features];
+		float[][] mix = mixScales(rand);
+		int[] p = new int[d];
+		for (int k = 0; k < blocks; k++)
+		{
+			int base = k * d;
+			double gaussNorm = 0;
+			for (int j = 0; j < d; j++)
+			{
+				if (j < inDim)
+					diagHost[base + j] = (rand.nextBoolean() ? scalor : -scalor) * mix[j][k];
+				gaussHost[base + j] = (float) rand.nextGaussian();
+				gaussNorm += gaussHost[base + j] * gaussHost[base + j];
+				p[j] = j;
+			}
+			// Fisher-Yates
+			for (int j = d - 1; j > 0; j--)
+			{
+				int r = rand.nextInt(j + 1);
+				int tmp = p[j]; p[j] = p[r]; p[r] = tmp;
+			}
+			for (int j = 0; j < d; j++)
+			{
+				permHost[base + j] = base + p[j];
+				// row norms of a d-dim Gaussian are chi distributed
+				if (base + j < features)
+					scaleHost[base + j] = (float) Math.sqrt(chiSquare(rand, d) / (gaussNorm * d));
+			}
+		}
+		for (int f = 0; f < features; f++)
+			biasHost[f] = (float) (rand.nextDouble() * 2 * Math.PI);
+
+		diag = new FloatMat(diagHost);
+		gauss = new FloatMat(gaussHost);
+		perm = Thrust.copy_host_to_device(permHost);
+		scale = new FloatMat(scaleHost);
+		bias = new FloatMat(biasHost);
+		work = new FloatMat(segment, inlet.MaxBatchSize, false);
+		work2 = new FloatMat(segment, inlet.MaxBatchSize, false);
+	}
+
+	/**
+	 * Per-dimension scales of a Gaussian scale mixture, relative to gammaToScalor(), for every block. 
+	 * All features of a block share them, so each dimension is stratified across the blocks
+	 * (Latin hypercube) to keep the kernel estimate's variance close to the dense projector's
+	 * @return [inDim][blocks]
+	 */
+	private float[][] mixScales(Random rand)
+	{
+		float[][] mix = new float[inDim][blocks];
+		int[] strata = new int[blocks];
+		for (int j = 0; j < inDim; j++)
+		{
+			if (kernelType == ProjKernel.Gaussian)
+			{
+				Arrays.fill(mix[j], 1);
+				continue;
+			}
+			for (int k = 0; k < blocks; k++)
+				strata[k] = k;
+			for (int k = blocks - 1; k > 0; k--)
+			{
+				int r = rand.nextInt(k + 1);
+				int tmp = strata[k]; strata[k] = strata[r]; strata[r] = tmp;
+			}
+			for (int k = 0; k < blocks; k++)
+			{
+				double u = (strata[k] + rand.nextDouble()) / blocks;
+				mix[j][k] = (float) (kernelType == ProjKernel.Laplacian ?
+						// Cauchy = Gaussian / |Gaussian|
+						1 / CpuUtil.normalQuantile((1 + u) / 2) :
+						// Laplacian = Gaussian * sqrt(2 * Exponential)
+						Math.sqrt(-2 * Math.log(1 - u)));
+			}
+		}
+		return mix;
+	}
+
+	/**
+	 * Chi-square with n degrees of freedom: 2 * Gamma(n/2), Marsaglia-Tsang
+	 */
+	private static double chiSquare(Random rand, int n)
+	{
+		double alpha = n / 2.0;
+		// Gamma(alpha) = Gamma(alpha + 1) * U^(1/alpha) for alpha < 1
+		double boost = alpha < 1 ? Math.pow(rand.nextDouble(), 1 / alpha) : 1;
+		if (alpha < 1)	alpha += 1;
+		double dd = alpha - 1.0 / 3, c = 1 / Math.sqrt(9 * dd);
+		while (true)
+		{
+			double x = rand.nextGaussian();
+			double v = 1 + c * x;
+			if (v <= 0)	continue;
+			v = v * v * v;
+			if (Math.log(rand.nextDouble()) < 0.5 * x * x + dd - dd * v + dd * Math.log(v))
+				return 2 * dd * v * boost;
+		}
+	}
+
+	/**
+	 * The work buffers are allocated for MaxBatchSize
+	 */
+	private FloatMat batch(FloatMat mat)
+	{
+		int batchSize = inlet.batchSize;
+		return batchSize < mat.col ? mat.createColOffset(0, batchSize) : mat;
+	}
+
+	@Override
+	public void forward()
+	{
+		FloatMat work = batch(this.work), work2 = batch(this.work2);
+		Thrust.fastfood_expand(input.data(), inDim, diag, d, work);
+		Thrust.fwht(work, d);
+		Thrust.fastfood_permute(work, perm, gauss, work2, false);
+		Thrust.fwht(work2, d);
+		Thrust.fastfood_contract(work2, scale, bias, output.data());
+		runEpilogue();
+	}
+
+	@Override
+	public void backward()
+	{
+		// V^T = B H Perm^T G H S
+		if (input.hasGradient())
+		{
+			FloatMat work = batch(this.work), work2 = batch(this.work2);
+			// a single block that spans the whole work column
+			Thrust.fastfood_expand(output.gradient(), features, scale, work.row, work);
+			Thrust.fwht(work, d);
+			Thrust.fastfood_permute(work, perm, gauss, work2, true);
+			Thrust.fwht(work2, d);
+			Thrust.fastfood_reduce(work2, diag, d, inDim, input.gradient());
+		}
+	}
+
+	private void destroyProjector()
+	{
+		if (diag == null)	return;
+		diag.destroy(); gauss.destroy();
+		scale.destroy(); bias.destroy();
+		work.destroy(); work2.destroy();
+		Thrust.free_device(perm);
+		diag = null;
+	}
+
+	@Override
+	public void destroy()
+	{
+		super.destroy();
+		destroyProjector();
+	}
+}
@@ -0,0 +1,265 @@
+package deep.units;
+
+import gpu.*;
+import deep.DeepException;
+import deep.Initializer;
+
+/**
+ * Streaming FourierProjectUnit -> CosineUnit -> LinearUnit in a single unit.
+ * The random features are processed in blocks of rows: project a block, take the cosine,
+ * and accumulate W's matching columns times the block into the output.
+ * The full features * batch matrix is never materialized, so activation memory is
+ * bounded by the block size instead of the number of features.
+ * backward() streams the same way and recomputes each feature block instead of storing it.
+ * W is features+1 wide (bias column last), exactly the unfused LinearUnit's.
+ * The input must have an extra row for bias.
+ */
+public class FourierLinearUnit extends ParamComputeUnit
+{
+	private static final long serialVersionUID = 1L;
+
+	private int features;
+	private float scalor;
+	private Initializer projIniter;
+	private int blockRows = 4096;
+	// Not learned: features * input.dim(). Null if regenerated
+	private ParamUnit projector;
+	private boolean regenerate = false;
+	private long seed;
+
+	// block buffers, blockRows * MaxBatchSize
+	private transient FloatMat projBlock, featureBlock, gradBlock;
+	// regenerated projector rows, blockRows * input.dim()
+	private transient FloatMat tile;
+	// the bias feature, 1 * MaxBatchSize
+	private transient FloatMat ones;
+
+	/**
+	 * @param features number of random Fourier features
+	 * @param outDim output dimension of the linear layer
+	 * @param projIniter use a projKernelIniter instead of a pure distrIniter
+	 * @param wInitializer for the linear layer
+	 */
+	public FourierLinearUnit(String name, InletUnit inlet, int features, int outDim,
+			Initializer projIniter, Initializer wInitializer)
+	{
+		super(name, inlet, outDim, wInitializer);
+		this.features = features;
+		this.projIniter = projIniter;
+		// scalor = sqrt(2/D) where D is #new features
+		this.scalor = (float) Math.sqrt(2.0 / features);
+	}
+
+	/**
+	 * Features processed at a time. Default 4096.
+	 * Needs to be called BEFORE setup()
+	 */
+	public void setBlockRows(int blockRows) {	this.blockRows = blockRows;	}
+
+	/**
+	 * Regenerate the projector block by block from a counter-based RNG instead of storing it.
+	 * The projIniter must support Initializer.initTile().
+	 * Needs to be called BEFORE setup(), except to change the seed of an already regenerated projector
+	 * @see FourierProjectUnit#setRegenerate(int, long)
+	 */
+	public void setRegenerate(long seed)
+	{
+		if (projector != null)
+			throw new DeepException(name + " is already setup with a stored projector");
+		this.regenerate = true;
+		this.seed = seed;
+	}
+
+	public void setRegenerate()	{	setRegenerate(Initializer.nextSeed());	}
+
+	public boolean isRegenerated() {	return this.regenerate;	}
+
+	public long getSeed() {	return this.seed;	}
+
+	/**
+	 * The stored projector, doesn't allocate anything. A regenerated projector isn't stored
+	 */
+	public FloatMat getProjection()
+	{
+		if (regenerate)
+			throw new DeepException(name + " regenerates its projector: it isn't stored");
+		return projector.data();
+	}
+
+	/**
+	 * Project exactly like 'other', e.g. a structurally identical unit of a replica net.
+	 * The projector isn't in the ParamList: a regenerated one only takes the seed, a stored one is copied.
+	 * Both units must be setup
+	 */
+	public void copyProjectionFrom(FourierLinearUnit other)
+	{
+		if (regenerate != other.regenerate)
+			throw new DeepException(name + " and " + other.name + " don't both regenerate their projector");
+		if (regenerate)
+			this.seed = other.seed;
+		else
+			projector.data().copyFrom(other.projector.data());
+	}
+
+	@Override
+	public void setup()
+	{
+		if (!hasBias && !debug)
+			throw new DeepException("FourierLinearUnit requires that hasBias is set to true.");
+
+		super.setup();
+		// the projector has no bias row: the bias feature is handled separately
+		projIniter.setBias(false);
+		if (!regenerate && this.needsSetup(projector))
+		{
+			projector = new ParamUnit(
+					"Param[projector]#" + this.name,
+					this,
+					features,
+					input.dim());
+			projector.setNoGradient();
+			projIniter.init(projector);
+		}
+		if (projBlock == null)
+		{
+			int rows = Math.min(blockRows, features);
+			projBlock = new FloatMat(rows, inlet.MaxBatchSize, false);
+			featureBlock = new FloatMat(rows, inlet.MaxBatchSize, false);
+			gradBlock = new FloatMat(rows, inlet.MaxBatchSize, false);
+			if (regenerate)
+				tile = new FloatMat(rows, input.dim(), false);
+			ones = new FloatMat(1, inlet.MaxBatchSize, false);
+			ones.fill(1);
+		}
+	}
+
+	@Override
+	protected void setupW_()
+	{
+		this.initer.setBias(hasBias);
+		this.W = new ParamUnit(
+				"Param#" + this.name,
+				this,
+				this.outDim,
+				features + 1);
+		reInit();
+	}
+
+	/**
+	 * Rows [rowStart, rowStart + rows) of the projector
+	 */
+	private FloatMat projRows(int rowStart, int rows)
+	{
+		if (!regenerate)
+			return projector.data().createRowOffset(rowStart, rowStart + rows);
+		FloatMat tile = rows == this.tile.row ?
+				this.tile : this.tile.createOffset(0, rows * this.tile.col, rows);
+		projIniter.initTile(tile, seed, rowStart);
+		return tile;
+	}
+
+	/**
+	 * Leading 'rows' rows of a block buffer, current batch size
+	 */
+	private FloatMat block(FloatMat buffer, int rows)
+	{
+		int batchSize = inlet.batchSize;
+		return rows == buffer.row && batchSize == buffer.col ?
+				buffer : buffer.createOffset(0, rows * batchSize, rows);
+	}
+
+	/**
+	 * Projection and cosine features of one block
+	 * @return the projection rows
+	 */
+	private FloatMat computeBlock(int rowStart, FloatMat proj, FloatMat feature)
+	{
+		FloatMat projRows = projRows(rowStart, proj.row);
+		GpuBlas.mult(projRows, input.data(), proj);
+		Thrust.cos(proj, feature, 1, 0, scalor);
+		return projRows;
+	}
+
+	@Override
+	public void forward()
+	{
+		input.data().fillLastRow1();
+		FloatMat out = output.data();
+		for (int r = 0; r < features; r += blockRows)
+		{
+			int rows = Math.min(blockRows, features - r);
+			FloatMat feature = block(featureBlock, rows);
+			computeBlock(r, block(projBlock, rows), feature);
+			GpuBlas.mult(W.data().createColOffset(r, r + rows), feature, out, 1, r == 0 ? 0 : 1);
+		}
+		// bias feature
+		GpuBlas.mult(W.data().createColOffset(features, features + 1),
+				ones.createColOffset(0, inlet.batchSize), out, 1, 1);
+	}
+
+	@Override
+	public void backward()
+	{
+		FloatMat outGrad = output.gradient();
+		boolean updateW = W.hasGradient();
+		if (!input.hasGradient() && !updateW)	return;
+
+		if (updateW)	beginUpdateW();
+		for (int r = 0; r < features; r += blockRows)
+		{
+			int rows = Math.min(blockRows, features - r);
+			FloatMat proj = block(projBlock, rows), feature = block(featureBlock, rows);
+			FloatMat projRows = computeBlock(r, proj, feature);
+			FloatMat wCols = W.data().createColOffset(r, r + rows);
+
+			// before W's block is updated
+			if (input.hasGradient())
+			{
+				FloatMat grad = block(gradBlock, rows);
+				GpuBlas.mult(wCols.transpose(), outGrad, grad);
+				// cos' = -sin
+				Thrust.sin_mult(proj, grad, grad, 1, 0, -scalor);
+				GpuBlas.mult(projRows.transpose(), grad, input.gradient(), 1, r == 0 ? 0 : 1);
+			}
+			if (updateW)
+			{
+				// In debug mode, we explicitly store the parameter gradient
+				if (debug)
+					GpuBlas.mult(outGrad, feature.transpose(), W.gradient().createColOffset(r, r + rows));
+				updateWCols(outGrad, feature, r);
+			}
+		}
+		if (debug && input.hasGradient())
+			input.gradient().fillLastRow0();
+
+		if (updateW)
+		{
+			FloatMat ones = this.ones.createColOffset(0, inlet.batchSize);
+			if (debug)
+			{
+				GpuBlas.mult(outGrad, ones.transpose(), W.gradient().createColOffset(features, features + 1));
+				getPlan().regScheme.regGradUpdate(this);
+				W.gradient().fillLastRow0();
+			}
+			updateWCols(outGrad, ones, features);
+			endUpdateW();
+		}
+	}
+
+	@Override
+	public void destroy()
+	{
+		super.destroy();
+		if (projector != null)
+			projector.destroy();
+		if (projBlock != null)
+		{
+			projBlock.destroy();
+			featureBlock.destroy();
+			gradBlock.destroy();
+			ones.destroy();
+			if (tile != null)
+				tile.destroy();
+		}
+	}
+}
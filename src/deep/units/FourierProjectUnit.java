@@ -15,6 +15,11 @@ public class FourierProjectUnit extends ComputeUnit
 	private ParamUnit projector;
 	private Initializer projIniter; // projection
 	
+	// > 0: the projector is never stored, but regenerated in tiles of this many rows
+	private int tileRows = 0;
+	private long seed;
+	private transient FloatMat tile;
+	
 	/**
 	 * 	Default: assume input has an extra row of 1 (bias unit), 
 	 * the projection matrix will have an extra row all zeros, except for the last element which is a 1.
@@ -35,8 +40,16 @@ public class FourierProjectUnit extends ComputeUnit
 			throw new DeepException("FourierProjectUnit requires that hasBias is set to true.");
 			
 		super.setup();
+		if (isRegenerated())
+		{
+			if (tile == null)
+			{
+				this.projIniter.setBias(hasBias);
+				tile = new FloatMat(Math.min(tileRows, outDim), input.dim(), false);
+			}
+		}
 		// Either it's the first-time setup, or we are loading from disk and we aren't saving anything
-		if (this.needsSetup(projector))
+		else if (this.needsSetup(projector))
 		{
     		projector = new ParamUnit(
     				"Param[projector]#" + this.name, 
@@ -49,25 +62,127 @@ public class FourierProjectUnit extends ComputeUnit
 	}
 	
 	/**
-	 * Explicitly reinitialize the projector
+	 * Regenerate the projector tile by tile in forward() and backward() from a counter-based RNG
+	 * instead of storing it: only the seed is kept and saved. 
+	 * The projIniter must support Initializer.initTile(). 
+	 * Needs to be called BEFORE setup(), 
+	 * except to change the seed and tile size of an already regenerated projector
+	 * @param tileRows rows of the projector generated for each GEMM
+	 */
+	public void setRegenerate(int tileRows, long seed)
+	{
+		if (projector != null || tile != null && tileRows <= 0)
+			throw new DeepException(name + " is already setup with a stored projector");
+		if (tile != null && tileRows != this.tileRows)
+		{
+			tile.destroy();
+			tile = new FloatMat(Math.min(tileRows, outDim), input.dim(), false);
+		}
+		this.tileRows = tileRows;
+		this.seed = seed;
+	}
+	
+	public void setRegenerate(int tileRows)
+	{
+		setRegenerate(tileRows, Initializer.nextSeed());
+	}
+	
+	public boolean isRegenerated() {	return tileRows > 0;	}
+	
+	/**
+	 * Explicitly reinitialize the projector. 
+	 * Regenerated projectors don't need it.
 	 */
 	public void reInitProjector()
 	{
+		if (isRegenerated())	return;
 		this.projIniter.setBias(hasBias); // hasBias is always true
 		this.projIniter.init(projector);
 	}
 	
+	/**
+	 * The stored projector, doesn't allocate anything. 
+	 * A regenerated projector isn't stored: see {@link #genProjection()}
+	 */
 	public FloatMat getProjection()
 	{
+		if (isRegenerated())
+			throw new DeepException(name + " regenerates its projector: it isn't stored");
 		return projector.data();
 	}
+	
+	/**
+	 * The full projector as a new matrix that the caller owns, 
+	 * also for a regenerated projector
+	 */
+	public FloatMat genProjection()
+	{
+		FloatMat full = new FloatMat(outDim, input.dim(), false);
+		if (!isRegenerated())
+			return full.copyFrom(projector.data());
+		projIniter.initTile(full, seed, 0);
+		if (hasBias)
+			full.fillLastRow0();
+		return full;
+	}
+	
+	public long getSeed() {	return this.seed;	}
+	
+	public int getTileRows() {	return this.tileRows;	}
+	
+	/**
+	 * Project exactly like 'other', e.g. a structurally identical unit of a replica net. 
+	 * A regenerated projector only takes the seed and tile size, a stored one is copied. 
+	 * Both units must be setup
+	 */
+	public void copyProjectionFrom(FourierProjectUnit other)
+	{
+		if (isRegenerated() != other.isRegenerated())
+			throw new DeepException(name + " and " + other.name + " don't both regenerate their projector");
+		if (isRegenerated())
+			setRegenerate(other.tileRows, other.seed);
+		else
+			projector.data().copyFrom(other.projector.data());
+	}
+	
+	/**
+	 * Regenerate rows [rowStart, rowStart + tileRows) of the projector
+	 */
+	private FloatMat genTile(int rowStart)
+	{
+		int rows = Math.min(tileRows, outDim - rowStart);
+		FloatMat tile = rows == this.tile.row ? 
+				this.tile : this.tile.createOffset(0, rows * this.tile.col, rows);
+		projIniter.initTile(tile, seed, rowStart);
+		if (hasBias && rowStart + rows == outDim)
+			tile.fillLastRow0();
+		return tile;
+	}
+
+	@Override
+	public void destroy()
+	{
+		super.destroy();
+		if (projector != null)
+			projector.destroy();
+		if (tile != null)
+			tile.destroy();
+	}
 
 	@Override
 	public void forward()
 	{
 		if (hasBias)   // hasBias must be true for the projection to work
     		input.data().fillLastRow1();
-		GpuBlas.mult(projector.data(), input.data(), output.data());
+		if (isRegenerated())
+			for (int r = 0; r < outDim; r += tileRows)
+			{
+				FloatMat tile = genTile(r);
+				GpuBlas.mult(tile, input.data(), output.data().createRowOffset(r, r + tile.row));
+			}
+		else
+			GpuBlas.mult(projector.data(), input.data(), output.data());
+		runEpilogue();
 	}
 
 	@Override
@@ -77,7 +192,15 @@ public class FourierProjectUnit extends ComputeUnit
 		// Don't upgrade the gradient of the input layer, of course
 		if (input.hasGradient())
 		{
-			GpuBlas.mult(projector.data().transpose(), output.gradient(), input.gradient());
+			if (isRegenerated())
+				for (int r = 0; r < outDim; r += tileRows)
+				{
+					FloatMat tile = genTile(r);
+					GpuBlas.mult(tile.transpose(), output.gradient().createRowOffset(r, r + tile.row), 
+							input.gradient(), 1, r == 0 ? 0 : 1);
+				}
+			else
+				GpuBlas.mult(projector.data().transpose(), output.gradient(), input.gradient());
     		if (debug && hasBias)
     			input.gradient().fillLastRow0();
 		}
@@ -59,7 +59,7 @@ public abstract class InletUnit extends DataUnit
 	
 	/**
 	 * Update the critical 'batchSize' field used across the entire net. 
-	 * Update learningPlan.doneSampleSize
+	 * Update learningPlan.doneSampleSize and the gradient accumulation cycle
 	 * @return this.batchSize
 	 * @see #nextBatch_() public interface to the abstract method
 	 */
@@ -69,6 +69,7 @@ public abstract class InletUnit extends DataUnit
 		if (this.batchSize <= 0)
 			throw new DeepException("InletUnit should not yield batchSize " + batchSize);
 		this.getPlan().doneSampleSize += this.batchSize;
+		this.getPlan().updateAccum(this.batchSize);
 		return this.batchSize;
 	}
 
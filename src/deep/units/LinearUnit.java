@@ -1,12 +1,13 @@
 package deep.units;
 
 import deep.*;
-import deep.RegScheme.L2RegScheme;
 import gpu.GpuBlas;
 
 public class LinearUnit extends ParamComputeUnit
 {
 	private static final long serialVersionUID = 1L;
+	// forward() and backward() are done by the next unit
+	private transient boolean deferred = false;
 
 	public LinearUnit(String name, InletUnit inlet, int outDim, boolean hasBias, Initializer initer)
 	{
@@ -30,21 +31,34 @@ public class LinearUnit extends ParamComputeUnit
 		reInit();
 	}
 	
+	/**
+	 * Hand forward() and backward() over to the next unit, 
+	 * which only computes the rows of W it needs
+	 * @see SampledSoftmaxTUnit
+	 */
+	public void setDeferred(boolean deferred) {	this.deferred = deferred;	}
+	
+	@Override
+	protected boolean supportsLazyDecay() {	return true;	}
+	
 	@Override
 	public void forward()
 	{
+		if (deferred)	return;
 		if (hasBias)
 			input.data().fillLastRow1();
-		GpuBlas.mult(W.data(), input.data(), output.data());
+		GpuBlas.mult(W.data(), input.data(), output.data(), W.scale(), 0);
+		runEpilogue();
 	}
 
 	@Override
 	public void backward()
 	{
+		if (deferred)	return;
 		// update input.gradient() only when necessary 
 		// Don't upgrade the gradient of the inlet layer, of course
 		if (input.hasGradient())
-			GpuBlas.mult(W.data().transpose(), output.gradient(), input.gradient());
+			GpuBlas.mult(W.data().transpose(), output.gradient(), input.gradient(), W.scale(), 0);
 
 		if (W.hasGradient())
 		{
@@ -56,21 +70,7 @@ public class LinearUnit extends ParamComputeUnit
     			if (hasBias) W.gradient().fillLastRow0();
     		}
 
-    		// update W with reg
-    		float lr = getPlan().lr;
-    		
-    		// Optimization specific to L2 regularizer
-    		// division by batchSize should be done in the terminal unit
-    		if (getPlan().regScheme instanceof L2RegScheme)
-        		GpuBlas.mult(output.gradient(), input.data().transpose(), W.data(), 
-                    				- lr, 1 - lr * getPlan().reg);
-    		else
-    		{
-    			getPlan().regScheme.regParamUpdate(this);
-        		GpuBlas.mult(output.gradient(), input.data().transpose(), W.data(), -lr, 1);
-    		}
-    		if (hasBias)
-    			W.data().fillLastRow0();
+    		updateW(output.gradient(), input.data());
 		}
 	}
 
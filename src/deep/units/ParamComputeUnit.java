@@ -1,6 +1,8 @@
 package deep.units;
 
 import deep.*;
+import deep.RegScheme.L2RegScheme;
+import gpu.*;
 
 public abstract class ParamComputeUnit extends ComputeUnit
 {
@@ -56,6 +58,26 @@ public abstract class ParamComputeUnit extends ComputeUnit
 			this.W.initGradient();
 		else
 			this.W.setDummyGradient();
+		
+		LearningPlan plan = getPlan();
+		if (plan.hasMomentum() && plan.hasOptimizer())
+			throw new DeepException("Momentum and an adaptive optimizer can't be combined");
+		
+		// the optimizer's gradient goes into the accumulator
+		if (plan.doesAccumGradient() || plan.hasOptimizer())
+			this.W.initAccum();
+		else
+			this.W.destroyAccum();
+		
+		if (plan.hasMomentum())
+			this.W.initVelocity();
+		else
+			this.W.destroyVelocity();
+		
+		if (plan.hasOptimizer())
+			this.W.initOptState(plan.optimizer.stateSize());
+		else
+			this.W.destroyOptState();
 	}
 	
 	/**
@@ -65,6 +87,179 @@ public abstract class ParamComputeUnit extends ComputeUnit
 	 */
 	protected abstract void setupW_();
 	
+	/**
+	 * SGD step with the parameter gradient outGrad * inData^T, 
+	 * which is already normalized by batch size in the terminal unit. 
+	 * If the LearningPlan accumulates gradients, the batch gradient only goes into W.accum(): 
+	 * the actual update happens once per cycle in {@link #applyAccumGradient()}. 
+	 * With momentum, the batch gradient goes into W.velocity(), and W is updated in one pass at the end. 
+	 * With an adaptive optimizer, the batch gradient goes into W.accum() for the optimizer's pass
+	 */
+	protected void updateW(FloatMat outGrad, FloatMat inData)
+	{
+		beginUpdateW();
+		updateWCols(outGrad, inData, 0);
+		endUpdateW();
+	}
+	
+	/**
+	 * Streamed updateW(), for units that never hold their whole input at once: 
+	 * beginUpdateW() once, updateWCols() for every block of input rows, then endUpdateW(). 
+	 * Each column of W must be covered exactly once per step.
+	 */
+	protected void beginUpdateW()
+	{
+		LearningPlan plan = getPlan();
+		if (!plan.doesAccumGradient() && !(plan.regScheme instanceof L2RegScheme))
+			plan.regScheme.regParamUpdate(this);
+		else if (lazyDecay())
+			W.decayScale(1 - plan.lr * plan.reg);
+	}
+	
+	/**
+	 * Does the unit read W as W.scale() * W.data()? Default false. 
+	 * Units that update W while still reading it in backward() (streamed) can't support it
+	 * @see LearningPlan#setLazyDecay(boolean)
+	 */
+	protected boolean supportsLazyDecay() {	return false;	}
+	
+	/**
+	 * Is the L2 decay of this step only a scalar update of W.scale()?
+	 */
+	protected boolean lazyDecay()
+	{
+		LearningPlan plan = getPlan();
+		return plan.lazyDecay && supportsLazyDecay() && !debug 
+				&& plan.regScheme instanceof L2RegScheme && plan.hasReg()
+				&& !plan.doesAccumGradient() && !plan.hasMomentum() && !plan.hasOptimizer();
+	}
+	
+	/**
+	 * Update columns [colStart, colStart + inBlock.row) of W with outGrad * inBlock^T
+	 * @see #beginUpdateW()
+	 */
+	protected void updateWCols(FloatMat outGrad, FloatMat inBlock, int colStart)
+	{
+		LearningPlan plan = getPlan();
+		if (plan.doesAccumGradient())
+		{
+			// Weighted by batch size: the cycle gradient is then the mean over all its samples, 
+			// even if the last batch of an epoch is smaller
+			GpuBlas.mult(outGrad, inBlock.transpose(), wCols(W.accum(), colStart, inBlock.row), 
+					inlet.batchSize, plan.isFirstAccumBatch() ? 0 : 1);
+			return;
+		}
+		
+		if (plan.hasOptimizer())
+		{
+			GpuBlas.mult(outGrad, inBlock.transpose(), wCols(W.accum(), colStart, inBlock.row));
+			return;
+		}
+		
+		float lr = plan.lr;
+		if (plan.hasMomentum())
+		{
+			FloatMat vCols = wCols(W.velocity(), colStart, inBlock.row);
+			// Nesterov: shift W back to the non-lookahead point, column block by column block, 
+			// so that streamed units can still read the untouched W of the next blocks
+			if (plan.nesterov)
+				Thrust.nesterov_prepare(wCols(W.data(), colStart, inBlock.row), vCols, 
+						plan.momentum, l2LrReg(plan));
+			GpuBlas.mult(outGrad, inBlock.transpose(), vCols, 
+					- lr, plan.nesterov ? 1 : plan.momentum);
+			return;
+		}
+		// the decay is already in W.scale()
+		if (lazyDecay())
+			GpuBlas.mult(outGrad, inBlock.transpose(), wCols(W.data(), colStart, inBlock.row), 
+					- lr / W.scale(), 1);
+		// Optimization specific to L2 regularizer
+		else if (plan.regScheme instanceof L2RegScheme)
+			GpuBlas.mult(outGrad, inBlock.transpose(), wCols(W.data(), colStart, inBlock.row), 
+					- lr, 1 - lr * plan.reg);
+		else
+			GpuBlas.mult(outGrad, inBlock.transpose(), wCols(W.data(), colStart, inBlock.row), -lr, 1);
+	}
+	
+	/**
+	 * @see #beginUpdateW()
+	 */
+	protected void endUpdateW()
+	{
+		LearningPlan plan = getPlan();
+		if (plan.doesAccumGradient())	return;
+		if (plan.hasOptimizer())
+			plan.optimizer.update(this, 1);
+		else if (plan.hasMomentum())
+			applyVelocity(plan);
+		else if (hasBias)
+			W.data().fillLastRow0();
+	}
+	
+	/**
+	 * Single fused pass W += V, which also takes care of L2 and the bias row. 
+	 * Nesterov: W += (1 + momentum) * V, after nesterov_prepare()
+	 */
+	private void applyVelocity(LearningPlan plan)
+	{
+		if (plan.nesterov)
+			Thrust.momentum_apply(W.data(), W.velocity(), 0, 1 + plan.momentum, hasBias);
+		else
+			Thrust.momentum_apply(W.data(), W.velocity(), l2LrReg(plan), 1, hasBias);
+	}
+	
+	/**
+	 * lr * reg if the L2 decay is folded into the velocity, otherwise 0
+	 */
+	private static float l2LrReg(LearningPlan plan)
+	{
+		return plan.regScheme instanceof L2RegScheme && plan.hasReg() ? plan.lr * plan.reg : 0;
+	}
+	
+	private static FloatMat wCols(FloatMat w, int colStart, int cols)
+	{
+		return colStart == 0 && cols == w.col ? w : w.createColOffset(colStart, colStart + cols);
+	}
+	
+	/**
+	 * Update W once with the gradient accumulated over the current cycle. 
+	 * Regularization is applied once per update, with the current lr. 
+	 * @see DeepNet#applyAccumGradient()
+	 */
+	public void applyAccumGradient()
+	{
+		LearningPlan plan = getPlan();
+		float lr = plan.lr;
+		float normalizer = 1f / plan.accumSampleSize;
+		if (plan.hasOptimizer())
+		{
+			if (!(plan.regScheme instanceof L2RegScheme))
+				plan.regScheme.regParamUpdate(this);
+			plan.optimizer.update(this, normalizer);
+			return;
+		}
+		if (plan.hasMomentum())
+		{
+			if (!(plan.regScheme instanceof L2RegScheme))
+				plan.regScheme.regParamUpdate(this);
+			if (plan.nesterov)
+				Thrust.nesterov_prepare(W.data(), W.velocity(), plan.momentum, l2LrReg(plan));
+			GpuBlas.add(W.velocity(), W.accum(), W.velocity(), 
+					plan.nesterov ? 1 : plan.momentum, - lr * normalizer);
+			applyVelocity(plan);
+			return;
+		}
+		if (plan.regScheme instanceof L2RegScheme)
+			GpuBlas.add(W.data(), W.accum(), W.data(), 1 - lr * plan.reg, - lr * normalizer);
+		else
+		{
+			plan.regScheme.regParamUpdate(this);
+			GpuBlas.scaleAdd(W.accum(), W.data(), - lr * normalizer);
+		}
+		if (hasBias)
+			W.data().fillLastRow0();
+	}
+	
 	/**
 	 * Serialization 
 	 * Default SAVE_DATA
@@ -76,6 +271,14 @@ public abstract class ParamComputeUnit extends ComputeUnit
 			this.W.setSaveMode(this.paramSaveMode);
 	}
 	
+	@Override
+	public void destroy()
+	{
+		super.destroy();
+		if (W != null)
+			W.destroy();
+	}
+	
 	/**
 	 * Re-initialize W
 	 */
@@ -2,11 +2,28 @@ package deep.units;
 
 import java.io.*;
 import deep.*;
-import gpu.FloatMat;
+import utils.FileUtil;
+import gpu.*;
 
 public class ParamUnit extends DataUnit
 {
 	private static final long serialVersionUID = 1L;
+	// Gradient accumulator, only allocated if the LearningPlan accumulates gradients
+	protected transient FloatMat accum = null;
+	// Momentum velocity, only allocated if the LearningPlan has momentum. Saved along with 'data'
+	protected transient FloatMat velocity = null;
+	private boolean hasVelocity = false;
+	// Adaptive optimizer states, only allocated if the LearningPlan has an optimizer. Saved along with 'data'
+	protected transient FloatMat[] optState = null;
+	private int optStates = 0;
+	// number of optimizer updates so far
+	private int optStep = 0;
+	// 'data' is a view into a ParamList arena, which owns the memory
+	private transient boolean arenaView = false;
+	// Lazy L2 decay: the actual parameter is scale * data
+	private float scale = 1;
+	// renormalize once the scale leaves [MIN_SCALE, 1 / MIN_SCALE]
+	private static final float MIN_SCALE = 1e-3f;
 
 	/**
 	 * Unless in debug mode, we don't explicitly store the parameter gradient
@@ -33,7 +50,29 @@ public class ParamUnit extends DataUnit
 	@Override
 	public FloatMat data() { return this.data; }
 	
-	public void setData(FloatMat data) { this.data = data; }
+	public void setData(FloatMat data)
+	{
+		this.data = data;
+		this.arenaView = false;
+	}
+	
+	/**
+	 * Copy 'data' into a view of a ParamList arena, and release the old memory
+	 * @see ParamList#pack()
+	 */
+	public void moveToArena(FloatMat view)
+	{
+		view.copyFrom(this.data);
+		if (!arenaView)
+			FloatMat.destroy(this.data);
+		this.data = view;
+		this.arenaView = true;
+	}
+	
+	/**
+	 * Is 'data' a view into a ParamList arena?
+	 */
+	public boolean isArenaView() { return this.arenaView; }
 
 	/**
 	 * Simply 'gradient'. No colOffset
@@ -41,6 +80,150 @@ public class ParamUnit extends DataUnit
 	@Override
 	public FloatMat gradient() { return this.gradient; }
 	
+	/**
+	 * Gradient accumulated over the current cycle, not normalized
+	 * @see LearningPlan#setAccumGradient(int)
+	 */
+	public FloatMat accum() { return this.accum; }
+	
+	/**
+	 * Allocate the gradient accumulator if not yet
+	 */
+	public void initAccum()
+	{
+		if (this.accum == null)
+			this.accum = new FloatMat(this.data);
+	}
+	
+	/**
+	 * Carefully release the gradient accumulator
+	 */
+	public void destroyAccum()
+	{
+		FloatMat.destroy(this.accum);
+		this.accum = null;
+	}
+	
+	/**
+	 * Momentum velocity, same dim as 'data'
+	 * @see LearningPlan#setMomentum(float, boolean)
+	 */
+	public FloatMat velocity() { return this.velocity; }
+	
+	/**
+	 * Allocate a zero velocity if not yet, e.g. restored from a checkpoint
+	 */
+	public void initVelocity()
+	{
+		if (this.velocity == null)
+		{
+			this.velocity = new FloatMat(this.data);
+			this.velocity.fill(0);
+		}
+		this.hasVelocity = true;
+	}
+	
+	/**
+	 * Carefully release the velocity
+	 */
+	public void destroyVelocity()
+	{
+		FloatMat.destroy(this.velocity);
+		this.velocity = null;
+		this.hasVelocity = false;
+	}
+	
+	/**
+	 * Adaptive optimizer states, each of the same dim as 'data'
+	 * @see LearningPlan#setOptimizer(Optimizer)
+	 */
+	public FloatMat[] optState() { return this.optState; }
+	
+	/**
+	 * Allocate 'states' zero optimizer states if not yet, e.g. restored from a checkpoint
+	 */
+	public void initOptState(int states)
+	{
+		if (this.optState != null && this.optState.length != states)
+			destroyOptState();
+		if (this.optState == null)
+		{
+			this.optState = new FloatMat[states];
+			for (int i = 0; i < states; i++)
+			{
+				this.optState[i] = new FloatMat(this.data);
+				this.optState[i].fill(0);
+			}
+			this.optStep = 0;
+		}
+		this.optStates = states;
+	}
+	
+	/**
+	 * Carefully release the optimizer states
+	 */
+	public void destroyOptState()
+	{
+		if (this.optState != null)
+			for (FloatMat state : this.optState)
+				FloatMat.destroy(state);
+		this.optState = null;
+		this.optStates = 0;
+		this.optStep = 0;
+	}
+	
+	/**
+	 * Count an optimizer update
+	 * @return number of updates including this one
+	 */
+	public int nextOptStep() { return ++ this.optStep; }
+	
+	/**
+	 * The actual parameter is scale() * data(). Always 1 unless the LearningPlan has lazy decay
+	 * @see LearningPlan#setLazyDecay(boolean)
+	 */
+	public float scale() { return this.scale; }
+	
+	/**
+	 * W *= decay in O(1). Renormalizes if the scale drifts too far
+	 */
+	public void decayScale(float decay)
+	{
+		this.scale *= decay;
+		float abs = Math.abs(this.scale);
+		if (abs < MIN_SCALE || abs > 1 / MIN_SCALE)
+			normalize();
+	}
+	
+	/**
+	 * Fold the scale back into 'data', so that data() is the actual parameter
+	 */
+	public void normalize()
+	{
+		if (this.scale != 1)
+		{
+			GpuBlas.scale(this.data, this.scale);
+			this.scale = 1;
+		}
+	}
+	
+	/**
+	 * An arena view isn't released: the ParamList owns the memory
+	 */
+	@Override
+	public void destroy()
+	{
+		if (arenaView)
+		{
+			this.data = null;
+			this.arenaView = false;
+		}
+		super.destroy();
+		destroyAccum();
+		destroyVelocity();
+		destroyOptState();
+	}
+	
 	/**
 	 * Copies ONLY the FloatMat 'data'
 	 */
@@ -49,8 +232,14 @@ public class ParamUnit extends DataUnit
 		if (this.data.row != other.data.row || this.data.col != other.data.col)
 			throw new DeepException("Cannot copy data from a different dimension.");
 		this.data.copyFrom(other.data);
+		this.scale = other.scale;
 	}
 	
+	/**
+	 * Copies only the scale, after the ParamList copied all the data at once
+	 */
+	public void copyScaleFrom(ParamUnit other) { this.scale = other.scale; }
+	
 	/**
 	 * Reinitialize this parameter with parent's initer
 	 */
@@ -59,6 +248,13 @@ public class ParamUnit extends DataUnit
 		if (parent == null)
 			throw new DeepException("Cannot reinitialize this parameter: parent null");
 		((ParamComputeUnit) parent).reInit();
+		this.scale = 1;
+		if (velocity != null)
+			velocity.fill(0);
+		if (optState != null)
+			for (FloatMat state : optState)
+				state.fill(0);
+		optStep = 0;
 	}
 	
 	/**
@@ -71,14 +267,37 @@ public class ParamUnit extends DataUnit
 	}
 	
 	// Internal serialization: copy this for subclasses
+	// The velocity and optimizer states are part of the checkpoint whenever 'data' is
+	// 'data' is saved normalized, as the actual parameter
 	private void writeObject(ObjectOutputStream out) throws IOException
 	{
+		if (doesSaveData())
+			this.normalize();
 		this.serialize(out);
+		if (hasVelocity && doesSaveData())
+		{
+			String filePath = FileUtil.join(this.getPlan().dir, name + "_velocity.float");
+			out.writeObject(FloatMat.saveable(velocity, filePath));
+		}
+		if (doesSaveData())
+			for (int i = 0; i < optStates; i++)
+			{
+				String filePath = FileUtil.join(this.getPlan().dir, name + "_opt" + i + ".float");
+				out.writeObject(FloatMat.saveable(optState[i], filePath));
+			}
 	}
 	
 	// Internal serialization: copy this for subclasses
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
 	{
 		this.deserialize(in);
+		if (hasVelocity && doesSaveData())
+			this.velocity = FloatMat.desaveable((FloatMat.Saveable) in.readObject());
+		if (optStates > 0 && doesSaveData())
+		{
+			this.optState = new FloatMat[optStates];
+			for (int i = 0; i < optStates; i++)
+				this.optState[i] = FloatMat.desaveable((FloatMat.Saveable) in.readObject());
+		}
 	}
 }
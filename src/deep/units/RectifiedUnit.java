@@ -22,15 +22,20 @@ public class RectifiedUnit extends ElementComputeUnit
 	}
 
 	@Override
-	public void forward_element(float scalor)
+	public void forward_element(FloatMat in, FloatMat out, float scalor)
 	{
-		Thrust.rectified_linear(input.data(), output.data(), 1, 0, scalor);
+		Thrust.rectified_linear(in, out, 1, 0, scalor);
 	}
 
 	@Override
-	public void backward_element()
+	public void backward_element(FloatMat outGrad, FloatMat inGrad)
 	{
-		Thrust.rectified_linear_deriv(input.data(), input.gradient());
+		Thrust.rectified_linear_deriv_mult(input.data(), outGrad, inGrad, 1, 0, scalor);
 	}
 
+	/**
+	 * With a positive scalor, output > 0 iff input > 0
+	 */
+	@Override
+	public boolean backwardNeedsInput() {	return scalor <= 0;	}
 }
\ No newline at end of file
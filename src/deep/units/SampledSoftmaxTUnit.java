@@ -0,0 +1,322 @@
+package deep.units;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.googlecode.javacpp.IntPointer;
+
+import gpu.*;
+import deep.*;
+import deep.RegScheme.L2RegScheme;
+
+/**
+ * Sampled softmax for very large label sets (Jean et al.).
+ * During training, every column scores its gold label against a set of negatives
+ * sampled from the proposal Q and shared by the whole batch. The logits are corrected
+ * by -log(samples * Q(label)), and samples that hit the gold label are left out.
+ * Only the candidate rows of the preceding LinearUnit's W are read and updated:
+ * this unit takes over the LinearUnit's forward() and backward().
+ * L2 decays each distinct candidate row once per step, and the other rows not at all,
+ * unless the decay is lazy (LearningPlan.setLazyDecay()), which decays every row exactly in O(1).
+ * Other regularizers aren't supported.
+ * With setSampling(false), e.g. at test time, this is a plain SparseCrossEntropyTUnit
+ * over the full softmax.
+ *
+ * The negatives are redrawn for every batch, and are a function of 'seed' and the batch position,
+ * so re-running the same batch sees the same ones.
+ */
+public class SampledSoftmaxTUnit extends SparseCrossEntropyTUnit
+{
+	private static final long serialVersionUID = 1L;
+
+	private int samples;
+	// unnormalized proposal weights, null for uniform
+	private float[] proposal;
+	private long seed;
+	private boolean sampling = true;
+
+	private transient LinearUnit linear;
+	// proposal CDF, null for uniform
+	private transient double[] cdf;
+	// log(samples * Q(label)) of every label
+	private transient FloatMat logQ;
+	private transient int[] sampleHost;
+	private transient IntPointer sampleDevice;
+	// distinct candidate rows of the current batch
+	private transient int[] distinctHost;
+	private transient IntPointer distinctDevice;
+	// (MaxBatchSize + samples) rows: the gold label of each column, then the samples
+	private transient FloatMat wCand, wGrad, logits, candGrad;
+	private transient FloatMat outLogProb;
+	// batch the current samples are drawn for
+	private transient long sampledBatch;
+
+	/**
+	 * @param samples number of shared negatives per batch
+	 * @param proposal unnormalized positive weight of every label, e.g. unigram counts to the power of 0.75.
+	 * null for a uniform proposal
+	 * @param seed generates the negatives
+	 */
+	public SampledSoftmaxTUnit(String name, InletUnit inlet, int samples, float[] proposal, long seed)
+	{
+		super(name, inlet);
+		this.samples = samples;
+		this.proposal = proposal;
+		this.seed = seed;
+	}
+
+	public SampledSoftmaxTUnit(String name, InletUnit inlet, int samples, float[] proposal)
+	{
+		this(name, inlet, samples, proposal, Initializer.nextSeed());
+	}
+
+	/**
+	 * Uniform proposal
+	 */
+	public SampledSoftmaxTUnit(String name, InletUnit inlet, int samples)
+	{
+		this(name, inlet, samples, null);
+	}
+
+	@Override
+	public void setup()
+	{
+		super.setup();
+		if (!(prev instanceof LinearUnit))
+			throw new DeepException("SampledSoftmaxTUnit must follow a LinearUnit");
+		linear = (LinearUnit) prev;
+		if (getPlan().hasMomentum() || getPlan().hasOptimizer())
+			throw new DeepException("SampledSoftmaxTUnit only updates the sampled rows: momentum and optimizers aren't supported");
+		if (getPlan().hasReg() && !(getPlan().regScheme instanceof L2RegScheme))
+			throw new DeepException("SampledSoftmaxTUnit only updates the sampled rows: only the L2 regularizer is supported");
+		linear.setDeferred(sampling);
+		if (logQ == null)
+			setupSampler();
+	}
+
+	private void setupSampler()
+	{
+		int labels = linear.biaslessOutdim();
+		if (proposal != null && proposal.length != labels)
+			throw new DeepException("Proposal has " + proposal.length + " weights for " + labels + " labels");
+
+		float[] logQHost = new float[labels];
+		if (proposal == null)
+			Arrays.fill(logQHost, (float) Math.log((double) samples / labels));
+		else
+		{
+			cdf = new double[labels];
+			double total = 0;
+			for (int i = 0; i < labels; i++)
+			{
+				if (proposal[i] <= 0)
+					throw new DeepException("Proposal weights must be positive");
+				total += proposal[i];
+				cdf[i] = total;
+			}
+			for (int i = 0; i < labels; i++)
+			{
+				cdf[i] /= total;
+				logQHost[i] = (float) Math.log(samples * proposal[i] / total);
+			}
+		}
+		logQ = new FloatMat(logQHost);
+
+		sampleHost = new int[samples];
+		sampleDevice = Thrust.malloc_device_int(samples);
+		int cand = inlet.MaxBatchSize + samples;
+		distinctHost = new int[cand];
+		distinctDevice = Thrust.malloc_device_int(cand);
+		wCand = new FloatMat(cand, linear.input.dim(), false);
+		wGrad = new FloatMat(cand, linear.input.dim(), false);
+		logits = new FloatMat(cand, inlet.MaxBatchSize, false);
+		candGrad = new FloatMat(cand, inlet.MaxBatchSize, false);
+		outLogProb = new FloatMat(inlet.MaxBatchSize, 1, false);
+		sampledBatch = 0;
+	}
+
+	/**
+	 * Sampled softmax for training, or the full softmax. Default true
+	 * Can be switched after setup()
+	 */
+	public void setSampling(boolean sampling)
+	{
+		this.sampling = sampling;
+		if (linear != null)
+			linear.setDeferred(sampling);
+	}
+
+	public boolean isSampling() {	return this.sampling;	}
+
+	public long getSeed() {	return this.seed;	}
+
+	/**
+	 * The negatives of the current batch are redrawn with the new seed
+	 */
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+		sampledBatch = 0;
+	}
+
+	/**
+	 * Draw the negatives once per batch
+	 */
+	private void resample()
+	{
+		LearningPlan plan = getPlan();
+		long batchId = ((long) plan.curEpoch << 32) | plan.doneSampleSize;
+		if (batchId == sampledBatch)	return;
+		sampledBatch = batchId;
+
+		Random rand = new Random(seed ^ batchId * 0x9E3779B97F4A7C15L);
+		int labels = linear.biaslessOutdim();
+		for (int i = 0; i < samples; i++)
+		{
+			if (cdf == null)
+				sampleHost[i] = rand.nextInt(labels);
+			else
+			{
+				int s = Arrays.binarySearch(cdf, rand.nextDouble());
+				// insertion point, guard against rounding at the end
+				sampleHost[i] = Math.min(s < 0 ? -s - 1 : s, labels - 1);
+			}
+		}
+		Thrust.copy_host_to_device(sampleHost, sampleDevice);
+	}
+
+	/**
+	 * target += alpha * W on every distinct candidate row, exactly once: 
+	 * a label can be the gold of several columns, and be sampled too. 
+	 * Reuses wCand, which backward() no longer needs by then
+	 */
+	private void addCandidateRows(FloatMat target, float alpha)
+	{
+		int batch = inlet.batchSize;
+		Thrust.copy_device_to_host(inlet.goldLabels, distinctHost, 0, batch);
+		boolean[] seen = new boolean[linear.biaslessOutdim()];
+		int n = 0;
+		// compacts in place: n never passes i
+		for (int i = 0; i < batch + samples; i++)
+		{
+			int row = i < batch ? distinctHost[i] : sampleHost[i - batch];
+			if (!seen[row])
+			{
+				seen[row] = true;
+				distinctHost[n ++] = row;
+			}
+		}
+		Thrust.copy_host_to_device(Arrays.copyOf(distinctHost, n), distinctDevice);
+		// n candidates, all of them 'labels'
+		FloatMat rows = view(wCand, n, linear.input.dim());
+		Thrust.gather_rows(linear.W.data(), distinctDevice, n, distinctDevice, rows);
+		Thrust.scatter_add_rows(rows, distinctDevice, n, distinctDevice, target, alpha);
+	}
+
+	/**
+	 * Leading part of a buffer, as a contiguous rows * cols matrix
+	 */
+	private static FloatMat view(FloatMat buffer, int rows, int cols)
+	{
+		return rows == buffer.row && cols == buffer.col ?
+				buffer : buffer.createOffset(0, rows * cols, rows);
+	}
+
+	/**
+	 * Also computes the gradient, which backward() uses
+	 */
+	@Override
+	protected float forward_terminal(boolean doesCalcLoss)
+	{
+		if (!sampling)
+			return super.forward_terminal(doesCalcLoss);
+
+		int batch = inlet.batchSize, cand = batch + samples;
+		// LinearUnit.forward() on the candidate rows only
+		FloatMat x = linear.input.data();
+		if (linear.hasBias())
+			x.fillLastRow1();
+		resample();
+		FloatMat wCand = view(this.wCand, cand, x.row), logits = view(this.logits, cand, batch);
+		Thrust.gather_rows(linear.W.data(), inlet.goldLabels, batch, sampleDevice, wCand);
+		GpuBlas.mult(wCand, x, logits, linear.W.scale(), 0);
+
+		float logProb = Thrust.sampled_softmax(logits, inlet.goldLabels, sampleDevice, logQ,
+				view(candGrad, cand, batch), view(outLogProb, batch, 1), batchNormalizer());
+		return doesCalcLoss ? - logProb : 0;
+	}
+
+	@Override
+	public void backward()
+	{
+		if (!sampling)
+		{
+			super.backward();
+			return;
+		}
+
+		int batch = inlet.batchSize, cand = batch + samples;
+		// LinearUnit.backward() on the candidate rows only
+		FloatMat x = linear.input.data();
+		FloatMat wCand = view(this.wCand, cand, x.row), candGrad = view(this.candGrad, cand, batch);
+		ParamUnit W = linear.W;
+		if (linear.input.hasGradient())
+			GpuBlas.mult(wCand.transpose(), candGrad, linear.input.gradient(), W.scale(), 0);
+
+		if (!W.hasGradient())	return;
+
+		FloatMat wGrad = view(this.wGrad, cand, x.row);
+		GpuBlas.mult(candGrad, x.transpose(), wGrad);
+		IntPointer labels = inlet.goldLabels;
+		LearningPlan plan = getPlan();
+		// In debug mode, we explicitly store the gradient of the step taken below
+		if (debug)
+		{
+			W.gradient().fill(0);
+			Thrust.scatter_add_rows(wGrad, labels, batch, sampleDevice, W.gradient(), 1);
+			// applyAccumGradient() decays every row
+			if (plan.doesAccumGradient())
+				plan.regScheme.regGradUpdate(linear);
+			else if (plan.hasReg())
+				addCandidateRows(W.gradient(), plan.reg);
+			if (linear.hasBias()) W.gradient().fillLastRow0();
+		}
+
+		if (plan.doesAccumGradient())
+		{
+			// same weighting as ParamComputeUnit.updateW()
+			if (plan.isFirstAccumBatch())
+				W.accum().fill(0);
+			Thrust.scatter_add_rows(wGrad, labels, batch, sampleDevice, W.accum(), inlet.batchSize);
+			return;
+		}
+		// exact L2 decay of every row, in O(1)
+		if (linear.lazyDecay())
+		{
+			W.decayScale(1 - plan.lr * plan.reg);
+			Thrust.scatter_add_rows(wGrad, labels, batch, sampleDevice, W.data(), - plan.lr / W.scale());
+			return;
+		}
+		// L2 decays each distinct candidate row once, at the W the gradient was taken
+		if (plan.hasReg())
+			addCandidateRows(W.data(), - plan.lr * plan.reg);
+		// the bias row is never a candidate
+		Thrust.scatter_add_rows(wGrad, labels, batch, sampleDevice, W.data(), - plan.lr);
+	}
+
+	@Override
+	public void destroy()
+	{
+		super.destroy();
+		if (logQ != null)
+		{
+			logQ.destroy();
+			wCand.destroy(); wGrad.destroy();
+			logits.destroy(); candGrad.destroy();
+			outLogProb.destroy();
+			Thrust.free_device(sampleDevice);
+			Thrust.free_device(distinctDevice);
+			logQ = null;
+		}
+	}
+}
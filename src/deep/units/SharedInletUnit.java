@@ -0,0 +1,100 @@
+package deep.units;
+
+import deep.*;
+import gpu.FloatMat;
+import gpu.Thrust;
+
+/**
+ * Reads mini-batches from a SharedDataset without copying:
+ * 'data', 'goldMat' and 'goldLabels' are views into the shared GPU memory.
+ * Can be restricted to a column range [start, end) of the dataset, e.g. one data shard.
+ * NOTE: the views are shared by every net reading the same dataset.
+ * Only units that rewrite the bias row with 1 (which it already holds) may touch the inlet data.
+ */
+public class SharedInletUnit extends InletUnit
+{
+	private static final long serialVersionUID = 1L;
+	private transient SharedDataset dataset;
+	private final int start;
+	private final int end;
+	private int cursor;
+
+	/**
+	 * @param start first column (inclusive) of the shard
+	 * @param end last column (exclusive) of the shard
+	 */
+	public SharedInletUnit(String name, SharedDataset dataset, int MaxBatchSize, int start, int end)
+	{
+		super(name, dataset.dim(), MaxBatchSize, false);
+		if (start < 0 || end > dataset.size || start >= end)
+			throw new DeepException("Invalid shard range [" + start + ", " + end + ")");
+		this.dataset = dataset;
+		this.start = start;
+		this.end = end;
+		this.cursor = start;
+	}
+
+	/**
+	 * Read the whole dataset
+	 */
+	public SharedInletUnit(String name, SharedDataset dataset, int MaxBatchSize)
+	{
+		this(name, dataset, MaxBatchSize, 0, dataset.size);
+	}
+
+	/**
+	 * Number of samples in this shard
+	 */
+	public int shardSize() { return end - start; }
+
+	@Override
+	protected int nextBatch_()
+	{
+		if (cursor >= end)
+			throw new DeepException("SharedInletUnit exhausted: call prepareNextEpoch() first");
+		int batch = Math.min(MaxBatchSize, end - cursor);
+		this.data = dataset.data.createColOffset(cursor, cursor + batch);
+		if (dataset.goldMat != null)
+			this.goldMat = dataset.goldMat.createColOffset(cursor, cursor + batch);
+		if (dataset.goldLabels != null)
+			this.goldLabels = Thrust.offset(dataset.goldLabels, cursor);
+		cursor += batch;
+		return batch;
+	}
+
+	/**
+	 * Gold is already set by nextBatch_()
+	 */
+	@Override
+	public void nextGold() { }
+
+	@Override
+	public void prepareNextEpoch()
+	{
+		this.cursor = start;
+	}
+
+	/**
+	 * The views don't own any memory
+	 */
+	@Override
+	public void destroy() { }
+
+	/**
+	 * A shared inlet never has gradient: the data is read-only
+	 */
+	@Override
+	public void initGradient()
+	{
+		throw new DeepException("SharedInletUnit data is read-only, cannot have gradient");
+	}
+
+	/**
+	 * Required after deserialization
+	 */
+	public void setDataset(SharedDataset dataset)
+	{
+		this.dataset = dataset;
+		this.data = FloatMat.createDummy(dataset.dim(), MaxBatchSize);
+	}
+}
@@ -22,17 +22,22 @@ public class SigmoidUnit extends ElementComputeUnit
 	}
 
 	@Override
-	public void forward_element(float scalor)
+	public void forward_element(FloatMat in, FloatMat out, float scalor)
 	{
-		Thrust.sigmoid(input.data(), output.data(), 1, 0, scalor);
+		Thrust.sigmoid(in, out, 1, 0, scalor);
 	}
 
 	@Override
-	public void backward_element()
+	public void backward_element(FloatMat outGrad, FloatMat inGrad)
 	{
 		// Because the forward method produces y = scalor * sigmoid
 		// so its gradient is [y' = y/scalor * (1 - y/scalor)] * scalor
-		Thrust.sigmoid_deriv(output.data(), input.gradient(), 1f/scalor, 0, 1);
+		Thrust.sigmoid_deriv_mult(output.data(), outGrad, inGrad, 1f/scalor, 0, scalor);
 	}
 
+	/**
+	 * The gradient only needs the output
+	 */
+	@Override
+	public boolean backwardNeedsInput() {	return false;	}
 }
@@ -22,15 +22,15 @@ public class SineUnit extends ElementComputeUnit
 	}
 
 	@Override
-	public void forward_element(float scalor)
+	public void forward_element(FloatMat in, FloatMat out, float scalor)
 	{
-		Thrust.sin(input.data(), output.data(), 1, 0, scalor);
+		Thrust.sin(in, out, 1, 0, scalor);
 	}
 
 	@Override
-	public void backward_element()
+	public void backward_element(FloatMat outGrad, FloatMat inGrad)
 	{
-		Thrust.cos(input.data(), input.gradient());
+		Thrust.cos_mult(input.data(), outGrad, inGrad, 1, 0, scalor);
 	}
 
 }
@@ -16,30 +16,44 @@ public class SparseCrossEntropyTUnit extends TerminalUnit
 		super(name, inlet);
 	}
 
-	private transient FloatMat tmp_outLogProb;
+	// log(prob) at the label, and log-sum-exp of every column for backward(). MaxBatchSize each
+	private transient FloatMat tmp_outLogProb, tmp_lse;
 	
 	@Override
 	protected float forward_terminal(boolean doesCalcLoss)
 	{
-		if (!doesCalcLoss)	return 0;
+		// backward() needs the log-sum-exp even if we don't calculate the loss
+		if (!doesCalcLoss && !input.hasGradient())	return 0;
 		
-		int batch = inlet.batchSize;
 		if (tmp_outLogProb == null)
-			tmp_outLogProb = new FloatMat(batch, 1);
+		{
+			tmp_outLogProb = new FloatMat(inlet.MaxBatchSize, 1, false);
+			tmp_lse = new FloatMat(inlet.MaxBatchSize, 1, false);
+		}
 
-		return 
-			- Thrust.batch_softmax_at_label(input.data(), tmp_outLogProb, inlet.goldLabels, hasBias);
+		float logProb = 
+			Thrust.batch_softmax_at_label(input.data(), tmp_outLogProb, tmp_lse, inlet.goldLabels, hasBias);
+		return doesCalcLoss ? - logProb : 0;
 	}
 
 	@Override
 	public void backward()
 	{
 		if (input.hasGradient())
+    		// Gradient = 1/batch * (y - id), reusing the forward log-sum-exp
+    		Thrust.batch_softmax_minus_id(input.data(), tmp_lse, 
+    				inlet.goldLabels, hasBias, super.batchNormalizer(), input.gradient());
+	}
+	
+	@Override
+	public void destroy()
+	{
+		super.destroy();
+		if (tmp_outLogProb != null)
 		{
-    		// Gradient = 1/batch * (y - id)
-			FloatMat grad = input.gradient();
-    		Thrust.batch_softmax_minus_id(input.data(), grad, inlet.goldLabels, hasBias);
-    		GpuBlas.scale(grad, super.batchNormalizer());
+			tmp_outLogProb.destroy();
+			tmp_lse.destroy();
+			tmp_outLogProb = null;
 		}
 	}
 
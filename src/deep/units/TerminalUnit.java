@@ -1,5 +1,7 @@
 package deep.units;
 
+import java.util.Random;
+
 import deep.DeepException;
 
 public abstract class TerminalUnit extends ComputeUnit
@@ -8,17 +10,29 @@ public abstract class TerminalUnit extends ComputeUnit
 	/**
 	 * Pure loss function
 	 */
-	protected float lossPure = 0;
-	/**
-	 * Loss due to regularization
-	 */
-	protected float lossReg = 0;
+	protected double lossPure = 0;
 	
 	/**
 	 * During training, we might want to turn off loss calculation
 	 */
 	public boolean doesCalcLoss = true;
 	
+	/**
+	 * Loss sampling: only compute the loss on every 'sampleEvery'-th batch, 
+	 * or on a random 'sampleRatio' of the batches. 
+	 * The first batch after clearLoss() is always sampled
+	 */
+	private int sampleEvery = 1;
+	private float sampleRatio = 1;
+	private long sampleSeed;
+	// reseeded at the first batch of every epoch, then drawn once per batch
+	private transient Random sampler;
+	// since clearLoss(): all batches, the sampled ones and their samples
+	private transient int batchCount = 0, sampledBatches = 0, sampledSize = 0;
+	// the sampled batches' mean losses weighted by batch size, in centred form:
+	// their weighted mean, which is lossPure(), and weighted sum of squared deviations from it
+	private transient double batchMeanAvg = 0, batchMeanSpread = 0;
+	
 	public TerminalUnit(String name, InletUnit inlet, boolean hasBias)
 	{
 		super(name, inlet, 1, hasBias);
@@ -44,14 +58,91 @@ public abstract class TerminalUnit extends ComputeUnit
 	{
 		inlet.nextGold();
 		
-		// Update regularization loss
-		this.lossReg += getPlan().regScheme.regLoss();
-		
 		if (hasBias)
 			input.data().fillLastRow0();
 
+		boolean calcLoss = this.doesCalcLoss && isLossSample(batchCount ++);
 		// Will be implemented by subclasses
-		this.lossPure += forward_terminal(this.doesCalcLoss);
+		float loss = forward_terminal(calcLoss);
+		this.lossPure += loss;
+		if (calcLoss)
+		{
+			++ sampledBatches;
+			sampledSize += inlet.batchSize;
+			// weighted incremental update, no cancellation in the spread
+			double mean = (double) loss / inlet.batchSize;
+			double delta = mean - batchMeanAvg;
+			batchMeanAvg += delta * inlet.batchSize / sampledSize;
+			batchMeanSpread += inlet.batchSize * delta * (mean - batchMeanAvg);
+		}
+	}
+	
+	/**
+	 * Is the loss computed on this batch?
+	 * @param batch index since clearLoss()
+	 */
+	private boolean isLossSample(int batch)
+	{
+		if (sampleEvery == 1 && sampleRatio == 1)
+			return true;
+		if (sampleEvery > 1)
+			return batch % sampleEvery == 0;
+		// the same subset for the same epoch
+		if (batch == 0)
+		{
+			// transient: null after deserialization, where batchCount restarts at 0
+			if (sampler == null)
+				sampler = new Random();
+			sampler.setSeed(sampleSeed ^ getPlan().curEpoch * 0x9E3779B97F4A7C15L);
+			return true;
+		}
+		return sampler.nextFloat() < sampleRatio;
+	}
+	
+	/**
+	 * Compute the loss on every k-th batch only, starting from the first. 
+	 * lossPure() is then the mean over the sampled batches. 
+	 * @param every 1 to compute the loss on every batch
+	 * @see #lossVariance()
+	 */
+	public void setLossSampling(int every)
+	{
+		if (every < 1)
+			throw new DeepException("Loss sampling period must be positive");
+		this.sampleEvery = every;
+		this.sampleRatio = 1;
+	}
+	
+	/**
+	 * Compute the loss on a random subset of about 'ratio' of the batches, 
+	 * plus the first one. The subset is a function of 'seed' and the epoch. 
+	 * lossPure() is then the mean over the sampled batches. 
+	 * @see #lossVariance()
+	 */
+	public void setLossSampling(float ratio, long seed)
+	{
+		if (ratio <= 0 || ratio > 1)
+			throw new DeepException("Loss sampling ratio must be in (0, 1]");
+		this.sampleEvery = 1;
+		this.sampleRatio = ratio;
+		this.sampleSeed = seed;
+		this.sampler = new Random(seed);
+	}
+	
+	/**
+	 * Variance of lossPure() as an estimate of the mean loss over all batches since clearLoss(). 
+	 * The batch means are weighted by batch size, like in lossPure(). 
+	 * 0 if every batch was computed. 
+	 * NaN with less than 2 sampled batches: the variance can't be estimated
+	 */
+	public float lossVariance()
+	{
+		if (sampledBatches == batchCount)	return 0;
+		if (sampledBatches < 2)	return Float.NaN;
+		int k = sampledBatches;
+		double var = batchMeanSpread / sampledSize * k / (k - 1);
+		// finite population correction
+		return (float) (var / k * (1 - (double) k / batchCount));
 	}
 
 	/**
@@ -69,32 +160,67 @@ public abstract class TerminalUnit extends ComputeUnit
 	public float lossTotal() { return lossPure() + lossReg() ;	}
 	
 	/**
-	 * Normalized by curTrainSize (number of training samples seen so far)
+	 * Normalized by the number of samples whose loss is computed since clearLoss(), 
+	 * i.e. all training samples seen so far unless the loss is sampled
 	 */
 	public float lossPure()
 	{
 		if (!doesCalcLoss)
 			throw new DeepException("Loss is not being calculated");
-		return this.lossPure / getPlan().doneSampleSize;
+		return (float) (this.lossPure / sampledSize);
 	}
 	
 	/**
-	 * Loss due to regularization
+	 * Loss due to regularization, at the current parameters. 
+	 * Computed only when asked for, instead of a reduction over all parameters every batch
 	 */
 	public float lossReg()
 	{	
 		if (!doesCalcLoss)
 			throw new DeepException("Loss is not being calculated");
-		return this.lossReg;
+		return getPlan().regScheme.regLoss();
 	}
 
 	/**
-	 * Reset both lossPure and lossReg
+	 * Loss statistics since clearLoss(), to be merged over data-parallel replicas
+	 * @see #addLossStats(double[])
+	 */
+	public double[] lossStats()
+	{
+		return new double[] {lossPure, batchCount, sampledBatches, sampledSize, 
+				batchMeanAvg, batchMeanSpread};
+	}
+	
+	/**
+	 * Merge another replica's statistics: after clearLoss() and adding those of all replicas, 
+	 * lossPure() and lossVariance() are the global ones
+	 * @see #lossStats()
+	 */
+	public void addLossStats(double[] stats)
+	{
+		int size = (int) stats[3];
+		int total = sampledSize + size;
+		if (size > 0)
+		{
+			// pairwise update of the centred form
+			double delta = stats[4] - batchMeanAvg;
+			batchMeanAvg += delta * size / total;
+			batchMeanSpread += stats[5] + delta * delta * sampledSize * size / total;
+		}
+		this.lossPure += stats[0];
+		this.batchCount += (int) stats[1];
+		this.sampledBatches += (int) stats[2];
+		this.sampledSize = total;
+	}
+	
+	/**
+	 * Reset lossPure and the loss sampling statistics
 	 */
 	public void clearLoss()
 	{ 
 		this.lossPure = 0;
-		this.lossReg = 0;
+		this.batchCount = this.sampledBatches = this.sampledSize = 0;
+		this.batchMeanAvg = this.batchMeanSpread = 0;
 	}
 	
 	/**
@@ -22,16 +22,16 @@ public class TriangularWaveUnit extends ElementComputeUnit
 	}
 
 	@Override
-	public void forward_element(float scalor)
+	public void forward_element(FloatMat in, FloatMat out, float scalor)
 	{
-		Thrust.trianglar_wave(input.data(), output.data(), (float) (Math.PI/2), scalor);
+		Thrust.trianglar_wave(in, out, (float) (Math.PI/2), scalor);
 	}
 
 	@Override
-	public void backward_element()
+	public void backward_element(FloatMat outGrad, FloatMat inGrad)
 	{
-		throw new UnsupportedOperationException(
-				"Triangular wave unit doesn't yet support backprop");
+		float a = (float) (2 / Math.PI); // 1 / halfPeriod
+		Thrust.triangular_wave_deriv_mult(input.data(), outGrad, inGrad, a, 0, scalor * a);
 	}
 
 }
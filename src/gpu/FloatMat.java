@@ -453,6 +453,27 @@ public class FloatMat
 		return createOffset(colStart * this.row, (colEnd - colStart) * this.row);
 	}
 	
+	/**
+	 * createOffset from row 'start' to row 'end' of every column,
+	 * 'start' inclusive and 'end' exclusive.
+	 * The rows aren't contiguous in memory: the view keeps this.ldim as leading dimension.
+	 * NOTE: only valid for cuBLAS routines (GpuBlas.mult, GpuBlas.add) that honor ldim,
+	 * NOT for Thrust or any routine that treats the data as a flat row*col array.
+	 * No host data.
+	 * @return new FloatMat
+	 */
+	public FloatMat createRowOffset(int rowStart, int rowEnd)
+	{
+		if (op != CUBLAS_OP_N)
+			throw new GpuException("Row offset of a transposed matrix isn't supported");
+		FloatMat offMat = new FloatMat();
+		offMat.device = this.toDevice().withByteOffset(rowStart * Sizeof.FLOAT);
+		offMat.row = rowEnd - rowStart;
+		offMat.col = this.col;
+		offMat.ldim = this.ldim;
+		return offMat;
+	}
+
 	/**
 	 * @param colIdx retrive a single column offset. Negative means python wrap-around
 	 * @return new FloatMat
@@ -141,6 +141,16 @@ public class Natives
     public static native void gpu_rectified_linear_deriv(@ByVal FloatDevicePointer begin, int size, float a, float b, float m);
     public static native void gpu_rectified_linear_deriv(@ByVal FloatDevicePointer begin, int size, @ByVal FloatDevicePointer out, float a, float b, float m);
     
+    /**
+     * Fused activation backward in one pass: out = m * deriv(a*x + b) .* grad
+     */
+    public static native void gpu_sigmoid_deriv_mult(@ByVal FloatDevicePointer begin, int size, @ByVal FloatDevicePointer grad, @ByVal FloatDevicePointer out, float a, float b, float m);
+    public static native void gpu_sin_mult(@ByVal FloatDevicePointer begin, int size, @ByVal FloatDevicePointer grad, @ByVal FloatDevicePointer out, float a, float b, float m);
+    public static native void gpu_cos_mult(@ByVal FloatDevicePointer begin, int size, @ByVal FloatDevicePointer grad, @ByVal FloatDevicePointer out, float a, float b, float m);
+    public static native void gpu_rectified_linear_deriv_mult(@ByVal FloatDevicePointer begin, int size, @ByVal FloatDevicePointer grad, @ByVal FloatDevicePointer out, float a, float b, float m);
+    public static native void gpu_triangular_wave_deriv_mult(@ByVal FloatDevicePointer begin, int size, @ByVal FloatDevicePointer grad, @ByVal FloatDevicePointer out, float a, float b, float m);
+    public static native void gpu_triangular_wave_positive_deriv_mult(@ByVal FloatDevicePointer begin, int size, @ByVal FloatDevicePointer grad, @ByVal FloatDevicePointer out, float a, float b, float m);
+    
     /***** other ******/
     public static native float gpu_max(@ByVal FloatDevicePointer begin, int size);
     public static native float gpu_min(@ByVal FloatDevicePointer begin, int size);
@@ -219,6 +229,13 @@ public class Natives
     public static native void gpu_fill_rand_normal(
     		@ByVal FloatDevicePointer begin, int size, float mean, float stddev);
     
+    /**
+     * Counter-based uniform (0, 1] or standard normal: element (r, c) depends only on 
+     * (seed, offset + r * stride + c)
+     */
+    public static native void gpu_counter_rand(
+    		@ByVal FloatDevicePointer begin, int row, int col, long seed, long offset, int stride, boolean normal);
+    
     /**
      * Correct any infinity values to 0
      */
@@ -250,13 +267,117 @@ public class Natives
     public static native void gpu_batch_softmax_minus_id(
     		@ByVal FloatDevicePointer begin, int row, int col, @ByVal FloatDevicePointer out, @ByPtr IntPointer labels, boolean hasBias);
     
+    /**
+     * Also writes the log-sum-exp of every column to outLse
+     *  @return sum(outLogProb)
+     */
+    public static native float gpu_batch_softmax_at_label(
+    				@ByVal FloatDevicePointer begin, int row, int col, 
+    				@ByVal FloatDevicePointer outLogProb, @ByVal FloatDevicePointer outLse, @ByPtr IntPointer labels, boolean hasBias);
+    
+    /**
+     * scale * (softmax - I[y == j]) from the log-sum-exp of every column
+     */
+    public static native void gpu_batch_softmax_minus_id(
+    		@ByVal FloatDevicePointer begin, int row, int col, @ByVal FloatDevicePointer lse, 
+    		@ByPtr IntPointer labels, boolean hasBias, float scale, @ByVal FloatDevicePointer out);
+    
     // The best labels, non-intrusive
     public static native void gpu_best_label(
     		@ByVal FloatDevicePointer begin, int row, int col, @ByPtr IntPointer outLabels, boolean hasBias);
     
+    // ******************** Sampled softmax ****************** /
+    public static native void gpu_gather_rows(
+    		@ByVal FloatDevicePointer w, int wRow, int wCol, @ByPtr IntPointer labels, int batch, 
+    		@ByPtr IntPointer samples, int cand, @ByVal FloatDevicePointer out);
+    
+    public static native void gpu_scatter_add_rows(
+    		@ByVal FloatDevicePointer in, int cand, @ByPtr IntPointer labels, int batch, @ByPtr IntPointer samples, 
+    		@ByVal FloatDevicePointer w, int wRow, int wCol, float alpha);
+    
+    /**
+     *  @return sum(outLogProb)
+     */
+    public static native float gpu_sampled_softmax(
+    		@ByVal FloatDevicePointer logits, int cand, int batch, @ByPtr IntPointer labels, @ByPtr IntPointer samples, 
+    		@ByVal FloatDevicePointer logQ, @ByVal FloatDevicePointer outGrad, @ByVal FloatDevicePointer outLogProb, float scale);
+    
+    // ******************** Class-factored softmax ****************** /
+    public static native void gpu_class_block_mult(
+    		@ByVal FloatDevicePointer w, int wRow, int wCol, @ByVal FloatDevicePointer x, int xRow, int batch, 
+    		@ByPtr IntPointer labels, @ByPtr IntPointer labelClass, @ByPtr IntPointer classStart, 
+    		int classes, int outRow, @ByVal FloatDevicePointer out);
+    
+    /**
+     *  @return sum(outLogProb)
+     */
+    public static native float gpu_class_softmax(
+    		@ByVal FloatDevicePointer logits, int row, int classes, int batch, 
+    		@ByPtr IntPointer labels, @ByPtr IntPointer labelClass, @ByPtr IntPointer labelRow, @ByPtr IntPointer classStart, 
+    		@ByVal FloatDevicePointer outGrad, @ByVal FloatDevicePointer outLogProb, float scale);
+    
+    public static native void gpu_class_block_mult_t(
+    		@ByVal FloatDevicePointer w, int wRow, int wCol, @ByVal FloatDevicePointer grad, int gradRow, int batch, 
+    		@ByPtr IntPointer labels, @ByPtr IntPointer labelClass, @ByPtr IntPointer classStart, 
+    		int classes, @ByVal FloatDevicePointer inGrad);
+    
+    public static native void gpu_class_block_update(
+    		@ByVal FloatDevicePointer grad, int gradRow, @ByVal FloatDevicePointer x, int xRow, int batch, 
+    		@ByPtr IntPointer labels, @ByPtr IntPointer labelClass, @ByPtr IntPointer classStart, int classes, 
+    		@ByVal FloatDevicePointer w, int wRow, int wCol, float alpha);
+    
+    public static native void gpu_class_block_scale(
+    		@ByVal FloatDevicePointer w, int wRow, int wCol, @ByPtr IntPointer classStart, 
+    		@ByPtr IntPointer classList, int n, int blockRows, float factor);
+    
+    public static native void gpu_class_log_prob(
+    		@ByVal FloatDevicePointer logits, int row, int col, int classes, 
+    		@ByPtr IntPointer classStart, @ByPtr IntPointer rowLabel, int labels, 
+    		@ByVal FloatDevicePointer out, int outRow);
+    
+    // ******************** Parameter updates ****************** /
+    public static native void gpu_momentum_apply(
+    		@ByVal FloatDevicePointer w, @ByVal FloatDevicePointer v, int row, int size, float lrReg, float step, boolean hasBias);
+    
+    public static native void gpu_nesterov_prepare(
+    		@ByVal FloatDevicePointer w, @ByVal FloatDevicePointer v, int size, float mu, float lrReg);
+    
+    public static native void gpu_adagrad_update(
+    		@ByVal FloatDevicePointer w, @ByVal FloatDevicePointer g, @ByVal FloatDevicePointer s, int row, int size, 
+    		float lr, float scale, float reg, float eps, boolean hasBias);
+    
+    public static native void gpu_rmsprop_update(
+    		@ByVal FloatDevicePointer w, @ByVal FloatDevicePointer g, @ByVal FloatDevicePointer s, int row, int size, 
+    		float lr, float scale, float reg, float decay, float eps, boolean hasBias);
+    
+    public static native void gpu_adam_update(
+    		@ByVal FloatDevicePointer w, @ByVal FloatDevicePointer g, 
+    		@ByVal FloatDevicePointer m, @ByVal FloatDevicePointer v, int row, int size, 
+    		float lr, float scale, float reg, float beta1, float beta2, float eps, boolean hasBias);
+    
+    // ******************** Fastfood structured projection ****************** /
+    public static native void gpu_fastfood_expand(
+    		@ByVal FloatDevicePointer in, int inRow, int inDim, @ByVal FloatDevicePointer diag, 
+    		int d, int segment, int col, @ByVal FloatDevicePointer out);
+    
+    public static native void gpu_fastfood_reduce(
+    		@ByVal FloatDevicePointer work, int inRow, int inDim, @ByVal FloatDevicePointer diag, 
+    		int d, int segment, int col, @ByVal FloatDevicePointer out);
+    
+    public static native void gpu_fwht(@ByVal FloatDevicePointer begin, int size, int d);
+    
+    public static native void gpu_fastfood_permute(
+    		@ByVal FloatDevicePointer in, @ByPtr IntPointer perm, @ByVal FloatDevicePointer scale, 
+    		int segment, int size, @ByVal FloatDevicePointer out, boolean transpose);
+    
+    public static native void gpu_fastfood_contract(
+    		@ByVal FloatDevicePointer work, int segment, @ByVal FloatDevicePointer scale, @ByVal FloatDevicePointer bias, 
+    		int features, int outRow, int col, @ByVal FloatDevicePointer out);
+    
     // Helper for minibatch
     public static native @ByPtr IntPointer copy_host_to_device(@ByPtr IntPointer host, int size);
     public static native @ByPtr IntPointer copy_device_to_host(@ByPtr IntPointer device, int size);
+    public static native void copy_host_to_device(@ByPtr int[] host, @ByPtr IntPointer device, int size);
     // NOTE: @Ptr can directly map to java primitive array types!!!!
     public static native void copy_device_to_host(@ByPtr IntPointer device, @ByPtr int[] host, int offset, int size);
     
@@ -347,6 +347,50 @@ public class Thrust
 	public static void rectified_linear_deriv(FloatMat x) {  rectified_linear_deriv(x, 1, 0, 1); }
 	public static void rectified_linear_deriv(FloatMat x, FloatMat out) {  rectified_linear_deriv(x, out, 1, 0, 1); }
 	
+	// ******************** Fused activation backward ********************/
+	/**
+	 * out = m * sigmoid_deriv(a * x + b) .* grad, in one pass
+	 */
+	public static void sigmoid_deriv_mult(FloatMat x, FloatMat grad, FloatMat out, float a, float b, float m)
+	{
+		gpu_sigmoid_deriv_mult(x.getThrustPointer(), x.size(), grad.getThrustPointer(), out.getThrustPointer(), a, b, m);
+	}
+	/**
+	 * out = m * sin(a * x + b) .* grad, in one pass
+	 */
+	public static void sin_mult(FloatMat x, FloatMat grad, FloatMat out, float a, float b, float m)
+	{
+		gpu_sin_mult(x.getThrustPointer(), x.size(), grad.getThrustPointer(), out.getThrustPointer(), a, b, m);
+	}
+	/**
+	 * out = m * cos(a * x + b) .* grad, in one pass
+	 */
+	public static void cos_mult(FloatMat x, FloatMat grad, FloatMat out, float a, float b, float m)
+	{
+		gpu_cos_mult(x.getThrustPointer(), x.size(), grad.getThrustPointer(), out.getThrustPointer(), a, b, m);
+	}
+	/**
+	 * out = m * (a * x + b > 0 ? 1 : 0) .* grad, in one pass
+	 */
+	public static void rectified_linear_deriv_mult(FloatMat x, FloatMat grad, FloatMat out, float a, float b, float m)
+	{
+		gpu_rectified_linear_deriv_mult(x.getThrustPointer(), x.size(), grad.getThrustPointer(), out.getThrustPointer(), a, b, m);
+	}
+	/**
+	 * out = m * triangular_wave'(a * x + b) .* grad, in one pass
+	 */
+	public static void triangular_wave_deriv_mult(FloatMat x, FloatMat grad, FloatMat out, float a, float b, float m)
+	{
+		gpu_triangular_wave_deriv_mult(x.getThrustPointer(), x.size(), grad.getThrustPointer(), out.getThrustPointer(), a, b, m);
+	}
+	/**
+	 * out = m * triangular_wave_positive'(a * x + b) .* grad, in one pass
+	 */
+	public static void triangular_wave_positive_deriv_mult(FloatMat x, FloatMat grad, FloatMat out, float a, float b, float m)
+	{
+		gpu_triangular_wave_positive_deriv_mult(x.getThrustPointer(), x.size(), grad.getThrustPointer(), out.getThrustPointer(), a, b, m);
+	}
+	
 	public static float sum(FloatMat x)
 	{
 		return gpu_sum(x.getThrustPointer(), x.size());
@@ -505,6 +549,25 @@ public class Thrust
     	Natives.gpu_fill_rand_normal(x.getThrustPointer(), x.size(), mean, stddev);
     }
     
+    /**
+     * Counter-based uniform (0, 1]: element (r, c) of x is a pure function of 
+     * (seed, offset + r * stride + c), so the same counters always give the same values. 
+     * Regenerates a tile of a matrix with 'stride' columns that is never stored. 
+     */
+    public static void counter_rand_uniform(FloatMat x, long seed, long offset, int stride)
+    {
+    	Natives.gpu_counter_rand(x.getThrustPointer(), x.row, x.col, seed, offset, stride, false);
+    }
+    
+    /**
+     * Counter-based standard normal
+     * @see #counter_rand_uniform(FloatMat, long, long, int)
+     */
+    public static void counter_rand_normal(FloatMat x, long seed, long offset, int stride)
+    {
+    	Natives.gpu_counter_rand(x.getThrustPointer(), x.row, x.col, seed, offset, stride, true);
+    }
+    
     /**
      * Correct any infinity values to 0
      */
@@ -520,6 +583,14 @@ public class Thrust
     	return Natives.copy_host_to_device(new IntPointer(labels), labels.length);
     }
     
+    /**
+     * Copy into device memory that's already allocated, e.g. by malloc_device_int()
+     */
+    public static void copy_host_to_device(int[] host, IntPointer device)
+    {
+    	Natives.copy_host_to_device(host, device, host.length);
+    }
+    
     // Set the last row of a matrix to 1
     public static void set_last_row_one(FloatMat x)
     {
@@ -576,6 +647,29 @@ public class Thrust
             			x.getThrustPointer(), x.row, x.col, outLogProb.getThrustPointer(), labels, hasBias);
     }
     
+    /**
+     * batch_softmax_at_label() that also keeps the log-sum-exp of every column for 
+     * batch_softmax_minus_id(x, lse, ...)
+     * @param outLse at least x.col
+     * @return sum(outLogProb)
+     */
+    public static float batch_softmax_at_label(FloatMat x, FloatMat outLogProb, FloatMat outLse, IntPointer labels, boolean hasBias)
+    {
+    	return Natives.gpu_batch_softmax_at_label(x.getThrustPointer(), x.row, x.col, 
+    			outLogProb.getThrustPointer(), outLse.getThrustPointer(), labels, hasBias);
+    }
+    
+    /**
+     * Minibatch: scale * (softmax(cols) - I[y == j]) in a single pass, 
+     * from the log-sum-exp already computed by batch_softmax_at_label(). The bias row gets 0
+     * @param x non-intrusive unless out == x
+     */
+    public static void batch_softmax_minus_id(FloatMat x, FloatMat lse, IntPointer labels, boolean hasBias, float scale, FloatMat out)
+    {
+    	Natives.gpu_batch_softmax_minus_id(x.getThrustPointer(), x.row, x.col, 
+    			lse.getThrustPointer(), labels, hasBias, scale, out.getThrustPointer());
+    }
+    
     /**
      * Minibatch: get the labels where the maximum probability occurs
      * @param x non-intrusive, x won't be changed
@@ -591,6 +685,226 @@ public class Thrust
     	Natives.copy_device_to_host(reusedDevicePtr, outLabels, offset, x.col);
 	}
 
+    // ******************** Sampled softmax ****************** /
+    /**
+     * Candidate i is labels[i] for i < batch, then samples[i - batch]
+     * @param out cand rows: the candidate rows of w
+     */
+    public static void gather_rows(FloatMat w, IntPointer labels, int batch, IntPointer samples, FloatMat out)
+    {
+    	Natives.gpu_gather_rows(w.getThrustPointer(), w.row, w.col, 
+    			labels, batch, samples, out.row, out.getThrustPointer());
+    }
+    
+    /**
+     * Transpose of gather_rows(): candidate rows of w += alpha * in. Other rows of w aren't touched. 
+     * Repeated candidates add up
+     */
+    public static void scatter_add_rows(FloatMat in, IntPointer labels, int batch, IntPointer samples, FloatMat w, float alpha)
+    {
+    	Natives.gpu_scatter_add_rows(in.getThrustPointer(), in.row, 
+    			labels, batch, samples, w.getThrustPointer(), w.row, w.col, alpha);
+    }
+    
+    /**
+     * Column b scores candidate b (its gold label) against the shared sampled candidates, 
+     * all corrected by -logQ[label]. Samples equal to the gold label are excluded. 
+     * @param logits candidates * batch, from the gather_rows() rows
+     * @param outGrad scale * gradient of -log(prob) w.r.t. logits
+     * @return sum(outLogProb)
+     */
+    public static float sampled_softmax(FloatMat logits, IntPointer labels, IntPointer samples, 
+    		FloatMat logQ, FloatMat outGrad, FloatMat outLogProb, float scale)
+    {
+    	return Natives.gpu_sampled_softmax(logits.getThrustPointer(), logits.row, logits.col, 
+    			labels, samples, logQ.getThrustPointer(), outGrad.getThrustPointer(), 
+    			outLogProb.getThrustPointer(), scale);
+    }
+
+    // ******************** Class-factored softmax ****************** /
+    /**
+     * W's class rows come first, then the label rows grouped by class: 
+     * class c owns rows [classStart[c], classStart[c+1]). 
+     * A factored matrix has the class logits in rows [0, classes), 
+     * then the logits of the gold class's labels, zero padded.
+     * @param x batch * wCol input
+     * @param out factored, x.col columns. Only the label rows are written
+     */
+    public static void class_block_mult(FloatMat w, FloatMat x, IntPointer labels, 
+    		IntPointer labelClass, IntPointer classStart, int classes, FloatMat out)
+    {
+    	Natives.gpu_class_block_mult(w.getThrustPointer(), w.row, w.col, x.getThrustPointer(), x.row, x.col, 
+    			labels, labelClass, classStart, classes, out.row, out.getThrustPointer());
+    }
+    
+    /**
+     * log P(class) + log P(label | class) at the gold label of every column
+     * @param logits factored
+     * @param outGrad scale * gradient of -log(prob) w.r.t. logits
+     * @return sum(outLogProb)
+     */
+    public static float class_softmax(FloatMat logits, int classes, IntPointer labels, 
+    		IntPointer labelClass, IntPointer labelRow, IntPointer classStart, 
+    		FloatMat outGrad, FloatMat outLogProb, float scale)
+    {
+    	return Natives.gpu_class_softmax(logits.getThrustPointer(), logits.row, classes, logits.col, 
+    			labels, labelClass, labelRow, classStart, 
+    			outGrad.getThrustPointer(), outLogProb.getThrustPointer(), scale);
+    }
+    
+    /**
+     * Transpose of class_block_mult(): inGrad += label rows of w ^T * the label rows of grad
+     */
+    public static void class_block_mult_t(FloatMat w, FloatMat grad, IntPointer labels, 
+    		IntPointer labelClass, IntPointer classStart, int classes, FloatMat inGrad)
+    {
+    	Natives.gpu_class_block_mult_t(w.getThrustPointer(), w.row, w.col, grad.getThrustPointer(), grad.row, grad.col, 
+    			labels, labelClass, classStart, classes, inGrad.getThrustPointer());
+    }
+    
+    /**
+     * Label rows of w += alpha * the label rows of grad * x^T. Other rows of w aren't touched
+     */
+    public static void class_block_update(FloatMat grad, FloatMat x, IntPointer labels, 
+    		IntPointer labelClass, IntPointer classStart, int classes, FloatMat w, float alpha)
+    {
+    	Natives.gpu_class_block_update(grad.getThrustPointer(), grad.row, x.getThrustPointer(), x.row, x.col, 
+    			labels, labelClass, classStart, classes, w.getThrustPointer(), w.row, w.col, alpha);
+    }
+    
+    /**
+     * Label rows of the first n classes in classList *= factor
+     * @param classList no duplicates
+     * @param blockRows the largest class size
+     */
+    public static void class_block_scale(FloatMat w, IntPointer classStart, 
+    		IntPointer classList, int n, int blockRows, float factor)
+    {
+    	Natives.gpu_class_block_scale(w.getThrustPointer(), w.row, w.col, 
+    			classStart, classList, n, blockRows, factor);
+    }
+    
+    /**
+     * Full log P(label) of every label from the unfactored logits = W * x. 
+     * Rows of 'out' past the labels are set to 0
+     * @param rowLabel label of every W label row
+     */
+    public static void class_log_prob(FloatMat logits, int classes, IntPointer classStart, 
+    		IntPointer rowLabel, int labels, FloatMat out)
+    {
+    	Natives.gpu_class_log_prob(logits.getThrustPointer(), logits.row, logits.col, classes, 
+    			classStart, rowLabel, labels, out.getThrustPointer(), out.row);
+    }
+
+    // ******************** Parameter updates ****************** /
+    /**
+     * Second half of a momentum step, after the gradient is added to v: 
+     * v -= lrReg * w; w += step * v. 
+     * @param hasBias if true, the last row of w and v is set to 0
+     */
+    public static void momentum_apply(FloatMat w, FloatMat v, float lrReg, float step, boolean hasBias)
+    {
+    	Natives.gpu_momentum_apply(w.getThrustPointer(), v.getThrustPointer(), w.row, w.size(), lrReg, step, hasBias);
+    }
+    
+    /**
+     * First half of a Nesterov momentum step, before the gradient is added to v: 
+     * v = mu * v - lrReg * w; w -= mu * (old v)
+     */
+    public static void nesterov_prepare(FloatMat w, FloatMat v, float mu, float lrReg)
+    {
+    	Natives.gpu_nesterov_prepare(w.getThrustPointer(), v.getThrustPointer(), w.size(), mu, lrReg);
+    }
+    
+    /**
+     * AdaGrad with the gradient scale * g + reg * w: 
+     * s += g^2; w -= lr * g / (sqrt(s) + eps)
+     * @param hasBias if true, the last row of w and s is set to 0
+     */
+    public static void adagrad_update(FloatMat w, FloatMat g, FloatMat s, 
+    		float lr, float scale, float reg, float eps, boolean hasBias)
+    {
+    	Natives.gpu_adagrad_update(w.getThrustPointer(), g.getThrustPointer(), s.getThrustPointer(), 
+    			w.row, w.size(), lr, scale, reg, eps, hasBias);
+    }
+    
+    /**
+     * RMSProp with the gradient scale * g + reg * w: 
+     * s = decay * s + (1 - decay) * g^2; w -= lr * g / (sqrt(s) + eps)
+     * @param hasBias if true, the last row of w and s is set to 0
+     */
+    public static void rmsprop_update(FloatMat w, FloatMat g, FloatMat s, 
+    		float lr, float scale, float reg, float decay, float eps, boolean hasBias)
+    {
+    	Natives.gpu_rmsprop_update(w.getThrustPointer(), g.getThrustPointer(), s.getThrustPointer(), 
+    			w.row, w.size(), lr, scale, reg, decay, eps, hasBias);
+    }
+    
+    /**
+     * Adam with the gradient scale * g + reg * w: 
+     * m = beta1 * m + (1 - beta1) * g; v = beta2 * v + (1 - beta2) * g^2; 
+     * w -= lr * m / (sqrt(v) + eps)
+     * @param lr already bias-corrected
+     * @param hasBias if true, the last row of w, m and v is set to 0
+     */
+    public static void adam_update(FloatMat w, FloatMat g, FloatMat m, FloatMat v, 
+    		float lr, float scale, float reg, float beta1, float beta2, float eps, boolean hasBias)
+    {
+    	Natives.gpu_adam_update(w.getThrustPointer(), g.getThrustPointer(), 
+    			m.getThrustPointer(), v.getThrustPointer(), 
+    			w.row, w.size(), lr, scale, reg, beta1, beta2, eps, hasBias);
+    }
+
+    // ******************** Fastfood structured projection ****************** /
+    /**
+     * work[k*d + j] = diag[k*d + j] * in[j] for every block k and j < inDim, 0 for the padding
+     * @param work d * blocks rows
+     * @param inDim number of input rows to project: excludes the bias row
+     */
+    public static void fastfood_expand(FloatMat in, int inDim, FloatMat diag, int d, FloatMat work)
+    {
+    	Natives.gpu_fastfood_expand(in.getThrustPointer(), in.row, inDim, 
+    			diag.getThrustPointer(), d, work.row, work.col, work.getThrustPointer());
+    }
+
+    /**
+     * Transpose of fastfood_expand(): out[j] = sum_k diag[k*d + j] * work[k*d + j]. 
+     * Rows of 'out' past inDim are set to 0
+     */
+    public static void fastfood_reduce(FloatMat work, FloatMat diag, int d, int inDim, FloatMat out)
+    {
+    	Natives.gpu_fastfood_reduce(work.getThrustPointer(), out.row, inDim, 
+    			diag.getThrustPointer(), d, work.row, out.col, out.getThrustPointer());
+    }
+
+    /**
+     * In place unnormalized Walsh-Hadamard transform on every length-d segment of x
+     * @param d power of 2
+     */
+    public static void fwht(FloatMat x, int d)
+    {
+    	Natives.gpu_fwht(x.getThrustPointer(), x.size(), d);
+    }
+
+    /**
+     * out = scale .* in[perm] in each column, or the transpose out[perm] = scale .* in
+     * @param perm device permutation of [0, in.row), from copy_host_to_device()
+     */
+    public static void fastfood_permute(FloatMat in, IntPointer perm, FloatMat scale, FloatMat out, boolean transpose)
+    {
+    	Natives.gpu_fastfood_permute(in.getThrustPointer(), perm, 
+    			scale.getThrustPointer(), in.row, in.size(), out.getThrustPointer(), transpose);
+    }
+
+    /**
+     * out[f] = scale[f] * work[f] + bias[f] for f < scale.size(), the remaining rows of 'out' set to 0
+     */
+    public static void fastfood_contract(FloatMat work, FloatMat scale, FloatMat bias, FloatMat out)
+    {
+    	Natives.gpu_fastfood_contract(work.getThrustPointer(), work.row, scale.getThrustPointer(), 
+    			bias.getThrustPointer(), scale.size(), out.row, out.col, out.getThrustPointer());
+    }
+
    
     // A few duplicates from ThrustNative.java
 	// Force Thrust.java to generate code by JavaCpp
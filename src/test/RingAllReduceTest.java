@@ -0,0 +1,119 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.util.*;
+
+import org.junit.*;
+
+import utils.*;
+
+/**
+ * Launches several local JVMs that all-reduce over loopback
+ */
+public class RingAllReduceTest
+{
+	// odd length and tiny pieces: uneven segments and many partial reads
+	static final int LEN = 10007;
+	static final int PIECE = 97;
+
+	@Test
+	public void multiProcessTest() throws Exception
+	{
+		for (int world : new int[] {2, 3, 5})
+			runRanks(RingAllReduceTest.class, world);
+	}
+
+	/**
+	 * Launch 'world' local JVMs running main(rank, worldSize, basePort) of 'main', 
+	 * on ports picked for this run, and check that all of them exit with 0
+	 */
+	public static void runRanks(Class<?> main, int world) throws Exception
+	{
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		int basePort = freeBasePort(world);
+		ArrayList<Process> procs = new ArrayList<>();
+		for (int rank = 0; rank < world; rank++)
+			procs.add(new ProcessBuilder(java,
+					"-cp", System.getProperty("java.class.path"),
+					main.getName(), "" + rank, "" + world, "" + basePort)
+					.inheritIO().start());
+		for (int rank = 0; rank < world; rank++)
+			assertEquals(main.getSimpleName() + " rank " + rank + " of " + world, 0, procs.get(rank).waitFor());
+	}
+
+	/**
+	 * Rank r listens on basePort + r: find 'world' consecutive ports that are free right now, 
+	 * starting from one the OS hands out
+	 */
+	static int freeBasePort(int world) throws IOException
+	{
+		while (true)
+		{
+			ServerSocket probe = new ServerSocket(0);
+			int basePort = probe.getLocalPort();
+			probe.close();
+			if (basePort + world > 65536)
+				continue;
+			boolean free = true;
+			for (int r = 1; r < world && free; r++)
+			{
+				try {
+					new ServerSocket(basePort + r).close();
+				}
+				catch (IOException e) {
+					free = false;
+				}
+			}
+			if (free)
+				return basePort;
+		}
+	}
+
+	/**
+	 * Entry point of every rank: exit code 0 iff all results are correct
+	 * @param args rank, worldSize, basePort
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int rank = Integer.parseInt(args[0]);
+		int world = Integer.parseInt(args[1]);
+		int basePort = Integer.parseInt(args[2]);
+		RingAllReducer ring = new RingAllReducer(rank, world, "localhost", basePort, PIECE);
+
+		boolean ok = true;
+		for (int iter = 0; iter < 3; iter++)
+		{
+			// only the middle range is reduced
+			float[] data = new float[LEN + 2];
+			for (int i = 0; i < LEN; i++)
+				data[i + 1] = rank * 1000 + i + iter;
+			ring.allReduce(data, 1, LEN);
+
+			ok &= data[0] == 0 && data[LEN + 1] == 0;
+			for (int i = 0; i < LEN; i++)
+			{
+				float gold = 0;
+				for (int r = 0; r < world; r++)
+					gold += r * 1000 + i + iter;
+				ok &= data[i + 1] == gold;
+			}
+		}
+
+		float[] bcast = new float[] {rank + 1, rank + 2};
+		ring.broadcast(bcast, 0, 2, world - 1);
+		ok &= bcast[0] == world && bcast[1] == world + 1;
+
+		// variable length messages, rank 0's is empty
+		byte[][] msgs = ring.allGather(new byte[rank * 3001]);
+		for (int r = 0; r < world; r++)
+			ok &= msgs[r].length == r * 3001;
+
+		ring.close();
+		if (!ok)
+			PP.p("Rank", rank, "of", world, "got wrong all-reduce results");
+		System.exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,81 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+import static test.deep.DeepTestKit.*;
+
+import org.junit.*;
+
+import deep.*;
+import deep.units.*;
+
+/**
+ * k accumulated mini-batches of size b must update W exactly like one batch of size k*b
+ */
+public class AccumGradientTest
+{
+	static final int B = 2;
+	static final int K = 3;
+	static SharedDataset dataset;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		systemInit();
+		dataset = randDataset(3 * K * B);
+	}
+
+	/**
+	 * Train one epoch over the first 'size' samples, from the same initial W every time
+	 * @param accumBatches 0 to update every batch
+	 * @return W of every ParamUnit, in forward order
+	 */
+	static float[][] train(int size, int maxBatch, int accumBatches)
+	{
+		InletUnit inlet = new SharedInletUnit("Accum Inlet", dataset, maxBatch, 0, size);
+		Initializer initer = Initializer.uniformRandIniter(1);
+		DeepNet net = new DeepNet("Accum", inlet,
+				new LinearUnit("L1", inlet, 6, initer),
+				new SigmoidUnit("Sig", inlet, scalor),
+				new LinearUnit("L2", inlet, outDim, initer),
+				new SquareErrorTUnit("Terminal", inlet));
+		LearningPlan plan = new LearningPlan("Accum", "", .5f, reg, size, 1);
+		plan.setAccumGradient(accumBatches);
+		Initializer.resetRand();
+		net.run(plan);
+
+		ParamList params = net.getParamList();
+		float[][] W = new float[params.size()][];
+		for (int i = 0; i < W.length; i++)
+			W[i] = params.get(i).data().toHostArray(true);
+		net.destroy();
+		return W;
+	}
+
+	static void assertSameUpdate(float[][] expected, float[][] actual)
+	{
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+			assertArrayEquals("W" + i, expected[i], actual[i], 1e-5f);
+	}
+
+	@Test
+//	@Ignore
+	public void fullCycleTest()
+	{
+		// 2 cycles of K batches vs 2 batches of size K*B
+		assertSameUpdate(train(2 * K * B, K * B, 0), train(2 * K * B, B, K));
+	}
+
+	/**
+	 * The epoch ends in the middle of a cycle, and its very last batch is smaller than B:
+	 * the partial cycle is applied once, weighted by its actual sample count
+	 */
+	@Test
+//	@Ignore
+	public void partialCycleTest()
+	{
+		int size = 2 * K * B + B + 1;
+		// batches K*B, K*B, B+1 vs cycles [B x K], [B x K], [B, 1]
+		assertSameUpdate(train(size, K * B, 0), train(size, B, K));
+	}
+}
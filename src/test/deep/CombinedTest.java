@@ -1,7 +1,8 @@
 package test.deep;
 
-import java.util.ArrayList;
+import java.util.*;
 
+import static org.junit.Assert.*;
 import org.junit.*;
 
 import static test.deep.DeepTestKit.*;
@@ -70,4 +71,116 @@ public class CombinedTest
 		
 		check(net, 1e-1f, 1e2f, false);
 	}
+	
+	static DeepNet fusionNet(InletUnit inlet)
+	{
+		Initializer initer = Initializer.uniformRandIniter(1);
+		return new DeepNet("Fusion", inlet, 
+				new LinearUnit("L1", inlet, 6, initer), 
+				new RectifiedUnit("Rect", inlet, scalor), 
+				new LinearUnit("L2", inlet, 7, initer), 
+				new SigmoidUnit("Sig", inlet, scalor), 
+				new LinearUnit("L3", inlet, 5, initer), 
+				new CosineUnit("Cos", inlet), 
+				new LinearUnit("L4", inlet, outDim, initer), 
+				new SquareErrorTUnit("Terminal", inlet));
+	}
+	
+	/**
+	 * Same forward result with and without fusion
+	 */
+	@Test
+//	@Ignore
+	public void fusionForwardTest()
+	{
+		DeepNet fused = fusionNet(uniRandInlet(2, 2));
+		DeepNet unfused = fusionNet(uniRandInlet(2, 2));
+		unfused.setFusion(false);
+		float[][] results = new float[2][];
+		int i = 0;
+		for (DeepNet net : new DeepNet[] {fused, unfused})
+		{
+			net.setup(plan);
+			net.reset(); // same initial parameters
+			net.inlet.nextBatch();
+			for (ComputeUnit unit : net)
+				if (unit != net.terminal)	unit.forward();
+			results[i ++] = net.terminal.input.data().toHostArray(true);
+		}
+		assertArrayEquals(results[1], results[0], 1e-5f);
+		
+		HashMap<String, ComputeUnit> units = fused.getUnitMap();
+		assertTrue(((ElementComputeUnit) units.get("Rect")).isFused());
+		assertTrue(((ElementComputeUnit) units.get("Sig")).isFused());
+		// cosine backward needs the pre-activation
+		assertFalse(((ElementComputeUnit) units.get("Cos")).isFused());
+		assertFalse(((ElementComputeUnit) unfused.getUnitMap().get("Sig")).isFused());
+	}
+	
+	@Test
+//	@Ignore
+	public void fusionGradientTest()
+	{
+		check(fusionNet(uniRandInlet(1, 1)), 1e-1f, 1e2f, false);
+	}
+	
+	static DeepNet fourierLinearNet(InletUnit inlet, boolean streamed)
+	{
+		Initializer initer = Initializer.uniformRandIniter(1);
+		Initializer projIniter = Initializer.gaussianProjKernelIniter(2);
+		int features = 10;
+		ComputeUnit[] fourier;
+		if (streamed)
+		{
+			FourierLinearUnit unit = new FourierLinearUnit("FL", inlet, features, 6, projIniter, initer);
+			// last block is partial
+			unit.setBlockRows(4);
+			unit.setRegenerate(33);
+			fourier = new ComputeUnit[] {unit};
+		}
+		else
+		{
+			FourierProjectUnit proj = new FourierProjectUnit("Proj", inlet, features, projIniter);
+			proj.setRegenerate(3, 33);
+			fourier = new ComputeUnit[] {
+					proj, 
+					new CosineUnit("Cos", inlet, (float) Math.sqrt(2.0 / features)), 
+					new LinearUnit("FL", inlet, 6, initer)};
+		}
+		ArrayList<ComputeUnit> units = new ArrayList<>();
+		units.add(new LinearUnit("L1", inlet, 5, initer));
+		units.addAll(Arrays.asList(fourier));
+		units.add(new LinearUnit("L2", inlet, outDim, initer));
+		units.add(new SparseCrossEntropyTUnit("Terminal", inlet));
+		return new DeepNet(streamed ? "Streamed Fourier" : "Fourier", inlet, units);
+	}
+	
+	/**
+	 * Streamed features give the same result as FourierProjectUnit -> CosineUnit -> LinearUnit 
+	 * with the same (regenerated) projector
+	 */
+	@Test
+//	@Ignore
+	public void fourierLinearForwardTest()
+	{
+		float[][] results = new float[2][];
+		for (int i = 0; i < 2; i++)
+		{
+			DeepNet net = fourierLinearNet(uniRandInlet(2, 0), i == 0);
+			net.setup(plan);
+			net.reset(); // same initial parameters
+			net.inlet.nextBatch();
+			for (ComputeUnit unit : net)
+				if (unit != net.terminal)	unit.forward();
+			results[i] = net.terminal.input.data().toHostArray(true);
+		}
+		assertArrayEquals(results[1], results[0], 1e-4f);
+	}
+	
+	@Test
+//	@Ignore
+	public void fourierLinearGradientTest()
+	{
+		check(fourierLinearNet(uniRandInlet(2, 0), true), 1e-1f, 1e2f, false);
+	}
 }
\ No newline at end of file
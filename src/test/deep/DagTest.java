@@ -0,0 +1,93 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+import static test.deep.DeepTestKit.*;
+
+import org.junit.*;
+
+import deep.*;
+import deep.units.*;
+
+public class DagTest
+{
+	@BeforeClass
+	public static void setUp() { systemInit(); }
+
+	/**
+	 * Two streams from the inlet, concatenated
+	 */
+	static DagNet twoStreams()
+	{
+		InletUnit inlet = uniRandInlet(2, 2);
+		Initializer initer = Initializer.uniformRandIniter(1);
+		DagNet net = new DagNet("Two streams", inlet);
+		LinearUnit a = net.add(new LinearUnit("A", inlet, 5, initer));
+		LinearUnit b = net.add(new LinearUnit("B", inlet, 4, initer));
+		SigmoidUnit sb = net.add(new SigmoidUnit("SigB", inlet), b);
+		ConcatUnit concat = net.add(new ConcatUnit("Concat", inlet), a, sb);
+		LinearUnit top = net.add(new LinearUnit("Top", inlet, outDim, initer), concat);
+		net.add(new SquareErrorTUnit("Terminal", inlet), top);
+		return net;
+	}
+
+	/**
+	 * Skip connection: the first layer's output feeds both the sigmoid and the concat
+	 */
+	static DagNet skipConnection()
+	{
+		InletUnit inlet = uniRandInlet(2, 2);
+		Initializer initer = Initializer.uniformRandIniter(1);
+		DagNet net = new DagNet("Skip connection", inlet);
+		LinearUnit first = net.add(new LinearUnit("First", inlet, 6, initer));
+		SigmoidUnit sig = net.add(new SigmoidUnit("Sig", inlet), first);
+		LinearUnit mid = net.add(new LinearUnit("Mid", inlet, 6, initer), sig);
+		ConcatUnit concat = net.add(new ConcatUnit("Concat", inlet), mid, first);
+		LinearUnit top = net.add(new LinearUnit("Top", inlet, outDim, initer), concat);
+		net.add(new SquareErrorTUnit("Terminal", inlet), top);
+		return net;
+	}
+
+	@Test
+//	@Ignore
+	public void twoStreamsTest()
+	{
+		check(twoStreams(), 1e-2, 1e2f);
+	}
+
+	@Test
+//	@Ignore
+	public void skipConnectionTest()
+	{
+		check(skipConnection(), 1e-2, 1e2f);
+	}
+
+	@Test
+//	@Ignore
+	public void branchParallelTest()
+	{
+		DagNet net = skipConnection();
+		net.name = "Skip connection, 3 threads";
+		net.setThreads(3);
+		check(net, 1e-2, 1e2f);
+		net.destroy();
+	}
+
+	@Test(expected = DeepException.class)
+	public void inputOrderTest()
+	{
+		InletUnit inlet = uniRandInlet(2, 2);
+		DagNet net = new DagNet("Bad order", inlet);
+		LinearUnit notAdded = new LinearUnit("NotAdded", inlet, 3, Initializer.uniformRandIniter(1));
+		net.add(new SigmoidUnit("Sig", inlet), notAdded);
+	}
+
+	@Test
+	public void unitOrderTest()
+	{
+		DagNet net = twoStreams();
+		String[] names = {"A", "B", "SigB", "Concat", "Top", "Terminal"};
+		int i = 0;
+		for (ComputeUnit unit : net)
+			assertEquals(names[i ++], unit.name);
+	}
+}
@@ -36,6 +36,7 @@ public class DeepTestKit
 	public static void systemInit()
 	{
 		GpuBlas.init();
+		Initializer.resetRand();
 		grand = new GpuRand(GpuRand.SEED);
 		rand = new Random(GpuRand.SEED);
 	}
@@ -140,11 +141,36 @@ public class DeepTestKit
 	}
 	
 	/**
+	 * Random data and gold on GPU, shared by any number of SharedInletUnit
+	 * Gold is in [-1, 1], with a zero bias row, for SquareErrorTUnit
+	 * @param size number of samples
+	 */
+	public static SharedDataset randDataset(int size)
+	{
+		int row = changeDim(inDim), goldRow = changeDim(outDim);
+		float[] data = new float[row * size];
+		float[] gold = new float[goldRow * size];
+		for (int c = 0; c < size; c++)
+		{
+			for (int r = 0; r < row; r++)
+				data[c * row + r] = hasBias && r == row - 1 ? 1 : rand.nextFloat() * 2 - 1;
+			for (int r = 0; r < goldRow; r++)
+				gold[c * goldRow + r] = hasBias && r == goldRow - 1 ? 0 : rand.nextFloat() * 2 - 1;
+		}
+		FloatMat dataMat = new FloatMat(data, row, size);
+		dataMat.toDevice(true);
+		FloatMat goldMat = new FloatMat(gold, goldRow, size);
+		goldMat.toDevice(true);
+		return new SharedDataset(dataMat, goldMat, null, hasBias);
+	}
+	
+	/**
+	 * @param plan instead of the default one, e.g. without reg
 	 * @param TOL within tolerance percentage (already multiplied by 100)
 	 * @param perturbRatio @see DeepNet#gradCheck()
 	 * When debugging PureComputeLayers, make sure inDim == outDim
 	 */
-	public static void check(DeepNet net, double TOL, float perturbRatio, boolean verbose)
+	public static void check(DeepNet net, LearningPlan plan, double TOL, float perturbRatio, boolean verbose)
 	{
 		if (net.getParamList().size() == 0// this is a PureCompute debug network 
 			// the terminal class requires inDim == outDim
@@ -157,6 +183,7 @@ public class DeepTestKit
 		float avgPercentErr = net.gradCheck(plan, hasBias, perturbRatio, verbose);
 		assertEquals(net.name + " grad check", avgPercentErr, 0, TOL);
 	}
+	public static void check(DeepNet net, double TOL, float perturbRatio, boolean verbose) {	check(net, plan, TOL, perturbRatio, verbose);	}
 	public static void check(DeepNet net, double TOL, float perturbRatio) {	check(net, TOL, perturbRatio, false);	}
 	public static void check(DeepNet net, double TOL, boolean verbose) {	check(net, TOL, 1e3f, verbose);	}
 	public static void check(DeepNet net, double TOL) {	check(net, TOL, 1e3f, false);	}
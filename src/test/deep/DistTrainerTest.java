@@ -0,0 +1,91 @@
+package test.deep;
+
+import static test.deep.DeepTestKit.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.*;
+
+import test.RingAllReduceTest;
+import utils.*;
+import gpu.*;
+import deep.*;
+import deep.units.*;
+
+/**
+ * Launches several local JVMs that train one linear layer together over loopback.
+ * Every rank initializes W from its own seed, and reads an equally sized shard
+ * with an uneven last batch. lr is 0, so W stays at rank 0's broadcast.
+ */
+public class DistTrainerTest
+{
+	static final int SHARD = 2 * batch + 2;
+	static final int EPOCHS = 2;
+
+	@Test
+//	@Ignore
+	public void multiProcessTest() throws Exception
+	{
+		for (int world : new int[] {2, 3})
+			RingAllReduceTest.runRanks(DistTrainerTest.class, world);
+	}
+
+	/**
+	 * Entry point of every rank: exit code 0 iff every rank ends up with rank 0's parameters
+	 * and records the loss of the whole dataset
+	 * @param args rank, worldSize, basePort
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int rank = Integer.parseInt(args[0]);
+		int world = Integer.parseInt(args[1]);
+		int basePort = Integer.parseInt(args[2]);
+		systemInit();
+		// the same dataset on every rank, but different initial parameters
+		SharedDataset dataset = randDataset(world * SHARD);
+		Initializer.resetRand(GpuRand.SEED + rank);
+		DeepNet net =
+				DeepFactory.debugLinearLayers(
+						new SharedInletUnit("Shard " + rank, dataset, batch, rank * SHARD, (rank + 1) * SHARD),
+						new int[] {outDim},
+						SquareErrorTUnit.class,
+						Initializer.uniformRandIniter(1));
+		LearningPlan plan = new LearningPlan("Dist", "", 0, 0, SHARD, EPOCHS);
+		RingAllReducer ring = new RingAllReducer(rank, world, "localhost", basePort);
+		DistTrainer trainer = new DistTrainer(net, ring);
+		trainer.setup(plan);
+		trainer.run();
+
+		boolean ok = true;
+		// parameter broadcast
+		FloatMat W = net.getParamList().get(0).data();
+		ByteBuffer local = ByteBuffer.allocate(W.size() * 4);
+		local.asFloatBuffer().put(W.toHostArray(true));
+		byte[][] msgs = ring.allGather(local.array());
+		for (int r = 0; r < world; r++)
+			ok &= Arrays.equals(msgs[r], msgs[0]);
+
+		// loss all-reduce: the mean loss of this shard at the final W, summed over the shards
+		net.clearLoss();
+		net.inlet.reset();
+		plan.doneSampleSize = 0;
+		while (plan.doneSampleSize < SHARD)
+		{
+			net.inlet.nextBatch();
+			net.forwprop();
+		}
+		float[] global = new float[] {net.lossPure() * SHARD, SHARD};
+		ring.allReduce(global);
+		float expected = global[0] / global[1];
+		ok &= plan.record.size() == EPOCHS;
+		for (float loss : plan.record)
+			ok &= Math.abs(loss - expected) <= 1e-4f * expected;
+
+		ring.close();
+		net.destroy();
+		if (!ok)
+			PP.p("Rank", rank, "of", world, "got wrong distributed training results");
+		System.exit(ok ? 0 : 1);
+	}
+}
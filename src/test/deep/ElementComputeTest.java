@@ -100,4 +100,18 @@ public class ElementComputeTest
 //		sigmoidLayers.runDebug(plan, hasBias);
 		check(net, 1e-1f, 1e5f, false);
 	}
+
+	@Test
+//	@Ignore
+	public void triangularWaveLayersTest()
+	{
+		DeepNet net = 
+				DeepFactory.debugElementComputeLayers(
+						TriangularWaveUnit.class, 
+						uniRandInlet(2, 2), 
+						2, scalor, 
+						SquareErrorTUnit.class);
+		net.name = "TriangularWave + SquareError";
+		check(net, 1e-1f, 1e2f, false);
+	}
 }
\ No newline at end of file
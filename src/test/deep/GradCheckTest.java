@@ -0,0 +1,161 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+import static test.deep.DeepTestKit.*;
+
+import org.junit.*;
+
+import deep.*;
+import deep.units.*;
+
+public class GradCheckTest
+{
+	@BeforeClass
+	public static void setUp() { systemInit(); }
+
+	static NetFactory linearFactory = new NetFactory()
+	{
+		@Override
+		public DeepNet create(InletUnit inlet)
+		{
+			return DeepFactory.debugLinearLayers(
+					inlet,
+					new int[] {3, 10, 6, 5, outDim},
+					SquareErrorTUnit.class,
+					Initializer.uniformRandIniter(1));
+		}
+	};
+
+	@Test
+//	@Ignore
+	public void parallelLinearTest()
+	{
+		DeepNet net = linearFactory.create(uniRandInlet(2, 2));
+		net.name = "Parallel Linear + SquareError";
+		GradChecker checker = new GradChecker(net, linearFactory, plan, hasBias);
+		checker.setThreads(4);
+		GradChecker.Report report = checker.check(1e2f, false);
+		assertEquals(report.total, report.checked);
+		assertEquals(net.name + " grad check", report.avgPercentErr, 0, 5e-4);
+	}
+
+	/**
+	 * Every call draws a different projector seed: the checker must give the replicas the master's
+	 */
+	static NetFactory fourierFactory = new NetFactory()
+	{
+		@Override
+		public DeepNet create(InletUnit inlet)
+		{
+			Initializer initer = Initializer.uniformRandIniter(1);
+			int features = 8;
+			FourierProjectUnit proj = new FourierProjectUnit("Proj", inlet, features,
+					Initializer.gaussianProjKernelIniter(2));
+			proj.setRegenerate(3);
+			return new DeepNet("Fourier", inlet,
+					new LinearUnit("L1", inlet, 5, initer),
+					proj,
+					new CosineUnit("Cos", inlet, (float) Math.sqrt(2.0 / features)),
+					new LinearUnit("L2", inlet, outDim, initer),
+					new SquareErrorTUnit("Terminal", inlet));
+		}
+	};
+
+	@Test
+//	@Ignore
+	public void parallelFourierTest()
+	{
+		DeepNet net = fourierFactory.create(uniRandInlet(2, 2));
+		net.name = "Parallel Regenerated Fourier + SquareError";
+		GradChecker checker = new GradChecker(net, fourierFactory, plan, hasBias);
+		checker.setThreads(3);
+		GradChecker.Report report = checker.check(1e2f, false);
+		assertEquals(net.name + " grad check", report.avgPercentErr, 0, 1e-2);
+	}
+
+	/**
+	 * The streamed projector isn't in the ParamList: replicas must still get the master's,
+	 * stored or regenerated
+	 */
+	static NetFactory fourierLinearFactory(final boolean regenerate)
+	{
+		return new NetFactory()
+		{
+			@Override
+			public DeepNet create(InletUnit inlet)
+			{
+				Initializer initer = Initializer.uniformRandIniter(1);
+				FourierLinearUnit fourier = new FourierLinearUnit("FL", inlet, 10, 6,
+						Initializer.gaussianProjKernelIniter(2), initer);
+				fourier.setBlockRows(4);
+				if (regenerate)
+					fourier.setRegenerate();
+				return new DeepNet("Fourier Linear", inlet,
+						new LinearUnit("L1", inlet, 5, initer),
+						fourier,
+						new LinearUnit("L2", inlet, outDim, initer),
+						new SquareErrorTUnit("Terminal", inlet));
+			}
+		};
+	}
+
+	@Test
+//	@Ignore
+	public void parallelFourierLinearTest()
+	{
+		for (boolean regenerate : new boolean[] {false, true})
+		{
+			NetFactory factory = fourierLinearFactory(regenerate);
+			DeepNet net = factory.create(uniRandInlet(2, 2));
+			net.name = "Parallel Fourier Linear" + (regenerate ? " regenerated" : "");
+			GradChecker checker = new GradChecker(net, factory, plan, hasBias);
+			checker.setThreads(3);
+			GradChecker.Report report = checker.check(1e2f, false);
+			assertEquals(net.name + " grad check", report.avgPercentErr, 0, 1e-2);
+		}
+	}
+
+	@Test
+//	@Ignore
+	public void sampledLinearTest()
+	{
+		DeepNet net = linearFactory.create(uniRandInlet(2, 2));
+		net.name = "Sampled Linear + SquareError";
+		GradChecker checker = new GradChecker(net, linearFactory, plan, hasBias);
+		checker.setThreads(3);
+		checker.setSampling(60, 2014);
+		GradChecker.Report report = checker.check(1e2f, false);
+		assertEquals(60, report.checked);
+		assertTrue(report.percentErrBound >= report.avgPercentErr);
+		assertEquals(net.name + " grad check bound", report.percentErrBound, 0, 5e-3);
+	}
+
+	@Test
+//	@Ignore
+	public void directionalLinearTest()
+	{
+		DeepNet net = linearFactory.create(uniRandInlet(2, 2));
+		net.name = "Directional Linear + SquareError";
+		GradChecker.Report report =
+				new GradChecker(net, null, plan, hasBias).checkDirectional(20, 1e2f, false);
+		assertEquals(20, report.checked);
+		assertEquals(net.name + " grad check bound", report.percentErrBound, 0, 1e-2);
+	}
+
+	@Test
+//	@Ignore
+	public void directionalElementTest()
+	{
+		// no parameters: probes the inlet
+		DeepNet net =
+				DeepFactory.debugElementComputeLayers(
+						SigmoidUnit.class,
+						uniRandInlet(2, 2),
+						2, scalor,
+						SquareErrorTUnit.class);
+		net.name = "Directional Sigmoid + SquareError";
+		GradChecker.Report report =
+				new GradChecker(net, null, plan, hasBias).checkDirectional(20, 1e2f, false);
+		assertEquals(net.name + " grad check bound", report.percentErrBound, 0, 1e-1);
+	}
+}
@@ -0,0 +1,174 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import deep.*;
+
+/**
+ * Host-only: no GPU needed
+ */
+public class GradientCodecTest
+{
+	static final int ROW = 301, COL = 7;
+
+	static GradientCodec[] codecs()
+	{
+		return new GradientCodec[] {new GradientCodec.OneBitCodec(), new GradientCodec.EightBitCodec()};
+	}
+
+	@Test
+	public void messageSizeTest()
+	{
+		float[] grad = new float[ROW * COL];
+		assertTrue(new GradientCodec.OneBitCodec().encode(0, grad, ROW, COL).length * 24 < grad.length * 4);
+		assertTrue(new GradientCodec.EightBitCodec().encode(0, grad, ROW, COL).length * 3 < grad.length * 4);
+	}
+
+	/**
+	 * With error feedback, sum of decoded messages = sum of gradients - last residual:
+	 * nothing is lost, the error doesn't grow with the number of steps
+	 */
+	@Test
+	public void errorFeedbackTest()
+	{
+		Random rand = new Random(2014);
+		for (GradientCodec codec : codecs())
+		{
+			float[] gradSum = new float[ROW * COL], decodedSum = new float[ROW * COL];
+			float[] firstErr = null;
+			int steps = 200;
+			for (int t = 0; t < steps; t++)
+			{
+				float[] grad = new float[ROW * COL];
+				for (int i = 0; i < grad.length; i++)
+				{
+					grad[i] = (float) rand.nextGaussian();
+					gradSum[i] += grad[i];
+				}
+				codec.decodeAdd(codec.encode(3, grad, ROW, COL), decodedSum);
+				if (t == 0)
+					firstErr = diff(gradSum, decodedSum);
+			}
+			float err = norm(diff(gradSum, decodedSum));
+			// accumulated error stays within a small multiple of a single step's error
+			assertTrue(codec.getClass().getSimpleName() + " error feedback", err < 3 * norm(firstErr));
+		}
+	}
+
+	/**
+	 * Least squares trained by 4 simulated data-parallel workers.
+	 * Compressed exchange must reach about the same loss as the exact average.
+	 */
+	@Test
+	public void convergenceParityTest()
+	{
+		float exact = trainLeastSquares(null);
+		for (GradientCodec codec : codecs())
+		{
+			float loss = trainLeastSquares(codec.getClass());
+			assertEquals(codec.getClass().getSimpleName() + " convergence parity", exact, loss, 0.1 * exact + 1e-3);
+		}
+	}
+
+	/**
+	 * @param codecClass null for exact averaging
+	 * @return final mean squared error on all data
+	 */
+	static float trainLeastSquares(Class<? extends GradientCodec> codecClass)
+	{
+		final int workers = 4, dim = 20, out = 3, samples = 400, steps = 300;
+		final float lr = 0.05f;
+		Random rand = new Random(7);
+		// gold W, data X and noisy targets Y
+		float[] goldW = gaussian(rand, out * dim);
+		float[][] X = new float[samples][], Y = new float[samples][];
+		for (int s = 0; s < samples; s++)
+		{
+			X[s] = gaussian(rand, dim);
+			Y[s] = new float[out];
+			for (int o = 0; o < out; o++)
+				Y[s][o] = dot(goldW, o, X[s]) + 0.1f * (float) rand.nextGaussian();
+		}
+
+		GradientCodec[] codecs = new GradientCodec[workers];
+		try {
+			for (int w = 0; w < workers; w++)
+				codecs[w] = codecClass == null ? null : codecClass.newInstance();
+		}
+		catch (InstantiationException | IllegalAccessException e) {
+			fail(e.getMessage());
+		}
+
+		// W is out x dim, column major: entry (o, d) at d * out + o
+		float[] W = new float[out * dim];
+		int shard = samples / workers;
+		for (int t = 0; t < steps; t++)
+		{
+			float[] sum = new float[W.length];
+			for (int w = 0; w < workers; w++)
+			{
+				float[] grad = new float[W.length];
+				for (int s = w * shard; s < (w + 1) * shard; s++)
+					for (int o = 0; o < out; o++)
+					{
+						float err = dot(W, o, X[s]) - Y[s][o];
+						for (int d = 0; d < dim; d++)
+							grad[d * out + o] += err * X[s][d] / shard;
+					}
+				if (codecs[w] == null)
+					for (int i = 0; i < grad.length; i++)
+						sum[i] += grad[i];
+				else
+					codecs[w].decodeAdd(codecs[w].encode(0, grad, out, dim), sum);
+			}
+			for (int i = 0; i < W.length; i++)
+				W[i] -= lr * sum[i] / workers;
+		}
+
+		float loss = 0;
+		for (int s = 0; s < samples; s++)
+			for (int o = 0; o < out; o++)
+			{
+				float err = dot(W, o, X[s]) - Y[s][o];
+				loss += err * err;
+			}
+		return loss / samples;
+	}
+
+	static float dot(float[] W, int o, float[] x)
+	{
+		int out = W.length / x.length;
+		float sum = 0;
+		for (int d = 0; d < x.length; d++)
+			sum += W[d * out + o] * x[d];
+		return sum;
+	}
+
+	static float[] gaussian(Random rand, int n)
+	{
+		float[] a = new float[n];
+		for (int i = 0; i < n; i++)
+			a[i] = (float) rand.nextGaussian();
+		return a;
+	}
+
+	static float[] diff(float[] a, float[] b)
+	{
+		float[] d = new float[a.length];
+		for (int i = 0; i < a.length; i++)
+			d[i] = a[i] - b[i];
+		return d;
+	}
+
+	static float norm(float[] a)
+	{
+		double sum = 0;
+		for (float v : a)
+			sum += v * v;
+		return (float) Math.sqrt(sum);
+	}
+}
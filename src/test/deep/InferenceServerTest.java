@@ -0,0 +1,134 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+import static test.deep.DeepTestKit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import deep.*;
+
+public class InferenceServerTest
+{
+	@BeforeClass
+	public static void setUp() { systemInit(); }
+
+	static InferenceEngine compile()
+	{
+		DeepNet net = InferenceTest.sigmoidCosineNet();
+		net.setup(plan);
+		InferenceEngine engine = new InferenceEngine(net);
+		net.destroy();
+		return engine;
+	}
+
+	static float[] randInput(int cols)
+	{
+		float[] input = new float[changeDim(inDim) * cols];
+		for (int i = 0; i < input.length; i++)
+			input[i] = hasBias && (i + 1) % changeDim(inDim) == 0 ? 1 : rand.nextFloat();
+		return input;
+	}
+
+	/**
+	 * Coalesced results must match one request per forward pass
+	 */
+	@Test
+//	@Ignore
+	public void batchedResultTest() throws Exception
+	{
+		InferenceEngine engine = compile();
+		InferenceServer server = new InferenceServer(engine, 20, TimeUnit.MILLISECONDS);
+		ArrayList<float[]> inputs = new ArrayList<>();
+		ArrayList<Future<float[]>> results = new ArrayList<>();
+		for (int r = 0; r < 12; r++)
+		{
+			inputs.add(randInput(1 + r % 3));
+			results.add(server.submit(inputs.get(r)));
+		}
+		for (int r = 0; r < inputs.size(); r++)
+		{
+			float[] input = inputs.get(r);
+			assertArrayEquals(engine.infer(input, input.length / engine.inDim),
+					results.get(r).get(), 1e-5f);
+		}
+		server.shutdown();
+
+		InferenceServer.Metrics metrics = server.metrics();
+		assertEquals(12, metrics.requests);
+		// 24 columns with MaxBatchSize 5: at least 5 passes
+		assertTrue("batches " + metrics.batches, metrics.batches >= 5 && metrics.batches < 12);
+		assertTrue(metrics.batchFill > 0 && metrics.batchFill <= 1);
+		assertTrue(metrics.p50Latency <= metrics.p99Latency);
+		engine.destroy();
+	}
+
+	/**
+	 * A lone request is served at its deadline without waiting for a full batch
+	 */
+	@Test(timeout = 5000)
+	public void deadlineTest() throws Exception
+	{
+		InferenceEngine engine = compile();
+		InferenceServer server = new InferenceServer(engine, 50, TimeUnit.MILLISECONDS);
+		float[] output = server.infer(randInput(1));
+		assertEquals(engine.outDim, output.length);
+		server.shutdown();
+		assertEquals(1, server.metrics().batches);
+		engine.destroy();
+	}
+
+	/**
+	 * Requests racing with shutdown() are either rejected or served: no Future is left pending
+	 */
+	@Test(timeout = 10000)
+	public void shutdownRaceTest() throws Exception
+	{
+		InferenceEngine engine = compile();
+		final InferenceServer server = new InferenceServer(engine, 1, TimeUnit.MILLISECONDS);
+		final Queue<Future<float[]>> accepted = new ConcurrentLinkedQueue<>();
+		ExecutorService clients = Executors.newFixedThreadPool(4);
+		for (int c = 0; c < 4; c++)
+			clients.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					try {
+						while (true)
+							accepted.add(server.submit(randInput(1)));
+					}
+					catch (DeepException e) { } // shut down
+					return null;
+				}
+			});
+		Thread.sleep(50);
+		server.shutdown();
+		clients.shutdown();
+		clients.awaitTermination(5, TimeUnit.SECONDS);
+
+		assertFalse(accepted.isEmpty());
+		for (Future<float[]> result : accepted)
+		{
+			assertTrue(result.isDone());
+			assertEquals(engine.outDim, result.get().length);
+		}
+		engine.destroy();
+	}
+
+	@Test(expected = DeepException.class)
+	public void oversizedRequestTest() throws Exception
+	{
+		InferenceEngine engine = compile();
+		InferenceServer server = new InferenceServer(engine, 1, TimeUnit.MILLISECONDS);
+		try {
+			server.submit(randInput(batch + 1));
+		}
+		finally {
+			server.shutdown();
+			engine.destroy();
+		}
+	}
+}
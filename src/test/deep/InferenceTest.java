@@ -0,0 +1,135 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+import static test.deep.DeepTestKit.*;
+
+import java.io.File;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import gpu.*;
+import deep.*;
+import deep.units.*;
+
+public class InferenceTest
+{
+	@BeforeClass
+	public static void setUp() { systemInit(); }
+
+	/**
+	 * Forward the training net up to the terminal.
+	 * The bias row is zeroed, like the engine's output.
+	 */
+	static float[] trainedOutput(DeepNet net)
+	{
+		net.setup(plan);
+		net.inlet.nextBatch();
+		for (ComputeUnit unit : net)
+			if (!(unit instanceof TerminalUnit))
+				unit.forward();
+		FloatMat out = net.terminal.input.data();
+		if (hasBias) out.fillLastRow0();
+		return out.toHostArray(true);
+	}
+
+	static DeepNet sigmoidCosineNet()
+	{
+		InletUnit inlet = uniRandInlet(2, 2);
+		Initializer initer = Initializer.uniformRandIniter(1);
+		return new DeepNet("Sigmoid + Cosine", inlet,
+				new LinearUnit("L1", inlet, 6, initer),
+				new SigmoidUnit("Sig", inlet, scalor),
+				new LinearUnit("L2", inlet, 5, initer),
+				new CosineUnit("Cos", inlet, scalor),
+				new LinearUnit("L3", inlet, outDim, initer),
+				new SquareErrorTUnit("Terminal", inlet));
+	}
+
+	@Test
+//	@Ignore
+	public void sigmoidCosineTest()
+	{
+		DeepNet net = sigmoidCosineNet();
+		float[] expected = trainedOutput(net);
+		InferenceEngine engine = new InferenceEngine(net);
+		float[] actual = engine.infer(net.inlet.data().toHostArray(true), batch);
+		assertArrayEquals(expected, actual, 1e-4f);
+		engine.destroy();
+	}
+
+	@Test
+//	@Ignore
+	public void fourierTest()
+	{
+		DeepNet net = DeepFactory.fourierProjectionNet(
+				uniRandInlet(2, 2), new int[] {7, 8},
+				Initializer.gaussianProjKernelIniter(2),
+				Initializer.laplacianProjKernelIniter(1));
+		float[] expected = trainedOutput(net);
+		InferenceEngine engine = new InferenceEngine(net);
+		FloatMat output = new FloatMat(engine.outDim, batch);
+		engine.infer(net.inlet.data(), output);
+		assertArrayEquals(expected, output.toHostArray(true), 1e-4f);
+		output.destroy();
+		engine.destroy();
+	}
+
+	/**
+	 * Concurrent callers must each get the single-threaded result
+	 */
+	@Test
+//	@Ignore
+	public void concurrentTest() throws Exception
+	{
+		DeepNet net = sigmoidCosineNet();
+		float[] expected = trainedOutput(net);
+		final float[] input = net.inlet.data().toHostArray(true);
+		final InferenceEngine engine = new InferenceEngine(net);
+		net.destroy();
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		CompletionService<float[]> done = new ExecutorCompletionService<>(pool);
+		int calls = 40;
+		for (int i = 0; i < calls; i++)
+			done.submit(new Callable<float[]>()
+			{
+				@Override
+				public float[] call() {	return engine.infer(input, batch);	}
+			});
+		for (int i = 0; i < calls; i++)
+			assertArrayEquals(expected, done.take().get(), 1e-4f);
+		pool.shutdown();
+		engine.destroy();
+	}
+
+	/**
+	 * Flat export, then memory-mapped load
+	 */
+	@Test
+//	@Ignore
+	public void exportTest() throws Exception
+	{
+		DeepNet net = sigmoidCosineNet();
+		float[] expected = trainedOutput(net);
+		float[] input = net.inlet.data().toHostArray(true);
+		File file = File.createTempFile("inference", ".flat");
+		file.deleteOnExit();
+		InferenceEngine engine = new InferenceEngine(net);
+		engine.export(file.getPath());
+		engine.destroy();
+
+		InferenceEngine loaded = InferenceEngine.load(file.getPath());
+		assertEquals(batch, loaded.MaxBatchSize);
+		assertArrayEquals(expected, loaded.infer(input, batch), 1e-4f);
+		loaded.destroy();
+	}
+
+	@Test(expected = DeepException.class)
+	public void batchSizeTest()
+	{
+		DeepNet net = sigmoidCosineNet();
+		net.setup(plan);
+		new InferenceEngine(net, 2).infer(new float[inDim * 3], 3);
+	}
+}
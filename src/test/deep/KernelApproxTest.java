@@ -36,6 +36,23 @@ public class KernelApproxTest
 //		projector = new FloatMat(newDim + 1, origDim + 1);
 	}
 	
+	static InletUnit fourierInlet()
+	{
+		return new InletUnit("FourierInlet", origData)
+		{
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected int nextBatch_()
+			{
+				return origData.col;
+			}
+			@Override
+			public void nextGold() { }
+			@Override
+			public void prepareNextEpoch() { }
+		};
+	}
+	
 	/**
 	 * Implement the abstract method to test various kernel approximations
 	 */
@@ -45,36 +62,30 @@ public class KernelApproxTest
 		ProjKernel kernelType;
 		DeepNet net;
 		
-		public KernelDebugger(ProjKernel kernelType, float gamma)
+		/**
+		 * @param fastfood use the structured FastfoodProjectUnit instead of a dense projector
+		 */
+		public KernelDebugger(ProjKernel kernelType, float gamma, boolean fastfood)
 		{
 			this.gamma = gamma;
 			this.kernelType = kernelType;
-			InletUnit inlet = new InletUnit("FourierInlet", origData)
-			{
-				private static final long serialVersionUID = 1L;
-				@Override
-				protected int nextBatch_()
-				{
-					return origData.col;
-				}
-				@Override
-				public void nextGold() { }
-				@Override
-				public void prepareNextEpoch() { }
-			};
+			InletUnit inlet = fourierInlet();
 			
-			net = DeepFactory.fourierProjectionNet(
-					inlet, 
-					new int[] {newDim}, 
-					Initializer.projKernelIniter(kernelType, gamma));
+			net = fastfood ?
+					DeepFactory.fastfoodProjectionNet(
+							inlet, new int[] {newDim}, kernelType, gamma) :
+					DeepFactory.fourierProjectionNet(
+							inlet, 
+							new int[] {newDim}, 
+							Initializer.projKernelIniter(kernelType, gamma));
 			net.setup(new LearningPlan("", "", -1, -1, origData.col, 1));
 			inlet.nextBatch();
 		}
 		
 		// Otherwise use the common 'gamma'
-		public KernelDebugger(ProjKernel kernelType)
+		public KernelDebugger(ProjKernel kernelType, boolean fastfood)
 		{
-			this(kernelType, KernelApproxTest.gamma);
+			this(kernelType, KernelApproxTest.gamma, fastfood);
 		}
 		
 		public abstract double computeExact(FloatMat origCol1, FloatMat origCol2);
@@ -122,11 +133,9 @@ public class KernelApproxTest
 	// Global tmp holder: reused
 	final FloatMat diffOrig = new FloatMat(origDim + 1, 1, false);
 	
-	@Test
-//	@Ignore
-	public void gaussianTest()
+	KernelDebugger gaussianDebugger(boolean fastfood)
 	{
-		new KernelDebugger(ProjKernel.Gaussian)
+		return new KernelDebugger(ProjKernel.Gaussian, fastfood)
 		{
 			@Override
 			public double computeExact(FloatMat origCol1, FloatMat origCol2)
@@ -135,14 +144,12 @@ public class KernelApproxTest
 						GpuBlas.add( origCol1, origCol2, diffOrig, 1, -1));
     			return Math.exp(- gamma * norm * norm);
 			}
-		}.test(false);
+		};
 	}
 	
-	@Test
-//	@Ignore
-	public void laplacianTest()
+	KernelDebugger laplacianDebugger(boolean fastfood)
 	{
-		new KernelDebugger(ProjKernel.Laplacian)
+		return new KernelDebugger(ProjKernel.Laplacian, fastfood)
 		{
 			@Override
 			public double computeExact(FloatMat origCol1, FloatMat origCol2)
@@ -150,14 +157,12 @@ public class KernelApproxTest
 				double norm = GpuBlas.add( origCol1, origCol2, diffOrig, 1, -1).abs_sum();
     			return Math.exp(- gamma * norm);
 			}
-		}.test(false);
+		};
 	}
 	
-	@Test
-//	@Ignore
-	public void cauchyTest()
+	KernelDebugger cauchyDebugger(boolean fastfood)
 	{
-		new KernelDebugger(ProjKernel.Cauchy)
+		return new KernelDebugger(ProjKernel.Cauchy, fastfood)
 		{
 			@Override
 			//  prod(1./(1 + gamma * (x1 - x2).^2/2))
@@ -168,7 +173,112 @@ public class KernelApproxTest
 						.reciprocal(gamma, 1, 1)
 						.product();
 			}
-		}.test(false);
+		};
+	}
+	
+	@Test
+//	@Ignore
+	public void gaussianTest()
+	{
+		gaussianDebugger(false).test(false);
+	}
+
+	@Test
+//	@Ignore
+	public void laplacianTest()
+	{
+		laplacianDebugger(false).test(false);
+	}
+
+	@Test
+//	@Ignore
+	public void cauchyTest()
+	{
+		cauchyDebugger(false).test(false);
+	}
+
+	// ******************** Fastfood structured projection ********************/
+	@Test
+//	@Ignore
+	public void fastfoodGaussianTest()
+	{
+		gaussianDebugger(true).test(false);
+	}
+
+	@Test
+//	@Ignore
+	public void fastfoodLaplacianTest()
+	{
+		laplacianDebugger(true).test(false);
+	}
+
+	@Test
+//	@Ignore
+	public void fastfoodCauchyTest()
+	{
+		cauchyDebugger(true).test(false);
+	}
+	
+	static FastfoodProjectUnit fastfoodUnit()
+	{
+		InletUnit inlet = fourierInlet();
+		FastfoodProjectUnit fastfood = new FastfoodProjectUnit("", inlet, 1000, ProjKernel.Laplacian, gamma);
+		DeepNet net = new DeepNet("Fastfood", inlet, fastfood, new ForwardOnlyTUnit("", inlet));
+		net.setup(new LearningPlan("", "", -1, -1, origData.col, 1));
+		return fastfood;
+	}
+	
+	static float[] project(FastfoodProjectUnit fastfood)
+	{
+		fastfood.inlet.nextBatch();
+		fastfood.forward();
+		return fastfood.output.data().toHostArray(true);
+	}
+	
+	/**
+	 * Successive units get different seeds, replayed by Initializer.resetRand(), 
+	 * and setSeed() regenerates the very same projection
+	 */
+	@Test
+//	@Ignore
+	public void fastfoodSeedTest()
+	{
+		Initializer.resetRand();
+		FastfoodProjectUnit first = fastfoodUnit(), second = fastfoodUnit();
+		assertTrue(first.getSeed() != second.getSeed());
+		Initializer.resetRand();
+		FastfoodProjectUnit replay = fastfoodUnit();
+		assertEquals(first.getSeed(), replay.getSeed());
+		
+		second.setSeed(first.getSeed());
+		assertArrayEquals(project(first), project(second), 0);
+		for (FastfoodProjectUnit fastfood : new FastfoodProjectUnit[] {first, second, replay})
+			fastfood.destroy();
+	}
+	
+	/**
+	 * A projector regenerated tile by tile must match the materialized one, 
+	 * including the last partial tile
+	 */
+	@Test
+//	@Ignore
+	public void regeneratedProjectorTest()
+	{
+		InletUnit inlet = fourierInlet();
+		FourierProjectUnit proj = new FourierProjectUnit("", inlet, 1000, 
+				Initializer.projKernelIniter(ProjKernel.Gaussian, gamma));
+		proj.setRegenerate(300);
+		DeepNet net = new DeepNet("Regenerated", inlet, proj, new ForwardOnlyTUnit("", inlet));
+		net.setup(new LearningPlan("", "", -1, -1, origData.col, 1));
+		inlet.nextBatch();
+		net.forwprop();
+		
+		FloatMat full = proj.genProjection();
+		FloatMat expected = GpuBlas.mult(full, origData);
+		assertArrayEquals(expected.toHostArray(true), proj.output.data().toHostArray(true), 1e-3f);
+		full.destroy();
+		expected.destroy();
+		net.destroy();
 	}
 	
 	@Test
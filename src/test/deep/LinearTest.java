@@ -1,7 +1,9 @@
 package test.deep;
 
 import org.junit.*;
+import static org.junit.Assert.*;
 import static test.deep.DeepTestKit.*;
+import gpu.*;
 import utils.*;
 import deep.*;
 import deep.units.*;
@@ -70,4 +72,296 @@ public class LinearTest
 //		linearLayers.runDebug(plan, hasBiase);
 		check(linearLayers, 5e-4, 1e2f, false);
 	}
+	
+	static DeepNet sampledSoftmaxNet(InletUnit inlet, int samples)
+	{
+		Initializer initer = Initializer.uniformRandIniter(1);
+		return new DeepNet("Linear + SampledSoftmax", inlet, 
+				new LinearUnit("L1", inlet, 8, initer), 
+				new LinearUnit("L2", inlet, outDim, initer), 
+				new SampledSoftmaxTUnit("Terminal", inlet, samples, null, 33));
+	}
+	
+	/**
+	 * Without reg: the sampled step only decays the candidate rows, 
+	 * which isn't the gradient of the full L2 loss
+	 */
+	@Test
+//	@Ignore
+	public void linearLayersSampledSoftmaxTest()
+	{
+		LearningPlan noReg = new LearningPlan(plan);
+		noReg.reg = 0;
+		check(sampledSoftmaxNet(uniRandInlet(1, 0), 4), noReg, 5e-2, 1e2f, false);
+	}
+	
+	/**
+	 * Full softmax at test time
+	 */
+	@Test
+//	@Ignore
+	public void sampledSoftmaxFullTest()
+	{
+		DeepNet net = sampledSoftmaxNet(uniRandInlet(1, 0), 4);
+		((SampledSoftmaxTUnit) net.terminal).setSampling(false);
+		check(net, 5e-2, 1e2f, false);
+	}
+	
+	/**
+	 * Only the gold labels' and the sampled rows of W are updated
+	 */
+	@Test
+//	@Ignore
+	public void sampledSoftmaxSparseUpdateTest()
+	{
+		int samples = 2;
+		DeepNet net = sampledSoftmaxNet(uniRandInlet(1, 0), samples);
+		net.setup(plan);
+		net.reset(); net.inlet.nextBatch();
+		FloatMat W = ((LinearUnit) net.getUnitMap().get("L2")).W.data();
+		float[] before = W.toHostArray(true);
+		net.forwprop();
+		net.backprop();
+		float[] after = W.toHostArray(true);
+		
+		int changed = 0;
+		for (int r = 0; r < W.row; r++)
+			for (int c = 0; c < W.col; c++)
+				if (before[c * W.row + r] != after[c * W.row + r])
+				{
+					++ changed;
+					break;
+				}
+		assertTrue(changed > 0);
+		assertTrue(changed <= batch + samples);
+	}
+	
+	/**
+	 * L2 decays every candidate row exactly once, however many columns share its label, 
+	 * on top of the same gradient step as without reg
+	 */
+	@Test
+//	@Ignore
+	public void sampledSoftmaxDecayTest()
+	{
+		int samples = 2;
+		InletUnit inlet = uniRandInlet(1, 0);
+		// only 2 distinct labels in the batch
+		int[] labels = new int[batch];
+		for (int i = 0; i < batch; i++)
+			labels[i] = i % 2;
+		inlet.goldLabels = Thrust.copy_host_to_device(labels);
+		DeepNet net = sampledSoftmaxNet(inlet, samples);
+		LearningPlan plan = new LearningPlan("Sampled decay", "", .1f, 0, batch, 1);
+		net.setup(plan);
+		FloatMat W = ((LinearUnit) net.getUnitMap().get("L2")).W.data();
+		
+		float[] before = null;
+		float[][] after = new float[2][];
+		for (int i = 0; i < 2; i++)
+		{
+			plan.reg = i == 0 ? 0 : reg;
+			net.reset(); net.inlet.nextBatch();
+			before = W.toHostArray(true);
+			net.forwprop();
+			net.backprop();
+			after[i] = W.toHostArray(true);
+		}
+		
+		float decay = 1 - plan.lr * reg;
+		int changed = 0;
+		for (int r = 0; r < W.row; r++)
+		{
+			boolean touched = false;
+			for (int c = 0; c < W.col; c++)
+				touched |= after[1][c * W.row + r] != before[c * W.row + r];
+			if (!touched)	continue;
+			++ changed;
+			for (int c = 0; c < W.col; c++)
+			{
+				int j = c * W.row + r;
+				float expected = decay * before[j] + after[0][j] - before[j];
+				assertEquals(expected, after[1][j], 1e-5f * (1 + Math.abs(expected)));
+			}
+		}
+		assertTrue(changed >= 2);
+		assertTrue(changed <= 2 + samples);
+	}
+	
+	/**
+	 * Uneven classes: labels 0..outDim-1 with frequencies 1..outDim
+	 */
+	static DeepNet classFactoredNet(InletUnit inlet)
+	{
+		float[] freq = new float[outDim];
+		for (int i = 0; i < outDim; i++)
+			freq[i] = i + 1;
+		return classFactoredNet(inlet, freq);
+	}
+	
+	/**
+	 * Heavily skewed: label 0 has almost all the mass
+	 */
+	static float[] skewedFreq()
+	{
+		float[] freq = new float[outDim];
+		freq[0] = 1000;
+		for (int i = 1; i < outDim; i++)
+			freq[i] = 1;
+		return freq;
+	}
+	
+	static DeepNet classFactoredNet(InletUnit inlet, float[] freq)
+	{
+		Initializer initer = Initializer.uniformRandIniter(1);
+		return new DeepNet("Linear + ClassFactored", inlet, 
+				new LinearUnit("L1", inlet, 8, initer), 
+				new ClassFactoredLinearUnit("L2", inlet, ClassFactoredLinearUnit.frequencyClasses(freq, 3), initer), 
+				new ClassFactoredTUnit("Terminal", inlet));
+	}
+	
+	/**
+	 * No class is ever empty: it would take probability mass without any label
+	 */
+	@Test
+//	@Ignore
+	public void skewedClassesTest()
+	{
+		int[] labelClass = ClassFactoredLinearUnit.frequencyClasses(skewedFreq(), 4);
+		int[] size = new int[4];
+		for (int c : labelClass)
+			++ size[c];
+		// the dominant label fills its class alone, the others share the rest
+		assertEquals(0, labelClass[0]);
+		assertEquals(1, size[0]);
+		for (int c = 1; c < 4; c++)
+			assertTrue("class " + c + " is empty", size[c] > 0);
+		
+		// more classes than labels: one label each
+		assertArrayEquals(new int[] {0, 2, 1}, 
+				ClassFactoredLinearUnit.frequencyClasses(new float[] {5, 1, 2}, 10));
+		
+		// empty classes given explicitly are dropped
+		ClassFactoredLinearUnit unit = new ClassFactoredLinearUnit("L", uniRandInlet(1, 0), 
+				new int[] {0, 4, 4, 0, 2}, Initializer.uniformRandIniter(1));
+		assertEquals(3, unit.classes());
+	}
+	
+	@Test
+//	@Ignore
+	public void classFactoredSoftmaxTest()
+	{
+		check(classFactoredNet(uniRandInlet(1, 0)), 5e-2, 1e2f, false);
+	}
+	
+	/**
+	 * The factored loss is exact: same as the full softmax over log P(label)
+	 */
+	@Test
+//	@Ignore
+	public void classFactoredFullTest()
+	{
+		classFactoredFullTest(classFactoredNet(uniRandInlet(1, 0)));
+		classFactoredFullTest(classFactoredNet(uniRandInlet(1, 0), skewedFreq()));
+	}
+	
+	static void classFactoredFullTest(DeepNet net)
+	{
+		net.setup(plan);
+		net.reset(); net.inlet.nextBatch();
+		ClassFactoredLinearUnit linear = (ClassFactoredLinearUnit) net.getUnitMap().get("L2");
+		assertEquals(3, linear.classes());
+		
+		float[] loss = new float[2];
+		for (int i = 0; i < 2; i++)
+		{
+			linear.setFactored(i == 0);
+			net.clearLoss();
+			net.forwprop();
+			loss[i] = net.terminal.lossPure();
+		}
+		assertEquals(loss[0], loss[1], 1e-4f);
+		
+		// log P(label) sums to 1
+		FloatMat logProb = net.terminal.input.data();
+		float[] host = logProb.toHostArray(true);
+		for (int c = 0; c < logProb.col; c++)
+		{
+			double sum = 0;
+			for (int r = 0; r < outDim; r++)
+				sum += Math.exp(host[c * logProb.row + r]);
+			assertEquals(1, sum, 1e-4);
+		}
+	}
+	
+	/**
+	 * Full-batch L-BFGS on a convex least-squares layer: the line search only accepts decreasing losses
+	 */
+	@Test
+//	@Ignore
+	public void lbfgsTest()
+	{
+		DeepNet net = 
+				DeepFactory.debugLinearLayers(
+						uniRandInlet(2, 2), 
+						new int[] {outDim}, 
+						SquareErrorTUnit.class, 
+						Initializer.uniformRandIniter(1));
+		LearningPlan plan = new LearningPlan(DeepTestKit.plan);
+		plan.totalEpochs = 1;
+		LbfgsTrainer trainer = new LbfgsTrainer(net, 5);
+		trainer.setup(plan);
+		assertEquals(1, trainer.run());
+		float firstLoss = trainer.loss();
+		
+		plan.totalEpochs = 30;
+		trainer.run();
+		assertTrue(trainer.loss() < firstLoss);
+		assertEquals(plan.record.size(), plan.curEpoch);
+		trainer.destroy();
+	}
+	
+	/**
+	 * W = scale * V follows the same trajectory as the eager L2 decay
+	 */
+	@Test
+//	@Ignore
+	public void lazyDecayTest()
+	{
+		InletUnit inlet = uniRandInlet(2, 2);
+		Initializer initer = Initializer.uniformRandIniter(1);
+		DeepNet net = new DeepNet("Linear lazy decay", inlet, 
+				new LinearUnit("L1", inlet, 6, initer), 
+				new LinearUnit("L2", inlet, outDim, initer), 
+				new SquareErrorTUnit("Terminal", inlet));
+		LearningPlan plan = new LearningPlan(DeepTestKit.plan);
+		plan.lrStart = .1f;
+		net.setup(plan);
+		
+		float[][][] W = new float[2][][];
+		for (int i = 0; i < 2; i++)
+		{
+			plan.setLazyDecay(i == 1);
+			net.reset();
+			for (int step = 0; step < 3; step++)
+			{
+				net.inlet.nextBatch();
+				net.forwprop();
+				net.backprop();
+			}
+			ParamList params = net.getParamList();
+			W[i] = new float[params.size()][];
+			for (int p = 0; p < params.size(); p++)
+			{
+				ParamUnit param = params.get(p);
+				if (i == 1)
+					assertTrue(param.scale() != 1);
+				W[i][p] = param.data().toHostArray(true);
+				for (int j = 0; j < W[i][p].length; j++)
+					W[i][p][j] *= param.scale();
+			}
+		}
+		for (int p = 0; p < W[0].length; p++)
+			assertArrayEquals(W[0][p], W[1][p], 1e-4f);
+	}
 }
\ No newline at end of file
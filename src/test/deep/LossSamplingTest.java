@@ -0,0 +1,144 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+import static test.deep.DeepTestKit.*;
+
+import org.junit.*;
+
+import deep.*;
+import deep.units.*;
+
+/**
+ * Different batches, forward only: every batch has a fixed mean loss, computed on host.
+ * The sampled loss is the mean over the sampled batches,
+ * and its variance the finite-population estimate from their spread
+ */
+public class LossSamplingTest
+{
+	static final int BATCHES = 6;
+	static UpdateTestKit kit;
+	// host mean loss of every batch
+	static double[] mean = new double[BATCHES];
+
+	@BeforeClass
+	public static void setUp()
+	{
+		systemInit();
+		InletUnit inlet = new SharedInletUnit("Varied Inlet", randDataset(BATCHES * batch), batch);
+		kit = new UpdateTestKit(inlet, new LearningPlan("Loss sampling", "", 1, 0, BATCHES * batch, 1));
+		double[] w = kit.reset();
+		for (int b = 0; b < BATCHES; b++)
+		{
+			kit.net.clearLoss();
+			kit.forward();
+			mean[b] = kit.loss(w);
+			assertEquals("batch " + b, mean[b], kit.net.lossPure(), 1e-4 * mean[b]);
+		}
+	}
+
+	@AfterClass
+	public static void tearDown() {	kit.destroy();	}
+
+	/**
+	 * Run one epoch forward only
+	 */
+	static DeepNet epoch()
+	{
+		kit.reset();
+		for (int b = 0; b < BATCHES; b++)
+			kit.forward();
+		return kit.net;
+	}
+
+	@Test
+//	@Ignore
+	public void periodicTest()
+	{
+		// every other batch: 0, 2, 4
+		kit.net.setLossSampling(2);
+		DeepNet net = epoch();
+		int k = 3;
+		double sum = 0, squareSum = 0;
+		for (int b = 0; b < BATCHES; b += 2)
+		{
+			sum += mean[b];
+			squareSum += mean[b] * mean[b];
+		}
+		double sampledMean = sum / k;
+		double sampleVar = (squareSum - k * sampledMean * sampledMean) / (k - 1);
+		double expectedVar = sampleVar / k * (1 - (double) k / BATCHES);
+		assertEquals(sampledMean, net.lossPure(), 1e-4 * sampledMean);
+		assertTrue(expectedVar > 0);
+		assertEquals(expectedVar, net.lossVariance(), 1e-3 * expectedVar);
+	}
+
+	/**
+	 * A single sampled batch: no variance estimate
+	 */
+	@Test
+//	@Ignore
+	public void singleBatchTest()
+	{
+		kit.net.setLossSampling(BATCHES);
+		DeepNet net = epoch();
+		assertEquals(mean[0], net.lossPure(), 1e-4 * mean[0]);
+		assertTrue(Float.isNaN(net.lossVariance()));
+	}
+
+	/**
+	 * Random subset: the same one for the same epoch, and its loss is the mean of its batches
+	 */
+	@Test
+//	@Ignore
+	public void randomTest()
+	{
+		kit.net.setLossSampling(.5f, 33);
+		float[] loss = new float[2];
+		for (int i = 0; i < 2; i++)
+			loss[i] = epoch().lossPure();
+		assertEquals(loss[0], loss[1], 0);
+
+		double min = mean[0], max = mean[0];
+		for (double m : mean)
+		{
+			min = Math.min(min, m);
+			max = Math.max(max, m);
+		}
+		assertTrue(loss[0] >= min * (1 - 1e-4) && loss[0] <= max * (1 + 1e-4));
+	}
+
+	/**
+	 * Uneven batches merged one by one, like the shards of DistTrainer:
+	 * the batch means are weighted by batch size
+	 */
+	@Test
+//	@Ignore
+	public void weightedMergeTest()
+	{
+		int[] size = new int[] {1, 2, 3};
+		double[] loss = new double[] {3, 2, 9};
+		TerminalUnit terminal = kit.net.terminal;
+		terminal.clearLoss();
+		for (int b = 0; b < size.length; b++)
+			terminal.addLossStats(new double[] {loss[b], 1, 1, size[b], loss[b] / size[b], 0});
+		// one batch not sampled
+		terminal.addLossStats(new double[] {0, 1, 0, 0, 0, 0});
+
+		int k = size.length, total = 0;
+		double sum = 0, spread = 0;
+		for (int b = 0; b < k; b++)
+		{
+			total += size[b];
+			sum += loss[b];
+		}
+		double weightedMean = sum / total;
+		for (int b = 0; b < k; b++)
+		{
+			double d = loss[b] / size[b] - weightedMean;
+			spread += size[b] * d * d;
+		}
+		double expectedVar = spread / total * k / (k - 1) / k * (1 - (double) k / (k + 1));
+		assertEquals(weightedMean, terminal.lossPure(), 1e-6 * weightedMean);
+		assertEquals(expectedVar, terminal.lossVariance(), 1e-6 * expectedVar);
+	}
+}
@@ -1,7 +1,9 @@
 package test.deep;
 
 import org.junit.*;
+import static org.junit.Assert.*;
 import static test.deep.DeepTestKit.*;
+import gpu.*;
 import utils.*;
 import deep.*;
 import deep.units.*;
@@ -34,4 +36,40 @@ public class MiscTest
 		net.setup(new LearningPlan("", null, 3, 1, 100, 10));
 		PP.p(net.getParamList());
 	}
+	
+	/**
+	 * Every parameter is a view into the packed arena, and whole-model ops act on all of them
+	 */
+	@Test
+//	@Ignore
+	public void paramArenaTest()
+	{
+		DeepNet net = DeepFactory.simpleSigmoidNet(uniRandInlet(2, 2), 5, 8);
+		net.setup(new LearningPlan("", null, 3, 1, 100, 10));
+		ParamList params = net.getParamList();
+		FloatMat arena = params.arena();
+		assertNotNull(arena);
+		
+		float squareSum = 0;
+		int size = 0;
+		for (ParamUnit W : params)
+		{
+			assertTrue(W.isArenaView());
+			for (float w : W.data().toHostArray(true))
+				squareSum += w * w;
+			size += W.data().size();
+		}
+		assertEquals(size, arena.size());
+		assertEquals(squareSum, params.squareSum(), 1e-3f * squareSum);
+		
+		// bulk copy in and out of the arena
+		net.recordBestParams();
+		arena.fill(2);
+		for (ParamUnit W : params)
+			for (float w : W.data().toHostArray(true))
+				assertEquals(2, w, 0);
+		net.restoreBestParams();
+		assertEquals(squareSum, params.squareSum(), 1e-3f * squareSum);
+		net.destroy();
+	}
 }	
\ No newline at end of file
@@ -0,0 +1,63 @@
+package test.deep;
+
+import static test.deep.DeepTestKit.*;
+import static test.deep.UpdateTestKit.*;
+
+import org.junit.*;
+
+import deep.*;
+
+/**
+ * A few momentum steps on the same batch, against the host update, L2 decay included
+ */
+public class MomentumTest
+{
+	static final float MOMENTUM = .9f;
+	static final int STEPS = 3;
+
+	@BeforeClass
+	public static void setUp() { systemInit(); }
+
+	/**
+	 * v = momentum * v - lr * (grad + reg * W); W += v
+	 */
+	@Test
+//	@Ignore
+	public void classicalTest() {	momentumTest(false);	}
+
+	/**
+	 * W holds the lookahead point W' = W + momentum * v, and the gradient is taken there:
+	 * v = momentum * v - lr * (grad(W') + reg * W'); W' += (1 + momentum) * v - momentum * old v
+	 */
+	@Test
+//	@Ignore
+	public void nesterovTest() {	momentumTest(true);	}
+
+	static void momentumTest(boolean nesterov)
+	{
+		LearningPlan plan = defaultPlan();
+		plan.setMomentum(MOMENTUM, nesterov);
+		UpdateTestKit kit = new UpdateTestKit(plan);
+		double[] w = kit.reset();
+		double[] v = new double[w.length];
+		double lrReg = plan.lr * plan.reg;
+		for (int step = 0; step < STEPS; step++)
+		{
+			float[] actual = kit.step();
+			double[] grad = kit.gradient(w);
+			for (int i = 0; i < w.length; i++)
+			{
+				if (kit.isBias(i))
+				{
+					w[i] = v[i] = 0;
+					continue;
+				}
+				double old = v[i];
+				v[i] = MOMENTUM * old - plan.lr * grad[i] - lrReg * w[i];
+				w[i] += nesterov ? (1 + MOMENTUM) * v[i] - MOMENTUM * old : v[i];
+			}
+			assertW((nesterov ? "Nesterov" : "Classical") + " step " + step, w, actual);
+		}
+		kit.destroy();
+	}
+}
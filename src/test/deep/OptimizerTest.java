@@ -0,0 +1,130 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+import static test.deep.DeepTestKit.*;
+import static test.deep.UpdateTestKit.*;
+
+import org.junit.*;
+
+import deep.*;
+
+/**
+ * A few adaptive steps on the same batch, against the host update.
+ * The L2 decay is folded into the gradient: grad + reg * W
+ */
+public class OptimizerTest
+{
+	static final float DECAY = .9f, BETA1 = .9f, BETA2 = .999f, EPS = 1e-8f;
+	static final int STEPS = 3;
+
+	@BeforeClass
+	public static void setUp() { systemInit(); }
+
+	@Test
+//	@Ignore
+	public void adaGradTest() {	optimizerTest(new Optimizer.AdaGrad(EPS));	}
+
+	@Test
+//	@Ignore
+	public void rmsPropTest() {	optimizerTest(new Optimizer.RmsProp(DECAY, EPS));	}
+
+	@Test
+//	@Ignore
+	public void adamTest() {	optimizerTest(new Optimizer.Adam(BETA1, BETA2, EPS));	}
+
+	static void optimizerTest(Optimizer optimizer)
+	{
+		LearningPlan plan = defaultPlan();
+		plan.setOptimizer(optimizer);
+		UpdateTestKit kit = new UpdateTestKit(plan);
+		HostOptimizer host = new HostOptimizer(kit);
+		for (int step = 1; step <= STEPS; step++)
+		{
+			float[] actual = kit.step();
+			assertW(optimizer.getClass().getSimpleName() + " step " + step, host.step(), actual);
+		}
+		kit.destroy();
+	}
+
+	/**
+	 * Plans copied from one another share the optimizer instance,
+	 * but every unit still steps with the lr of its own plan
+	 */
+	@Test
+//	@Ignore
+	public void sharedOptimizerTest()
+	{
+		LearningPlan plan = defaultPlan();
+		plan.setOptimizer(new Optimizer.Adam(BETA1, BETA2, EPS));
+		LearningPlan other = new LearningPlan(plan);
+		other.lrStart = 4 * plan.lrStart;
+		assertSame(plan.optimizer, other.optimizer);
+
+		UpdateTestKit[] kits = new UpdateTestKit[] {new UpdateTestKit(plan), new UpdateTestKit(other)};
+		HostOptimizer[] hosts = new HostOptimizer[kits.length];
+		for (int i = 0; i < kits.length; i++)
+			hosts[i] = new HostOptimizer(kits[i]);
+		// interleaved: the last net setup mustn't take over the optimizer
+		for (int step = 1; step <= STEPS; step++)
+			for (int i = 0; i < kits.length; i++)
+			{
+				float[] actual = kits[i].step();
+				assertW("lr=" + kits[i].plan.lr + " step " + step, hosts[i].step(), actual);
+			}
+		for (UpdateTestKit kit : kits)
+			kit.destroy();
+	}
+
+	/**
+	 * The optimizer of a kit's plan, on host. Resets the kit
+	 */
+	static class HostOptimizer
+	{
+		final UpdateTestKit kit;
+		final double[] w, s, m;
+		int step = 0;
+
+		HostOptimizer(UpdateTestKit kit)
+		{
+			this.kit = kit;
+			this.w = kit.reset();
+			this.s = new double[w.length];
+			this.m = new double[w.length];
+		}
+
+		/**
+		 * Must be called right after the kit's step, on the batch it fed
+		 * @return expected W
+		 */
+		double[] step()
+		{
+			++ step;
+			LearningPlan plan = kit.plan;
+			double[] grad = kit.gradient(w);
+			// Adam's bias correction is folded into lr
+			double lr = plan.optimizer instanceof Optimizer.Adam ?
+					plan.lr * Math.sqrt(1 - Math.pow(BETA2, step)) / (1 - Math.pow(BETA1, step)) : plan.lr;
+			for (int i = 0; i < w.length; i++)
+			{
+				if (kit.isBias(i))
+				{
+					w[i] = s[i] = m[i] = 0;
+					continue;
+				}
+				double g = grad[i] + plan.reg * w[i];
+				if (plan.optimizer instanceof Optimizer.AdaGrad)
+					s[i] += g * g;
+				else if (plan.optimizer instanceof Optimizer.RmsProp)
+					s[i] = DECAY * s[i] + (1 - DECAY) * g * g;
+				else
+				{
+					m[i] = BETA1 * m[i] + (1 - BETA1) * g;
+					s[i] = BETA2 * s[i] + (1 - BETA2) * g * g;
+					g = m[i];
+				}
+				w[i] -= lr * g / (Math.sqrt(s[i]) + EPS);
+			}
+			return w;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+import static test.deep.DeepTestKit.*;
+import static test.deep.UpdateTestKit.*;
+
+import org.junit.*;
+
+import deep.*;
+
+/**
+ * The reg loss is computed at the current parameters when asked for,
+ * not accumulated per batch
+ */
+public class RegLossTest
+{
+	static final int STEPS = 3;
+
+	@BeforeClass
+	public static void setUp() { systemInit(); }
+
+	/**
+	 * After a few SGD steps W = (1 - lr * reg) * W - lr * grad,
+	 * the reg loss is 0.5 * reg * |W|^2 of the W expected on host
+	 */
+	@Test
+//	@Ignore
+	public void regLossTest()
+	{
+		UpdateTestKit kit = new UpdateTestKit();
+		LearningPlan plan = kit.plan;
+		double[] w = kit.reset();
+		for (int step = 0; step < STEPS; step++)
+		{
+			float[] actual = kit.step();
+			double[] grad = kit.gradient(w);
+			for (int i = 0; i < w.length; i++)
+				w[i] = kit.isBias(i) ? 0 : (1 - plan.lr * plan.reg) * w[i] - plan.lr * grad[i];
+			assertW("SGD step " + step, w, actual);
+		}
+
+		double squareSum = 0;
+		for (double x : w)
+			squareSum += x * x;
+		float expected = (float) (0.5 * plan.reg * squareSum);
+		assertEquals(expected, kit.net.lossReg(), 1e-4f * expected);
+
+		kit.net.prepareNextEpoch();
+		assertEquals(1, plan.regRecord.size());
+		assertEquals(expected, plan.regRecord.get(0), 1e-4f * expected);
+		kit.destroy();
+	}
+}
@@ -0,0 +1,110 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+import static test.deep.DeepTestKit.*;
+
+import java.util.ArrayList;
+
+import org.junit.*;
+
+import gpu.*;
+import deep.*;
+import deep.units.*;
+
+public class SweepTest
+{
+	// 3 batches per epoch, the last one partial
+	static final int SIZE = 11;
+	static final int MAX_BATCH = 4;
+	static final int EPOCHS = 3;
+	static final float[] LRS = {.01f, .05f, .2f};
+
+	static SharedDataset dataset;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		systemInit();
+		dataset = randDataset(SIZE);
+	}
+
+	/**
+	 * Deterministic init: the sweep threads set up their nets in any order
+	 */
+	static final NetFactory factory = new NetFactory()
+	{
+		@Override
+		public DeepNet create(InletUnit inlet)
+		{
+			return new DeepNet("Sweep", inlet,
+					new LinearUnit("L1", inlet, 6, Initializer.fillIniter(.1f)),
+					new SigmoidUnit("Sig", inlet),
+					new LinearUnit("L2", inlet, outDim, Initializer.fillIniter(-.05f)),
+					new SquareErrorTUnit("Terminal", inlet));
+		}
+	};
+
+	static LearningPlan sweepPlan(float lr)
+	{
+		return new LearningPlan("lr=" + lr, "", lr, 0, SIZE, EPOCHS);
+	}
+
+	/**
+	 * Every config of a concurrent sweep must record the same losses as when trained alone,
+	 * and the shared data must be left untouched
+	 */
+	@Test
+//	@Ignore
+	public void sweepTest()
+	{
+		float[] dataBefore = dataset.data.toHostArray(true);
+		// 2 threads, but the last config takes the whole budget and must run alone
+		SweepRunner runner = new SweepRunner(dataset, MAX_BATCH, 2, 2);
+		for (int i = 0; i < LRS.length; i++)
+			runner.add(sweepPlan(LRS[i]), factory, i == LRS.length - 1 ? 2 : 1);
+		ArrayList<SweepRunner.Result> results = runner.run();
+
+		assertEquals(LRS.length, results.size());
+		for (int i = 0; i < LRS.length; i++)
+		{
+			SweepRunner.Result result = results.get(i);
+			assertTrue(result.toString(), result.succeeded());
+			assertEquals(EPOCHS, result.record.size());
+
+			LearningPlan plan = sweepPlan(LRS[i]);
+			DeepNet net = factory.create(new SharedInletUnit("Alone", dataset, MAX_BATCH));
+			net.run(plan);
+			for (int e = 0; e < EPOCHS; e++)
+				assertEquals(plan.name + " epoch " + e, plan.record.get(e), result.record.get(e), 1e-5f);
+			net.destroy();
+		}
+		assertArrayEquals(dataBefore, dataset.data.toHostArray(true), 0);
+	}
+
+	/**
+	 * A shard inlet serves exactly its column range, as views into the dataset
+	 */
+	@Test
+//	@Ignore
+	public void shardTest()
+	{
+		final int start = 3;
+		DeepNet net = factory.create(new SharedInletUnit("Shard", dataset, MAX_BATCH, start, SIZE));
+		net.setup(new LearningPlan("Shard", "", .1f, 0, SIZE - start, 1));
+		int row = dataset.dim();
+		float[] all = dataset.data.toHostArray(true);
+		int col = start;
+		for (int doneSample : net.batchIter())
+		{
+			int batchSize = Math.min(MAX_BATCH, SIZE - col);
+			assertEquals(batchSize, net.inlet.batchSize);
+			assertEquals(col + batchSize - start, doneSample);
+			float[] expected = new float[row * batchSize];
+			System.arraycopy(all, col * row, expected, 0, expected.length);
+			assertArrayEquals(expected, net.inlet.data().toHostArray(true), 0);
+			col += batchSize;
+		}
+		assertEquals(SIZE, col);
+		net.destroy();
+	}
+}
@@ -0,0 +1,158 @@
+package test.deep;
+
+import static org.junit.Assert.*;
+import static test.deep.DeepTestKit.*;
+import gpu.*;
+import deep.*;
+import deep.units.*;
+
+/**
+ * Shared fixture of the parameter update tests: one linear layer + SquareError.
+ * Every step keeps a host copy of the batch the inlet actually fed,
+ * so that the expected update can be computed on the host from the same W.
+ * Host matrices are column-major, like FloatMat
+ */
+public class UpdateTestKit
+{
+	public final DeepNet net;
+	public final LearningPlan plan;
+	// dim of W
+	public final int row, col;
+	// host copies of the last batch
+	private float[] input, gold;
+
+	/**
+	 * @param plan the net is setup with it
+	 */
+	public UpdateTestKit(InletUnit inlet, LearningPlan plan)
+	{
+		this.plan = plan;
+		this.net =
+				DeepFactory.debugLinearLayers(
+						inlet,
+						new int[] {outDim},
+						SquareErrorTUnit.class,
+						Initializer.uniformRandIniter(1));
+		net.setup(plan);
+		this.row = W().row;
+		this.col = W().col;
+	}
+
+	/**
+	 * The same random batch at every step
+	 */
+	public UpdateTestKit(LearningPlan plan) {	this(uniRandInlet(2, 2), plan);	}
+
+	public UpdateTestKit() {	this(defaultPlan());	}
+
+	/**
+	 * lr 0.1 and the L2 reg of DeepTestKit: the decay is part of every update
+	 */
+	public static LearningPlan defaultPlan()
+	{
+		return new LearningPlan("Update", "", .1f, reg, batch, 1);
+	}
+
+	private FloatMat W() {	return net.getParamList().get(0).data();	}
+
+	/**
+	 * Reset the net, along with the velocity and optimizer states
+	 * @return initial W
+	 */
+	public double[] reset()
+	{
+		net.reset();
+		return toDouble(W().toHostArray(true));
+	}
+
+	/**
+	 * Forward only on the next batch: W stays put
+	 */
+	public void forward()
+	{
+		net.inlet.nextBatch();
+		input = net.inlet.data().toHostArray(true);
+		gold = net.inlet.goldMat.toHostArray(true);
+		net.forwprop();
+	}
+
+	/**
+	 * One training step on the next batch
+	 * @return W after the update
+	 */
+	public float[] step()
+	{
+		forward();
+		net.backprop();
+		return W().toHostArray(true);
+	}
+
+	/**
+	 * w * X - gold on the last batch
+	 */
+	private double[] residual(double[] w)
+	{
+		int batchSize = net.inlet.batchSize;
+		double[] res = new double[row * batchSize];
+		for (int c = 0; c < batchSize; c++)
+			for (int r = 0; r < row; r++)
+			{
+				double y = 0;
+				for (int k = 0; k < col; k++)
+					y += w[k * row + r] * input[c * col + k];
+				res[c * row + r] = y - gold[c * row + r];
+			}
+		return res;
+	}
+
+	/**
+	 * Mean pure loss of the last batch at w: 0.5 * |w * X - gold|^2 / batchSize
+	 */
+	public double loss(double[] w)
+	{
+		double squareSum = 0;
+		for (double r : residual(w))
+			squareSum += r * r;
+		return 0.5 * squareSum / net.inlet.batchSize;
+	}
+
+	/**
+	 * Gradient of the pure loss on the last batch at w: (w * X - gold) * X^T / batchSize
+	 */
+	public double[] gradient(double[] w)
+	{
+		int batchSize = net.inlet.batchSize;
+		double[] res = residual(w);
+		double[] grad = new double[row * col];
+		for (int k = 0; k < col; k++)
+			for (int r = 0; r < row; r++)
+			{
+				for (int c = 0; c < batchSize; c++)
+					grad[k * row + r] += res[c * row + r] * input[c * col + k];
+				grad[k * row + r] /= batchSize;
+			}
+		return grad;
+	}
+
+	/**
+	 * Is W[i] in the bias row, which every update keeps at 0?
+	 */
+	public boolean isBias(int i) {	return hasBias && i % row == row - 1;	}
+
+	public static double[] toDouble(float[] a)
+	{
+		double[] d = new double[a.length];
+		for (int i = 0; i < a.length; i++)
+			d[i] = a[i];
+		return d;
+	}
+
+	public static void assertW(String msg, double[] expected, float[] actual)
+	{
+		assertEquals(msg, expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(msg + " W[" + i + "]", expected[i], actual[i], 1e-4 * (1 + Math.abs(expected[i])));
+	}
+
+	public void destroy() {	net.destroy();	}
+}
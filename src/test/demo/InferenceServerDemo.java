@@ -0,0 +1,94 @@
+package test.demo;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.deep.DeepTestKit;
+import deep.*;
+import deep.units.*;
+
+/**
+ * Load test for the dynamic batching InferenceServer.
+ * Many local clients stand in for the scoring service callers:
+ * each sends small chunks of a few columns and waits for its result.
+ * Usage: InferenceServerDemo [clients] [requests per client] [max chunk] [max delay ms]
+ */
+public class InferenceServerDemo
+{
+	/**
+	 * A caller of the scoring service
+	 */
+	public static class LoadClient implements Callable<Integer>
+	{
+		private final InferenceServer server;
+		private final int requests, maxChunk, inDim;
+		private final Random rand;
+
+		public LoadClient(InferenceServer server, int inDim, int requests, int maxChunk, long seed)
+		{
+			this.server = server;
+			this.inDim = inDim;
+			this.requests = requests;
+			this.maxChunk = maxChunk;
+			this.rand = new Random(seed);
+		}
+
+		/**
+		 * @return number of columns scored
+		 */
+		@Override
+		public Integer call() throws Exception
+		{
+			int cols = 0;
+			for (int r = 0; r < requests; r++)
+			{
+				int chunk = 1 + rand.nextInt(maxChunk);
+				float[] input = new float[inDim * chunk];
+				for (int i = 0; i < input.length; i++)
+					input[i] = (i + 1) % inDim == 0 ? 1 : rand.nextFloat() * 2 - 1;
+				server.infer(input);
+				cols += chunk;
+			}
+			return cols;
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int maxChunk = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		long maxDelay = args.length > 3 ? Long.parseLong(args[3]) : 2;
+
+		DeepTestKit.systemInit();
+		DeepTestKit.inDim = 400;
+		DeepTestKit.outDim = 2000;
+		DeepTestKit.batch = 128;
+		InletUnit inlet = DeepTestKit.uniRandInlet(1, 1);
+		DeepNet net = DeepFactory.simpleSigmoidNet(inlet, 1024, 1024, DeepTestKit.outDim);
+		net.setup(DeepTestKit.plan);
+		InferenceEngine engine = new InferenceEngine(net);
+		net.destroy();
+
+		// no batching (deadline 0) vs. dynamic batching
+		for (long delay : new long[] {0, maxDelay})
+		{
+			InferenceServer server = new InferenceServer(engine, delay, TimeUnit.MILLISECONDS);
+			ExecutorService pool = Executors.newFixedThreadPool(clients);
+			ArrayList<Future<Integer>> results = new ArrayList<>();
+			long start = System.nanoTime();
+			for (int c = 0; c < clients; c++)
+				results.add(pool.submit(new LoadClient(server, engine.inDim, requests, maxChunk, c)));
+			long cols = 0;
+			for (Future<Integer> result : results)
+				cols += result.get();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			pool.shutdown();
+			server.shutdown();
+
+			System.out.println("Max delay " + delay + " ms: " + server.metrics());
+			System.out.format("Throughput %.0f columns/s\n\n", cols / seconds);
+		}
+		engine.destroy();
+	}
+}
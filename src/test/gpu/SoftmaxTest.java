@@ -87,6 +87,20 @@ public class SoftmaxTest
 		// compute sum of log likelihood
 		kit.checkGold(Thrust.sum(outLogProbs), "gold_log_prob_bias", 5e-4f, "Sum of log probs with bias");
 		
+		/*
+		 * Softmax(X) - id in one pass from the log-sum-exp kept by softmax_at_label
+		 */
+		FloatMat lse = new FloatMat(1, COL, false);
+		Thrust.batch_softmax_at_label(X, outLogProbs, lse, labelsDevice, false);
+		kit.checkGold(outLogProbs, "gold_batch_softmax_at_label");
+		Thrust.batch_softmax_minus_id(X, lse, labelsDevice, false, 1, X_out);
+		kit.checkGold(X_out, "gold_batch_softmax_minus_id");
+		// hasBias: the bias row is 0
+		Thrust.batch_softmax_at_label(X, outLogProbs, lse, labelsDevice, true);
+		Thrust.batch_softmax_minus_id(X, lse, labelsDevice, true, 1, X_out);
+		kit.checkGold(X_out, "gold_batch_softmax_minus_id_bias");
+		kit.checkGold(X, X_backup, "softmax - id from lse: X shouldn't be changed");
+		
 		/*
 		 * Label where the maximum probability occurs
 		 */
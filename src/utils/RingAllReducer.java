@@ -0,0 +1,274 @@
+package utils;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Bandwidth-optimal ring all-reduce of float arrays between processes, over NIO socket channels.
+ * Rank r listens on basePort + r, sends to rank r+1 and receives from rank r-1 (mod worldSize).
+ * An all-reduce of n floats is a reduce-scatter followed by an all-gather, 2(N-1) steps
+ * in which every rank sends and receives n/N floats: each rank moves 2n(N-1)/N floats in total,
+ * independent of the number of ranks.
+ * Every step is pipelined in pieces of at most pieceFloats: a piece is reduced as soon as
+ * it arrives, while the next one is still on the wire.
+ *
+ * NOTE: every rank must issue exactly the same sequence of calls with the same lengths.
+ * Not thread-safe: use one thread per reducer.
+ */
+public class RingAllReducer
+{
+	public final int rank;
+	public final int worldSize;
+
+	private ServerSocketChannel server;
+	private SocketChannel next, prev;
+	private Selector selector;
+	private SelectionKey nextKey, prevKey;
+	private ByteBuffer sendBuf, recvBuf;
+
+	// Default piece size: 256K floats = 1MB
+	public static final int DEFAULT_PIECE_FLOATS = 1 << 18;
+	// how long to retry connecting to the next rank, which might not be up yet
+	public static final int CONNECT_TIMEOUT = 60000;
+
+	/**
+	 * Blocks until both ring neighbors are connected
+	 * @param host where all ranks listen, e.g. "localhost"
+	 * @param basePort rank r listens on basePort + r
+	 * @param pieceFloats pipelining granularity
+	 */
+	public RingAllReducer(int rank, int worldSize, String host, int basePort, int pieceFloats) throws IOException
+	{
+		if (worldSize <= 0 || rank < 0 || rank >= worldSize)
+			throw new IllegalArgumentException("Invalid rank " + rank + " of world size " + worldSize);
+		this.rank = rank;
+		this.worldSize = worldSize;
+		if (worldSize == 1)	return;
+
+		sendBuf = ByteBuffer.allocateDirect(pieceFloats * 4).order(ByteOrder.nativeOrder());
+		recvBuf = ByteBuffer.allocateDirect(pieceFloats * 4).order(ByteOrder.nativeOrder());
+
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(host, basePort + rank));
+
+		// connect() succeeds once the next rank is bound, even before it accepts
+		InetSocketAddress nextAddr = new InetSocketAddress(host, basePort + (rank + 1) % worldSize);
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while (next == null)
+		{
+			try {
+				next = SocketChannel.open(nextAddr);
+			}
+			catch (ConnectException e) {
+				if (System.currentTimeMillis() > deadline)
+					throw e;
+				try { Thread.sleep(50); }
+				catch (InterruptedException ie) { throw new IOException("Interrupted while connecting"); }
+			}
+		}
+		prev = server.accept();
+
+		for (SocketChannel ch : new SocketChannel[] {next, prev})
+		{
+			ch.socket().setTcpNoDelay(true);
+			ch.configureBlocking(false);
+		}
+		selector = Selector.open();
+		nextKey = next.register(selector, 0);
+		prevKey = prev.register(selector, 0);
+	}
+
+	/**
+	 * Default pieceFloats
+	 */
+	public RingAllReducer(int rank, int worldSize, String host, int basePort) throws IOException
+	{
+		this(rank, worldSize, host, basePort, DEFAULT_PIECE_FLOATS);
+	}
+
+	/**
+	 * In-place sum of data[offset, offset + len) over all ranks
+	 */
+	public void allReduce(float[] data, int offset, int len) throws IOException
+	{
+		int N = worldSize;
+		if (N == 1)	return;
+
+		// Reduce-scatter: after step s, segment (rank - s - 1) holds the sum over s + 2 ranks
+		for (int s = 0; s < N - 1; s++)
+			transfer(data, offset, len, mod(rank - s), mod(rank - s - 1), true);
+		// All-gather: rank owns the full sum of segment (rank + 1), pass it around
+		for (int s = 0; s < N - 1; s++)
+			transfer(data, offset, len, mod(rank + 1 - s), mod(rank - s), false);
+	}
+
+	/**
+	 * Whole array
+	 */
+	public void allReduce(float[] data) throws IOException
+	{
+		this.allReduce(data, 0, data.length);
+	}
+
+	/**
+	 * Every rank ends up with root's data[offset, offset + len)
+	 */
+	public void broadcast(float[] data, int offset, int len, int root) throws IOException
+	{
+		if (rank != root)
+			for (int i = offset; i < offset + len; i++)
+				data[i] = 0;
+		this.allReduce(data, offset, len);
+	}
+
+	/**
+	 * Every rank contributes one message of any length, e.g. a compressed gradient.
+	 * N-1 steps: each rank forwards the message it received in the previous step.
+	 * @return all messages indexed by rank, including this rank's own
+	 */
+	public byte[][] allGather(byte[] local) throws IOException
+	{
+		int N = worldSize;
+		byte[][] all = new byte[N][];
+		all[rank] = local;
+		ByteBuffer sendHeader = ByteBuffer.allocate(4);
+		ByteBuffer recvHeader = ByteBuffer.allocate(4);
+
+		for (int s = 0; s < N - 1; s++)
+		{
+			byte[] out = all[mod(rank - s)];
+			sendHeader.clear();
+			sendHeader.putInt(out.length).flip();
+			ByteBuffer[] sendBufs = new ByteBuffer[] {sendHeader, ByteBuffer.wrap(out)};
+			recvHeader.clear();
+			ByteBuffer in = null;
+
+			while (sendHeader.hasRemaining() || sendBufs[1].hasRemaining() || in == null || in.hasRemaining())
+			{
+				boolean progress = false;
+				boolean sending = sendHeader.hasRemaining() || sendBufs[1].hasRemaining();
+				if (sending)
+					progress |= next.write(sendBufs) > 0;
+
+				// read the length header first, never past the end of this step's message
+				ByteBuffer target = in == null ? recvHeader : in;
+				if (target.hasRemaining())
+				{
+					int r = prev.read(target);
+					if (r < 0)
+						throw new IOException("Rank " + mod(rank - 1) + " closed the ring");
+					progress |= r > 0;
+				}
+				if (in == null && !recvHeader.hasRemaining())
+				{
+					recvHeader.flip();
+					in = ByteBuffer.allocate(recvHeader.getInt());
+				}
+
+				if (!progress)
+				{
+					nextKey.interestOps(sending ? SelectionKey.OP_WRITE : 0);
+					prevKey.interestOps(in == null || in.hasRemaining() ? SelectionKey.OP_READ : 0);
+					selector.select();
+					selector.selectedKeys().clear();
+				}
+			}
+			all[mod(rank - s - 1)] = in.array();
+		}
+		return all;
+	}
+
+	/**
+	 * Send segment 'sendSeg' to the next rank while receiving segment 'recvSeg' from the previous one.
+	 * Both directions make progress at the same time: no rank ever blocks on a full socket buffer.
+	 * @param accumulate add the received values if true, otherwise overwrite
+	 */
+	private void transfer(float[] data, int offset, int len, int sendSeg, int recvSeg, boolean accumulate) throws IOException
+	{
+		int sendStart = segStart(offset, len, sendSeg);
+		int sendLen = segStart(offset, len, sendSeg + 1) - sendStart;
+		int recvStart = segStart(offset, len, recvSeg);
+		int recvLen = segStart(offset, len, recvSeg + 1) - recvStart;
+
+		int sent = 0, received = 0;
+		// bytes still expected: never read past this step, the neighbor may already be sending the next
+		long recvBytesLeft = recvLen * 4L;
+		sendBuf.clear().flip();
+		recvBuf.clear();
+
+		while (sent < sendLen || sendBuf.hasRemaining() || received < recvLen)
+		{
+			boolean progress = false;
+			if (!sendBuf.hasRemaining() && sent < sendLen)
+			{
+				int n = Math.min(sendLen - sent, sendBuf.capacity() / 4);
+				sendBuf.clear();
+				sendBuf.asFloatBuffer().put(data, sendStart + sent, n);
+				sendBuf.limit(n * 4);
+				sent += n;
+			}
+			if (sendBuf.hasRemaining())
+				progress |= next.write(sendBuf) > 0;
+
+			if (recvBytesLeft > 0)
+			{
+				recvBuf.limit((int) Math.min(recvBuf.capacity(), recvBuf.position() + recvBytesLeft));
+				int r = prev.read(recvBuf);
+				if (r < 0)
+					throw new IOException("Rank " + mod(rank - 1) + " closed the ring");
+				if (r > 0)
+				{
+					progress = true;
+					recvBytesLeft -= r;
+					recvBuf.flip();
+					int n = recvBuf.remaining() / 4;
+					int at = recvStart + received;
+					if (accumulate)
+						for (int i = 0; i < n; i++)
+							data[at + i] += recvBuf.getFloat();
+					else
+						for (int i = 0; i < n; i++)
+							data[at + i] = recvBuf.getFloat();
+					received += n;
+					// keeps a partial float for the next read
+					recvBuf.compact();
+				}
+			}
+
+			if (!progress)
+			{
+				nextKey.interestOps(sendBuf.hasRemaining() ? SelectionKey.OP_WRITE : 0);
+				prevKey.interestOps(recvBytesLeft > 0 ? SelectionKey.OP_READ : 0);
+				selector.select();
+				selector.selectedKeys().clear();
+			}
+		}
+	}
+
+	/**
+	 * Segment i of [offset, offset + len), balanced to within one float
+	 */
+	private int segStart(int offset, int len, int i)
+	{
+		return offset + (int) ((long) len * i / worldSize);
+	}
+
+	private int mod(int r)
+	{
+		return ((r % worldSize) + worldSize) % worldSize;
+	}
+
+	/**
+	 * Release the sockets
+	 */
+	public void close()
+	{
+		if (worldSize == 1)	return;
+		for (Closeable c : new Closeable[] {selector, next, prev, server})
+			if (c != null)
+				FileUtil.quietClose(c);
+	}
+}